@@ -0,0 +1,225 @@
+package net.sf.aria2;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.sf.aria2.rpc.DownloadListener;
+import net.sf.aria2.rpc.GlobalStat;
+
+/**
+ * Keeps the device awake while single aria2 instance is actually doing something. A partial
+ * wakelock is held while there are transfers (and for a grace period after they stop); a high
+ * performance WifiLock is additionally held while download speed is high enough to suffer from
+ * Wi-Fi power saving.
+ *
+ * Activity is reported by {@link StatSampler} and download events. All methods are thread-safe.
+ */
+final class ActivityLocks extends ContextWrapper implements StatSampler.Listener, DownloadListener {
+    private static final String TAG = "ActivityLocks";
+
+    static final long DEFAULT_GRACE_PERIOD = 5 * 60000;
+
+    // below that, Wi-Fi power saving does not matter much
+    static final long WIFI_LOCK_THRESHOLD = 256 * 1024;
+
+    private final Handler handler;
+    private final String tag;
+
+    private final Runnable expireTask = this::expire;
+
+    // guarded by this
+    private PowerManager.WakeLock wakeLock;
+    private WifiManager.WifiLock wifiLock;
+    private boolean enabled;
+    private boolean closed;
+    private long gracePeriod;
+    private long lastActive;
+    private long lastFast;
+
+    ActivityLocks(Context base, Handler handler, String instanceKey, boolean enabled, long gracePeriod) {
+        super(base);
+
+        this.handler = handler;
+        this.tag = "aria2:" + instanceKey;
+        this.enabled = enabled;
+        this.gracePeriod = gracePeriod;
+    }
+
+    /**
+     * Apply changed preferences. Locks, that are already held, expire according to the new grace
+     * period; if none are held, they are taken on next activity.
+     */
+    synchronized void configure(boolean enabled, long gracePeriod) {
+        this.enabled = enabled;
+        this.gracePeriod = gracePeriod;
+
+        if (!enabled) {
+            releaseAll();
+        } else if (wakeLock != null || wifiLock != null) {
+            handler.removeCallbacks(expireTask);
+            handler.post(expireTask);
+        }
+    }
+
+    /**
+     * Hold the wakelock for a grace period, e.g. while aria2 is starting.
+     */
+    synchronized void touch() {
+        onActivity(false);
+    }
+
+    /**
+     * Release everything for good
+     */
+    synchronized void close() {
+        closed = true;
+
+        releaseAll();
+    }
+
+    @Override
+    public void onStat(StatSampler sampler, GlobalStat stat) {
+        if (stat.isTransferring()) {
+            synchronized (this) {
+                onActivity(stat.downloadSpeed >= WIFI_LOCK_THRESHOLD);
+            }
+        }
+    }
+
+    @Override
+    public void onDownloadEvent(int event, String gid) {
+        if (event == EVENT_START) {
+            touch();
+        }
+    }
+
+    private void onActivity(boolean fast) {
+        if (!enabled || closed) return;
+
+        final long now = SystemClock.elapsedRealtime();
+
+        lastActive = now;
+
+        if (wakeLock == null) {
+            wakeLock = acquireWakeLock();
+        }
+
+        if (fast) {
+            lastFast = now;
+
+            if (wifiLock == null) {
+                wifiLock = acquireWifiLock();
+            }
+        }
+
+        handler.removeCallbacks(expireTask);
+        handler.postDelayed(expireTask, gracePeriod);
+    }
+
+    private synchronized void expire() {
+        final long now = SystemClock.elapsedRealtime();
+
+        if (wifiLock != null && now - lastFast >= gracePeriod) {
+            Log.d(TAG, "Releasing WifiLock of " + tag);
+
+            release(wifiLock);
+            wifiLock = null;
+        }
+
+        if (wakeLock != null && now - lastActive >= gracePeriod) {
+            Log.d(TAG, "Releasing wakelock of " + tag + " after " + gracePeriod + "ms of idling");
+
+            release(wakeLock);
+            wakeLock = null;
+        }
+
+        long next = Long.MAX_VALUE;
+
+        if (wifiLock != null) {
+            next = Math.min(next, lastFast + gracePeriod);
+        }
+
+        if (wakeLock != null) {
+            next = Math.min(next, lastActive + gracePeriod);
+        }
+
+        if (next != Long.MAX_VALUE) {
+            handler.postDelayed(expireTask, next - now);
+        }
+    }
+
+    private void releaseAll() {
+        handler.removeCallbacks(expireTask);
+
+        release(wifiLock);
+        wifiLock = null;
+
+        release(wakeLock);
+        wakeLock = null;
+    }
+
+    private PowerManager.WakeLock acquireWakeLock() {
+        try {
+            final PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+
+            final PowerManager.WakeLock lock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, tag);
+
+            lock.setReferenceCounted(false);
+            lock.acquire();
+
+            return lock;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    private WifiManager.WifiLock acquireWifiLock() {
+        try {
+            final WifiManager wifiManager = (WifiManager) getApplicationContext().getSystemService(WIFI_SERVICE);
+
+            if (wifiManager == null) {
+                return null;
+            }
+
+            final WifiManager.WifiLock lock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, tag);
+
+            lock.setReferenceCounted(false);
+            lock.acquire();
+
+            Log.d(TAG, "Acquired WifiLock of " + tag);
+
+            return lock;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    private static void release(PowerManager.WakeLock lock) {
+        if (lock == null) return;
+
+        try {
+            lock.release();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void release(WifiManager.WifiLock lock) {
+        if (lock == null) return;
+
+        try {
+            lock.release();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
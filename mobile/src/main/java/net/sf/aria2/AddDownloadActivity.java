@@ -0,0 +1,197 @@
+package net.sf.aria2;
+
+import android.app.Activity;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcelable;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Share target and handler of magnet links and torrent files. Has no UI: the downloads are put
+ * into {@link DownloadQueue}, and the default aria2 instance is asked to pick them up (and
+ * started, if it is not running).
+ */
+public final class AddDownloadActivity extends Activity {
+    private static final String TAG = "AddDownloadActivity";
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        final ArrayList<String> uris = new ArrayList<>();
+        final List<InputStream> torrents = new ArrayList<>();
+
+        try {
+            parse(getIntent(), uris, torrents);
+        } finally {
+            // the theme requires to finish before onResume
+            finish();
+        }
+
+        if (uris.isEmpty() && torrents.isEmpty()) {
+            Toast.makeText(this, R.string.add_nothing, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        final Context appContext = getApplicationContext();
+
+        // the streams stay readable after the activity is gone
+        new Thread(() -> enqueue(appContext, uris, torrents), "aria2 add downloads").start();
+    }
+
+    private void parse(Intent intent, List<String> uris, List<InputStream> torrents) {
+        final String action = intent.getAction();
+
+        if (action == null) return;
+
+        switch (action) {
+            case Intent.ACTION_SEND:
+                final String text = intent.getStringExtra(Intent.EXTRA_TEXT);
+
+                if (text != null) {
+                    for (String token : text.split("\\s+")) {
+                        if (DownloadQueue.isSupported(token)) {
+                            uris.add(token);
+                        }
+                    }
+                }
+
+                final Uri stream = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+
+                if (stream != null) {
+                    open(stream, torrents);
+                }
+                break;
+            case Intent.ACTION_SEND_MULTIPLE:
+                final ArrayList<Parcelable> streams = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+
+                if (streams != null) {
+                    for (Parcelable item : streams) {
+                        if (item instanceof Uri) {
+                            open((Uri) item, torrents);
+                        }
+                    }
+                }
+                break;
+            case Intent.ACTION_VIEW:
+                final Uri data = intent.getData();
+
+                if (data == null) break;
+
+                final String scheme = data.getScheme();
+
+                if (ContentResolver.SCHEME_CONTENT.equals(scheme) || ContentResolver.SCHEME_FILE.equals(scheme)) {
+                    open(data, torrents);
+                } else if (DownloadQueue.isSupported(data.toString())) {
+                    uris.add(data.toString());
+                }
+        }
+    }
+
+    private void open(Uri uri, List<InputStream> torrents) {
+        if (isPrivate(uri)) {
+            // the sender might not be able to read it, but we can
+            Log.w(TAG, "Refusing to read " + uri);
+            return;
+        }
+
+        try {
+            final InputStream in = getContentResolver().openInputStream(uri);
+
+            if (in != null) {
+                torrents.add(in);
+            }
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Failed to open " + uri + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return whether the uri is a file in app's own data directory
+     */
+    private boolean isPrivate(Uri uri) {
+        if (!ContentResolver.SCHEME_FILE.equals(uri.getScheme()) || uri.getPath() == null) {
+            return false;
+        }
+
+        try {
+            final String path = new File(uri.getPath()).getCanonicalPath();
+
+            final List<String> dataDirs = new ArrayList<>(2);
+            dataDirs.add(getApplicationInfo().dataDir);
+
+            if (Build.VERSION.SDK_INT >= 24) {
+                dataDirs.add(getApplicationInfo().deviceProtectedDataDir);
+            }
+
+            for (String dataDir : dataDirs) {
+                final String canonical = new File(dataDir).getCanonicalPath();
+
+                if (path.equals(canonical) || path.startsWith(canonical + File.separator)) {
+                    return true;
+                }
+            }
+
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static void enqueue(Context context, List<String> uris, List<InputStream> torrents) {
+        final DownloadQueue queue = new DownloadQueue(context);
+
+        int queued = 0;
+        int failed = 0;
+
+        try {
+            queue.addUris(uris);
+
+            queued += uris.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+
+            failed += uris.size();
+        }
+
+        for (InputStream torrent : torrents) {
+            try (InputStream in = torrent) {
+                queue.addTorrent(in);
+
+                ++queued;
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to queue torrent: " + e.getMessage());
+
+                ++failed;
+            }
+        }
+
+        if (queued != 0) {
+            try {
+                DownloadQueue.requestFlush(context);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        final String message = failed == 0
+                ? context.getResources().getQuantityString(R.plurals.add_queued, queued, queued)
+                : context.getResources().getQuantityString(R.plurals.add_failed, failed, failed);
+
+        new Handler(Looper.getMainLooper()).post(() ->
+                Toast.makeText(context, message, Toast.LENGTH_SHORT).show());
+    }
+}
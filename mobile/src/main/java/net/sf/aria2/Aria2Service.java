@@ -47,16 +47,35 @@ import android.util.Log;
 
 import jackpal.androidterm.TermExec;
 import jackpal.androidterm.libtermexec.v1.ITerminal;
+import org.json.JSONObject;
+import net.sf.aria2.http.WebUiServer;
+import net.sf.aria2.rpc.DownloadListener;
+import net.sf.aria2.rpc.EventStream;
+import net.sf.aria2.rpc.GlobalStat;
+import net.sf.aria2.rpc.RpcClient;
+import net.sf.aria2.rpc.RpcException;
+import net.sf.aria2.preset.ConfFile;
+import net.sf.aria2.preset.DevicePreset;
+import net.sf.aria2.schedule.ScheduleRule;
+import net.sf.aria2.session.SessionReader;
+import net.sf.aria2.util.OutputRing;
+import net.sf.aria2.util.ReadoutParser;
 import net.sf.aria2.util.SimpleResultReceiver;
+import net.sf.aria2.util.WebUiExtractor;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.PrintWriter;
 import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import static net.sf.aria2.PublicReceiver.EXTRA_INSTANCE;
+import static net.sf.aria2.PublicReceiver.EXTRA_ONLY_IF_PENDING;
+import static net.sf.aria2.PublicReceiver.INTENT_ADD_DOWNLOADS;
 import static net.sf.aria2.PublicReceiver.INTENT_RESTART_SERVICE;
 import static net.sf.aria2.PublicReceiver.INTENT_START_SERVICE;
 import static net.sf.aria2.PublicReceiver.INTENT_STOP_SERVICE;
@@ -70,21 +89,66 @@ public final class Aria2Service extends Service {
     static final String EXTRA_TEXT = "net.sf.aria2.extra.TEXT";
 
     static final String ACTION_NF_STOPPED = "net.sf.aria2.action.NOTIFY";
+
+    /**
+     * Sent by the settings screen, when a preference, that affects {@link Config}, changes
+     */
+    static final String ACTION_APPLY_SETTINGS = "net.sf.aria2.action.APPLY_SETTINGS";
     static final String EXTRA_EXIT_CODE = "net.sf.aria2.extra.EC";
     static final String EXTRA_DID_WORK = "net.sf.aria2.extra.WORKED";
     static final String EXTRA_KILLED_FORCEFULLY = "net.sf.aria2.extra.KILL";
 
+    private static final int NF_ID_PERSISTENT = -1;
+
+    // how much of recent console output is retained for getRecentOutput
+    private static final int OUTPUT_RING_SIZE = 256 * 1024;
+
+    // keeps single getRecentOutput reply well below Binder transaction limit
+    private static final int MAX_OUTPUT_CHUNK = 64 * 1024;
+
+    // readiness probing: aria2.getVersion is retried with exponential backoff
+    private static final long PROBE_MIN_DELAY = 10;
+    private static final long PROBE_MAX_DELAY = 500;
+    private static final long PROBE_CALL_TIMEOUT = 2000;
+    private static final long READY_TIMEOUT = 30000;
+    private static final long SESSION_TIMEOUT = 10000;
+
+    // how long hung aria2 gets to react to SIGINT before being killed
+    private static final long HUNG_KILL_DELAY = 10000;
+
     private Notification persistentNf;
     private Binder link;
-    private Handler bgThreadHandler;
-    private HandlerThread reusableThread;
+
+    // one thread per instance key, so that restarts of the same instance are serialized
+    private final Map<String, Handler> instanceHandlers = new HashMap<>();
 
     private int bindingCounter;
     private ResultReceiver backLink;
 
     private Handler exitHandler;
 
-    private AriaRunnable lastInvocation;
+    // used for stat sampling and notification updates, never cleared wholesale
+    private Handler mainHandler;
+    private StatusNotifier statusNotifier;
+
+    // the last invocation of each instance, written on the main thread only
+    private final Map<String, AriaRunnable> invocations = new ConcurrentHashMap<>();
+
+    private int lastStartId;
+
+    private StartupStats startupStats;
+    private RunHistory runHistory;
+
+    private Supervisor supervisor;
+
+    private final ServiceMetrics metrics = new ServiceMetrics();
+
+    private RunScheduler scheduler;
+    private ResourceGovernor governor;
+    private WebUiServer webUiServer;
+
+    private final List<DownloadListener> downloadListeners = new CopyOnWriteArrayList<>();
+    private final RemoteCallbackList<IDownloadCallback> downloadCallbacks = new RemoteCallbackList<>();
 
     @Override
     public void onCreate() {
@@ -94,12 +158,51 @@ public final class Aria2Service extends Service {
 
         link = new Binder();
 
-        reusableThread = new HandlerThread("aria2 handler thread");
-        reusableThread.start();
+        exitHandler = new Handler();
 
-        bgThreadHandler = new Handler(reusableThread.getLooper());
+        mainHandler = new Handler();
 
-        exitHandler = new Handler();
+        statusNotifier = new StatusNotifier(this, mainHandler, NF_ID_PERSISTENT);
+
+        startupStats = new StartupStats(new File(getFilesDir(), StartupStats.FILE_NAME));
+        runHistory = new RunHistory(new File(getFilesDir(), RunHistory.FILE_NAME));
+
+        supervisor = new Supervisor(mainHandler);
+
+        scheduler = new RunScheduler(this, mainHandler, new RunScheduler.Listener() {
+            @Override
+            public void onScheduleStateChanged(ScheduleRule.State state) {
+                Aria2Service.this.onScheduleStateChanged(state);
+            }
+
+            @Override
+            public void onNetworkChanged() {
+                // the interface, aria2 is bound to, may be gone
+                applySettings();
+            }
+        });
+        scheduler.start();
+
+        governor = new ResourceGovernor(this, mainHandler, this::onGovernorLevelChanged);
+        governor.start();
+
+        try {
+            webUiServer = WebUiServer.start(getAssets(), WebUiExtractor.ASSET_DIR, getCacheDir(),
+                    0, this::getWebUiRpcPort);
+
+            if (getResources().getBoolean(R.bool.metrics_endpoint)) {
+                webUiServer.setMetrics(metrics);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "WebUI server is not available: " + e.getMessage());
+        }
+    }
+
+    // the WebUI talks to the default instance
+    private int getWebUiRpcPort() {
+        final AriaRunnable invocation = invocations.get(Config.DEFAULT_INSTANCE);
+
+        return invocation == null || !invocation.isRunning() ? -1 : invocation.properties.rpcPort;
     }
 
     @Override
@@ -113,36 +216,70 @@ public final class Aria2Service extends Service {
 
         final String action = intent.getAction();
 
+        final String instance = intent.getStringExtra(EXTRA_INSTANCE);
+
         switch (action == null ? "" : action) {
             case INTENT_STOP_SERVICE:
-                stopSelf(startId);
+                if (instance == null) {
+                    stopSelf(startId);
 
-                stopAria2();
+                    stopAria2();
+                } else {
+                    stopAria2(instance);
+                }
 
                 return START_NOT_STICKY;
 
             case INTENT_RESTART_SERVICE:
-                stopAria2();
+                applyConfig(Config.from(intent), startId);
+
+                return START_NOT_STICKY;
 
-                startAria2(Config.from(intent), startId);
+            case ACTION_APPLY_SETTINGS:
+                lastStartId = startId;
+
+                if (isRunning(Config.DEFAULT_INSTANCE)) {
+                    applySettings();
+                } else {
+                    // nothing to apply to, don't linger in started state
+                    onInstanceFinished(null);
+                }
 
                 return START_NOT_STICKY;
 
             case INTENT_START_SERVICE:
-                if (isRunning()) {
+                if (isRunning(Config.from(intent).instanceKey)) {
+                    return START_NOT_STICKY;
+                }
+                break;
+
+            case INTENT_ADD_DOWNLOADS:
+                if (isReady(Config.DEFAULT_INSTANCE)) {
+                    flushQueue(getRpcClient(Config.DEFAULT_INSTANCE));
+
+                    return START_NOT_STICKY;
+                }
+
+                // the queue is flushed, once aria2 responds
+                if (isRunning(Config.DEFAULT_INSTANCE)) {
                     return START_NOT_STICKY;
                 }
         }
 
-        if (isRunning())
-            throw new IllegalStateException("Can not start aria2: running instance already exists!");
+        final Config config = Config.from(intent);
+
+        if (isRunning(config.instanceKey))
+            throw new IllegalStateException("Can not start aria2: instance " + config.instanceKey + " is already running!");
 
         persistentNf = intent.getParcelableExtra(EXTRA_NOTIFICATION);
 
+        // explicit start closes the circuit breaker
+        supervisor.reset(config.instanceKey);
+
         final ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
         final NetworkInfo ni = cm.getActiveNetworkInfo();
         if (ni != null && ni.isConnectedOrConnecting())
-            startAria2(Config.from(intent), startId);
+            startAria2(config, intent.getBooleanExtra(EXTRA_ONLY_IF_PENDING, false), startId);
         else {
             if (intent.hasExtra(Config.EXTRA_INTERACTIVE))
                 reportNoNetwork();
@@ -151,35 +288,310 @@ public final class Aria2Service extends Service {
         return super.onStartCommand(intent, flags, startId);
     }
 
-    private void startAria2(Config config, int startId) {
-        exitHandler.removeCallbacksAndMessages(null);
-        bgThreadHandler.removeCallbacksAndMessages(null);
-        lastInvocation = new AriaRunnable(config, startId);
-        bgThreadHandler.post(lastInvocation);
+    private void startAria2(Config config, boolean onlyIfPending, int startId) {
+        lastStartId = startId;
+
+        final String key = config.instanceKey;
+
+        supervisor.cancel(key);
+
+        // two instances can't share a session (and would fight over the files anyway)
+        for (AriaRunnable other : invocations.values()) {
+            if (!key.equals(other.properties.instanceKey) && other.isRunning()
+                    && other.properties.sessionFile.equals(config.sessionFile)) {
+                Log.e(TAG, "Not starting " + key + ": " + config.sessionDir + " is used by " + other.properties.instanceKey);
+
+                onInstanceFinished(null);
+
+                return;
+            }
+        }
+
+        Handler handler = instanceHandlers.get(key);
+
+        if (handler == null) {
+            final HandlerThread thread = new HandlerThread("aria2 handler thread (" + key + ')');
+            thread.start();
+
+            handler = new Handler(thread.getLooper());
+
+            instanceHandlers.put(key, handler);
+        } else {
+            // a start, that was not carried out yet, is superseded by this one
+            handler.removeCallbacksAndMessages(null);
+        }
+
+        final AriaRunnable invocation = new AriaRunnable(config, onlyIfPending, governor.getDiskCache());
+        invocations.put(key, invocation);
+
+        metrics.increment(ServiceMetrics.STARTS);
+
+        handler.post(invocation);
         updateNf();
     }
 
+    // called on the main thread
+    private void applyConfig(Config updated, int startId) {
+        if (applyLive(updated)) {
+            metrics.increment(ServiceMetrics.LIVE_RESTARTS);
+        } else {
+            metrics.increment(ServiceMetrics.RESTARTS);
+
+            supervisor.reset(updated.instanceKey);
+
+            stopAria2(updated.instanceKey);
+
+            startAria2(updated, false, startId);
+        }
+    }
+
+    /**
+     * Rebuild the config of the default instance from app settings and current network state,
+     * and apply the difference, if any. Other instances are configured by their starters.
+     *
+     * Called on the main thread.
+     */
+    private void applySettings() {
+        final AriaRunnable invocation = invocations.get(Config.DEFAULT_INSTANCE);
+
+        if (invocation == null || !invocation.isRunning()) {
+            return;
+        }
+
+        final Config updated;
+        try {
+            updated = Config.from(new ConfigBuilder(this).constructServiceCommand(new Intent(this, Aria2Service.class)));
+        } catch (Exception e) {
+            // e.g. there is no network right now, keep running as is
+            Log.i(TAG, "Not applying settings: " + e.getMessage());
+            return;
+        }
+
+        // the options, passed by whoever started the instance, are not part of app settings
+        for (Map.Entry<String, String> option : invocation.properties.globalOptions.entrySet()) {
+            if (!updated.globalOptions.containsKey(option.getKey())) {
+                updated.setGlobalOption(option.getKey(), option.getValue());
+            }
+        }
+
+        final ConfigBuilder.ConfigDiff diff = ConfigBuilder.diff(invocation.properties, updated);
+
+        if (diff.isEmpty() && !diff.appOnly) {
+            return;
+        }
+
+        applyConfig(updated, lastStartId);
+    }
+
+    /**
+     * Try to bring running instance in accordance with new config without restarting it.
+     *
+     * @return false, if the instance must be restarted
+     */
+    private boolean applyLive(Config updated) {
+        final AriaRunnable invocation = invocations.get(updated.instanceKey);
+
+        if (invocation == null || !invocation.isRunning() || !invocation.ready) {
+            return false;
+        }
+
+        final ConfigBuilder.ConfigDiff diff = ConfigBuilder.diff(invocation.properties, updated);
+
+        if (diff.needsRestart) {
+            return false;
+        }
+
+        invocation.properties = updated;
+
+        if (diff.appOnly) {
+            invocation.locks.configure(updated.takeWakelock, updated.lockGracePeriod);
+
+            invocation.rules = parseSchedule(updated);
+
+            applySchedule(invocation, scheduler.getState());
+            rescheduleCheck();
+        }
+
+        // the options, shared with schedule (and others), are changed by the arbiter
+        final Map<String, String> unmanaged = invocation.arbiter.setBase(updated.globalOptions);
+
+        diff.globalOptions.keySet().retainAll(unmanaged.keySet());
+
+        if (!diff.globalOptions.isEmpty()) {
+            Log.i(TAG, "Changing options of " + updated.instanceKey + ": " + diff.globalOptions);
+
+            invocation.rpc.call("aria2.changeGlobalOption", diff.globalOptions).then(call -> {
+                if (call.getError() != null) {
+                    Log.w(TAG, "Failed to change options, restarting " + updated.instanceKey, call.getError());
+
+                    mainHandler.post(() -> {
+                        if (invocations.get(updated.instanceKey) == invocation) {
+                            stopAria2(updated.instanceKey);
+
+                            startAria2(updated, false, lastStartId);
+                        }
+                    });
+                }
+            });
+        }
+
+        return true;
+    }
+
     private void stopAria2() {
-        final AriaRunnable invocation = lastInvocation;
+        boolean cancelled = false;
+
+        for (AriaRunnable invocation : invocations.values()) {
+            cancelled |= supervisor.cancel(invocation.properties.instanceKey);
+
+            invocation.stop();
+        }
+
+        if (cancelled) {
+            // nothing else may be keeping the service alive
+            onInstanceFinished(null);
+        }
+    }
+
+    private void stopAria2(String key) {
+        final AriaRunnable invocation = invocations.get(key);
+
+        if (supervisor.cancel(key)) {
+            // nothing else may be keeping the service alive
+            onInstanceFinished(null);
+        }
 
         if (invocation != null) {
             invocation.stop();
         }
     }
 
+    // called on the main thread, when the health checks of instance fail
+    private void onInstanceHung(AriaRunnable invocation) {
+        if (invocations.get(invocation.properties.instanceKey) != invocation || !invocation.isRunning()) {
+            return;
+        }
+
+        invocation.hung = true;
+
+        invocation.stop();
+
+        mainHandler.postDelayed(() -> {
+            if (invocation.isRunning()) {
+                invocation.stop();
+            }
+        }, HUNG_KILL_DELAY);
+    }
+
+    // called on the main thread
+    private void restartAria2(AriaRunnable invocation) {
+        final String key = invocation.properties.instanceKey;
+
+        // started or stopped by someone else in meantime
+        if (invocations.get(key) != invocation || isRunning(key)) {
+            onInstanceFinished(null);
+
+            return;
+        }
+
+        metrics.increment(ServiceMetrics.RESTARTS);
+
+        startAria2(invocation.properties, false, lastStartId);
+    }
+
+    // called on the main thread, when an instance exits (or fails to start)
+    private void onInstanceFinished(@Nullable AriaRunnable invocation) {
+        if (invocation != null) {
+            stopSampling(invocation);
+
+            final String key = invocation.properties.instanceKey;
+
+            supervisor.unwatch(key);
+
+            if (invocation.restartDelay >= 0 && invocations.get(key) == invocation) {
+                supervisor.scheduleRestart(key, () -> restartAria2(invocation), invocation.restartDelay);
+            }
+        }
+
+        for (AriaRunnable other : invocations.values()) {
+            if (!other.finished) {
+                updateNf();
+                return;
+            }
+        }
+
+        if (supervisor.hasPendingRestarts()) {
+            return;
+        }
+
+        // won't stop the service, if another start command arrived in meantime
+        stopSelf(lastStartId);
+    }
+
     @Override
     public void onDestroy() {
-        // order the child process to quit
+        // order the child processes to quit
         stopAria2();
 
         // not using quitSafely, because it would cause the process to hang
-        reusableThread.quit();
+        for (Handler handler : instanceHandlers.values()) {
+            handler.getLooper().quit();
+        }
+
+        instanceHandlers.clear();
 
         updateNf();
 
+        for (AriaRunnable invocation : invocations.values()) {
+            stopSampling(invocation);
+        }
+
+        statusNotifier.reset();
+        scheduler.stop();
+        governor.stop();
+        mainHandler.removeCallbacksAndMessages(null);
+
+        if (webUiServer != null) {
+            webUiServer.close();
+            webUiServer = null;
+        }
+
+        downloadCallbacks.kill();
+
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        governor.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+
+        governor.onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        governor.dump(writer);
+
+        writer.println();
+
+        supervisor.dump(writer);
+
+        writer.println();
+
+        runHistory.dump(writer);
+
+        writer.println();
+
+        metrics.dump(writer);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         bindingCounter++;
@@ -205,8 +617,253 @@ public final class Aria2Service extends Service {
         return true;
     }
 
+    /**
+     * @return true, if at least one instance is running
+     */
     private boolean isRunning() {
-        return lastInvocation != null && lastInvocation.isRunning();
+        for (AriaRunnable invocation : invocations.values()) {
+            if (invocation.isRunning()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isRunning(String key) {
+        final AriaRunnable invocation = invocations.get(key);
+
+        return invocation != null && invocation.isRunning();
+    }
+
+    /**
+     * @return true, if at least one instance responds to RPC
+     */
+    private boolean isReady() {
+        for (AriaRunnable invocation : invocations.values()) {
+            if (invocation.isRunning() && invocation.ready) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isReady(String key) {
+        final AriaRunnable invocation = invocations.get(key);
+
+        return invocation != null && invocation.isRunning() && invocation.ready;
+    }
+
+    /**
+     * @return the client, connected to running aria2 instance or {@code null}
+     */
+    @Nullable RpcClient getRpcClient(String key) {
+        final AriaRunnable invocation = invocations.get(key);
+
+        return invocation == null || !invocation.isRunning() ? null : invocation.rpc;
+    }
+
+    // called on the main thread
+    private void startSampling(AriaRunnable invocation) {
+        if (!invocation.isRunning() || invocation.sampler != null) {
+            return;
+        }
+
+        final StatSampler sampler = new StatSampler(this, mainHandler, invocation.rpc, invocation.readout);
+        sampler.addListener(this::onStat);
+        sampler.addListener(invocation.sessionKeeper);
+        sampler.addListener(invocation.locks);
+        sampler.addListener(metrics);
+        invocation.downloadListeners.add(sampler);
+
+        final SpaceWatchdog watchdog = new SpaceWatchdog(this, mainHandler, invocation.arbiter,
+                invocation.properties.sessionDir);
+        sampler.addListener(watchdog);
+
+        sampler.start();
+        watchdog.start();
+
+        invocation.sampler = sampler;
+        invocation.watchdog = watchdog;
+    }
+
+    // called on the main thread
+    private void stopSampling(AriaRunnable invocation) {
+        final StatSampler sampler = invocation.sampler;
+
+        if (invocation.watchdog != null) {
+            invocation.watchdog.stop();
+            invocation.watchdog = null;
+        }
+
+        if (sampler != null) {
+            invocation.sampler = null;
+
+            invocation.downloadListeners.remove(sampler);
+            sampler.stop();
+        }
+    }
+
+    private void onStat(StatSampler sampler, GlobalStat stat) {
+        if (foreground) {
+            statusNotifier.update(getAggregateStat());
+        }
+    }
+
+    // called on the main thread
+    private GlobalStat getAggregateStat() {
+        GlobalStat total = GlobalStat.EMPTY;
+
+        for (AriaRunnable invocation : invocations.values()) {
+            final StatSampler sampler = invocation.sampler;
+
+            if (sampler != null) {
+                total = total.plus(sampler.getLast());
+            }
+        }
+
+        return total;
+    }
+
+    // called on the main thread
+    private void onInstanceReady(AriaRunnable invocation) {
+        if (!invocation.isRunning()) {
+            return;
+        }
+
+        applySchedule(invocation, scheduler.getState());
+        applyGovernor(invocation, governor.getLevel());
+
+        invocation.arbiter.start();
+
+        supervisor.watch(invocation.properties.instanceKey, invocation.rpc, () -> onInstanceHung(invocation));
+
+        if (Config.DEFAULT_INSTANCE.equals(invocation.properties.instanceKey)) {
+            flushQueue(invocation.rpc);
+        }
+
+        rescheduleCheck();
+    }
+
+    private void flushQueue(RpcClient rpc) {
+        final DownloadQueue queue = new DownloadQueue(this);
+
+        if (rpc == null || queue.isEmpty()) {
+            return;
+        }
+
+        new Thread(() -> queue.flush(rpc), "aria2 queue flush").start();
+    }
+
+    private void onScheduleStateChanged(ScheduleRule.State state) {
+        Log.d(TAG, "Schedule state: " + state);
+
+        for (AriaRunnable invocation : invocations.values()) {
+            if (invocation.isRunning() && invocation.ready) {
+                applySchedule(invocation, state);
+            }
+        }
+
+        rescheduleCheck();
+    }
+
+    // called on the main thread
+    private void applySchedule(AriaRunnable invocation, ScheduleRule.State state) {
+        final ScheduleRule rule = ScheduleRule.select(invocation.rules, state);
+
+        if (rule != invocation.rule) {
+            Log.i(TAG, invocation.properties.instanceKey + " follows \"" + rule + '"');
+
+            invocation.rule = rule;
+        }
+
+        final OptionArbiter arbiter = invocation.arbiter;
+
+        arbiter.setLimit(OptionArbiter.LAYER_SCHEDULE, OptionArbiter.DOWNLOAD_LIMIT, rule.downloadLimit);
+        arbiter.setLimit(OptionArbiter.LAYER_SCHEDULE, OptionArbiter.UPLOAD_LIMIT, rule.uploadLimit);
+        arbiter.setPaused(OptionArbiter.LAYER_SCHEDULE, rule.action == ScheduleRule.ACTION_PAUSE);
+    }
+
+    private void onGovernorLevelChanged(int level) {
+        for (AriaRunnable invocation : invocations.values()) {
+            if (invocation.isRunning() && invocation.ready) {
+                applyGovernor(invocation, level);
+            }
+        }
+    }
+
+    // called on the main thread
+    private void applyGovernor(AriaRunnable invocation, int level) {
+        final OptionArbiter arbiter = invocation.arbiter;
+
+        arbiter.setLimit(OptionArbiter.LAYER_GOVERNOR, OptionArbiter.DOWNLOAD_LIMIT,
+                ResourceGovernor.getDownloadLimit(level));
+        arbiter.setLimit(OptionArbiter.LAYER_GOVERNOR, OptionArbiter.CONCURRENT_DOWNLOADS,
+                ResourceGovernor.getConcurrentDownloads(level));
+    }
+
+    // wake up at the nearest edge of time window among all running instances
+    private void rescheduleCheck() {
+        final Calendar now = Calendar.getInstance();
+
+        long delay = -1;
+
+        for (AriaRunnable invocation : invocations.values()) {
+            if (!invocation.isRunning()) continue;
+
+            final long untilBoundary = ScheduleRule.untilNextBoundary(invocation.rules, now);
+
+            if (untilBoundary >= 0 && (delay < 0 || untilBoundary < delay)) {
+                delay = untilBoundary;
+            }
+        }
+
+        scheduler.setNextCheck(delay);
+    }
+
+    private static List<ScheduleRule> parseSchedule(Config config) {
+        try {
+            return ScheduleRule.parseAll(config.schedule);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Ignoring bad schedule of " + config.instanceKey + ": " + e.getMessage());
+
+            return Collections.emptyList();
+        }
+    }
+
+    void addDownloadListener(DownloadListener listener) {
+        downloadListeners.add(listener);
+    }
+
+    void removeDownloadListener(DownloadListener listener) {
+        downloadListeners.remove(listener);
+    }
+
+    // called on the event reader thread of the instance
+    private void dispatchDownloadEvent(AriaRunnable invocation, int event, String gid) {
+        for (DownloadListener listener : invocation.downloadListeners) {
+            listener.onDownloadEvent(event, gid);
+        }
+
+        for (DownloadListener listener : downloadListeners) {
+            listener.onDownloadEvent(event, gid);
+        }
+
+        synchronized (downloadCallbacks) {
+            final int count = downloadCallbacks.beginBroadcast();
+            try {
+                for (int i = 0; i < count; ++i) {
+                    try {
+                        downloadCallbacks.getBroadcastItem(i).onDownloadEvent(event, gid);
+                    } catch (RemoteException e) {
+                        // RemoteCallbackList takes care of dead clients
+                    }
+                }
+            } finally {
+                downloadCallbacks.finishBroadcast();
+            }
+        }
     }
 
     private void sendResult(boolean state) {
@@ -232,10 +889,17 @@ public final class Aria2Service extends Service {
     private void updateNf() {
         if (bindingCounter == 0) {
             if (isRunning() && !foreground) {
-                startForeground(-1, persistentNf);
+                startForeground(NF_ID_PERSISTENT, persistentNf);
 
                 foreground = true;
 
+                statusNotifier.reset();
+
+                final GlobalStat stat = getAggregateStat();
+                if (stat != GlobalStat.EMPTY) {
+                    statusNotifier.update(stat);
+                }
+
                 NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 
                 nm.cancel(R.id.nf_status);
@@ -244,6 +908,8 @@ public final class Aria2Service extends Service {
             stopForeground(true);
 
             foreground = false;
+
+            statusNotifier.reset();
         }
     }
 
@@ -262,36 +928,207 @@ public final class Aria2Service extends Service {
         public boolean isRunning() throws RemoteException {
             return Aria2Service.this.isRunning();
         }
+
+        @Override
+        public boolean isReady() {
+            return Aria2Service.this.isReady();
+        }
+
+        @Override
+        public Bundle getStartupStats() {
+            return startupStats.toBundle();
+        }
+
+        @Override
+        public void registerCallback(IDownloadCallback callback) {
+            if (callback != null) {
+                downloadCallbacks.register(callback);
+            }
+        }
+
+        @Override
+        public void unregisterCallback(IDownloadCallback callback) {
+            if (callback != null) {
+                downloadCallbacks.unregister(callback);
+            }
+        }
+
+        @Override
+        public String[] getInstances() {
+            return invocations.keySet().toArray(new String[0]);
+        }
+
+        @Override
+        public boolean isInstanceRunning(String instance) {
+            return Aria2Service.this.isRunning(instance);
+        }
+
+        @Override
+        public boolean isInstanceReady(String instance) {
+            return Aria2Service.this.isReady(instance);
+        }
+
+        @Override
+        public void askInstanceToStop(String instance) {
+            stopAria2(instance);
+        }
+
+        @Override
+        public int getInstancePort(String instance) {
+            final AriaRunnable invocation = invocations.get(instance);
+
+            return invocation == null ? -1 : invocation.properties.rpcPort;
+        }
+
+        @Override
+        public int getWebUiPort() {
+            final WebUiServer server = webUiServer;
+
+            return server == null ? -1 : server.getPort();
+        }
+
+        @Override
+        public OutputChunk getRecentOutput(long offset) {
+            return getInstanceOutput(Config.DEFAULT_INSTANCE, offset);
+        }
+
+        @Override
+        public OutputChunk getInstanceOutput(String instance, long offset) {
+            // output of stopped instance is still available until the next start
+            final AriaRunnable invocation = invocations.get(instance);
+
+            if (invocation == null) {
+                return null;
+            }
+
+            final OutputRing output = invocation.output;
+
+            final byte[] buffer = new byte[(int) Math.min(MAX_OUTPUT_CHUNK,
+                    Math.max(0, output.getWritten() - Math.max(offset, output.getOldest())))];
+
+            final long[] position = new long[1];
+
+            final int count = output.read(offset, buffer, position);
+
+            return new OutputChunk(position[0], buffer, count);
+        }
+
+        @Override
+        public StatusSnapshot getStatusSnapshot(String instance, long knownSequence) {
+            final AriaRunnable invocation = invocations.get(instance);
+
+            if (invocation == null || !invocation.isRunning() || !invocation.ready) {
+                return null;
+            }
+
+            final SnapshotSource snapshots = invocation.snapshots;
+
+            return snapshots == null ? null : snapshots.get(knownSequence);
+        }
+
+        @Override
+        public String getWebUiUrl() {
+            final WebUiServer server = webUiServer;
+
+            return server == null ? null : server.getUrl();
+        }
     }
 
     private final class AriaRunnable implements Runnable {
-        private final Config properties;
+        // replaced, when changes are applied without restart
+        private volatile Config properties;
         private final boolean delegateDisplay;
-        private final int startId;
+        private final boolean onlyIfPending;
+        private final String diskCache;
+
+        // listeners, interested in this instance only
+        private final List<DownloadListener> downloadListeners = new CopyOnWriteArrayList<>();
 
-        // accessed from the bg thread only
-        private long startupTime;
+        // accessed from the bg thread and the probe thread, which it starts
+        private long launchTime;
+        private long spawnTime;
 
         // accessed from the main thread only
         private boolean killedForcefully;
+
+        // when the first SIGINT was sent, 0 if it was not
+        private volatile long stopRequestedAt;
         private boolean warnedOnce;
 
+        // set on the main thread, when aria2 is stopped for failing health checks
+        private volatile boolean hung;
+
+        // decided on the bg thread, when aria2 exits, -1 if it should not be restarted
+        private volatile long restartDelay = -1;
+
         // accessed from both
         private volatile int pid;
+        private volatile RpcClient rpc;
+        private EventStream events;
+        private volatile boolean ready;
+        private volatile boolean exited;
+        private volatile boolean finished;
+
+        // created before sampling starts, used from any thread
+        private ActivityLocks locks;
+
+        // accessed from the main thread only
+        private StatSampler sampler;
+        private SpaceWatchdog watchdog;
+        private ScheduleRule rule;
+
+        private volatile List<ScheduleRule> rules;
+
+        // created before RPC becomes available, used from the main thread
+        private OptionArbiter arbiter;
+
+        // created before sampling starts, used from both
+        private SessionKeeper sessionKeeper;
 
-        public AriaRunnable(Config properties, int startId) {
+        // used from binder threads
+        private volatile SnapshotSource snapshots;
+
+        // written by the output consumer thread, read from binder threads
+        private final OutputRing output = new OutputRing(OUTPUT_RING_SIZE);
+
+        // progress, scraped from console readout, complements RPC; while the output is shown by
+        // the terminal emulator, it is only fed after the terminal goes away
+        private final ReadoutParser readout = new ReadoutParser();
+
+        public AriaRunnable(Config properties, boolean onlyIfPending, @Nullable String diskCache) {
             this.properties = properties;
-            this.startId = startId;
+            this.onlyIfPending = onlyIfPending;
+            this.diskCache = diskCache;
 
             delegateDisplay = properties.useATE;
+
+            rules = parseSchedule(properties);
         }
 
         public void run() {
-            startupTime = System.currentTimeMillis();
+            launchTime = SystemClock.elapsedRealtime();
+
+            if (onlyIfPending && !hasPendingDownloads()) {
+                Log.i(TAG, "Nothing to download, not starting aria2 " + properties.instanceKey);
+
+                sendResult(isRunningExceptThis());
+
+                finished = true;
+
+                mainHandler.post(() -> onInstanceFinished(this));
+
+                return;
+            }
+
+            final int expectedQueue = countQueued();
 
             final File aria2dir = getFilesDir();
             final File ptmxFile = new File("/dev/ptmx");
 
+            if (properties.generatedConfFile != null) {
+                writeConfFile();
+            }
+
             try (ParcelFileDescriptor ptmx = ParcelFileDescriptor.open(ptmxFile, ParcelFileDescriptor.MODE_READ_WRITE)) {
                 final TermExec pBuilder = new TermExec(properties.toCommand());
 
@@ -303,6 +1140,13 @@ public final class Aria2Service extends Service {
                     pBuilder.command().add("--interface=" + properties.networkInterface);
                 }
 
+                // the system is short on memory right now, and this can not be changed later;
+                // the command line would override the user's choice, made in conf file
+                if (diskCache != null && !properties.globalOptions.containsKey("disk-cache")
+                        && !ConfFile.read(properties.configFile).containsKey("disk-cache")) {
+                    pBuilder.command().add("--disk-cache=" + diskCache);
+                }
+
                 Log.i(TAG, Arrays.toString(pBuilder.command().toArray()));
 
                 pid = pBuilder.start(ptmx);
@@ -310,24 +1154,66 @@ public final class Aria2Service extends Service {
                 if (pid <= 1)
                     return;
 
-                final PowerManager.WakeLock lock = takeLock(properties.takeWakelock);
-                try {
-                    sendResult(true);
+                spawnTime = SystemClock.elapsedRealtime() - launchTime;
+
+                rpc = new RpcClient(properties.rpcPort, properties.secret);
+                rpc.setMonitor(metrics);
+
+                arbiter = new OptionArbiter(mainHandler, rpc,
+                        new File(properties.liveSessionFile.getPath() + ".held"), properties.globalOptions);
+                downloadListeners.add(arbiter);
+
+                // aria2 does not require the secret for WebSocket notifications
+                events = new EventStream(properties.rpcPort, (e, gid) -> dispatchDownloadEvent(this, e, gid));
+                events.start();
+
+                sessionKeeper = new SessionKeeper(rpc, properties.liveSessionFile, properties.sessionFile);
+                downloadListeners.add(sessionKeeper);
+                sessionKeeper.start();
+
+                snapshots = new SnapshotSource(rpc);
+
+                locks = new ActivityLocks(getApplicationContext(), mainHandler, properties.instanceKey,
+                        properties.takeWakelock, properties.lockGracePeriod);
+                downloadListeners.add(locks);
 
+                // aria2 is busy loading the session
+                locks.touch();
+                try {
                     exitHandler.post(Aria2Service.this::updateNf);
 
+                    mainHandler.post(() -> startSampling(this));
+
                     final Thread slurper = new Thread(new ProcessOutputHandler(getApplicationContext(), ptmx,
-                            delegateDisplay, properties.showOutput), "aria2 output consumer");
+                            output, readout, delegateDisplay, properties.showOutput), "aria2 output consumer");
 
                     slurper.start();
 
+                    final Thread probe = new Thread(() -> probe(expectedQueue), "aria2 readiness probe");
+
+                    probe.start();
+
                     final int resultCode = TermExec.waitFor(pid);
 
+                    exited = true;
+
+                    recordExit(resultCode);
+
+                    final long uptime = SystemClock.elapsedRealtime() - launchTime;
+                    final int reason = getExitReason();
+
+                    runHistory.record(properties.instanceKey, System.currentTimeMillis() - uptime, uptime,
+                            resultCode, reason);
+
+                    restartDelay = supervisor.onExit(properties.instanceKey, reason, resultCode, uptime);
+
+                    probe.interrupt();
                     slurper.interrupt();
 
-                    sendResult(false);
+                    sendResult(isRunningExceptThis());
 
-                    if (properties.showStoppedNf) {
+                    // the user will hear about it, if restart does not help
+                    if (properties.showStoppedNf && restartDelay < 0) {
                         final Intent nfIntent = new Intent(ACTION_NF_STOPPED)
                                 .setClassName(getPackageName(), "net.sf.aria2.PrivateReceiver")
                                 .putExtra(EXTRA_EXIT_CODE, resultCode)
@@ -336,7 +1222,22 @@ public final class Aria2Service extends Service {
                         sendBroadcast(nfIntent);
                     }
                 } finally {
-                    releaseLock(lock);
+                    locks.close();
+                    downloadListeners.remove(locks);
+
+                    mainHandler.post(() -> stopSampling(this));
+                    mainHandler.post(arbiter::stop);
+
+                    downloadListeners.remove(sessionKeeper);
+                    downloadListeners.remove(arbiter);
+
+                    // aria2 has saved the session on exit
+                    sessionKeeper.finish();
+
+                    snapshots.close();
+
+                    events.close();
+                    rpc.close();
                 }
             }
             catch (IOException tooBad) {
@@ -344,40 +1245,203 @@ public final class Aria2Service extends Service {
             } finally {
                 pid = -1;
 
-                stopSelf(startId);
+                finished = true;
+
+                mainHandler.post(() -> onInstanceFinished(this));
             }
         }
 
-        private PowerManager.WakeLock takeLock(boolean locksEnabled) {
-            if (locksEnabled) {
+        // called on the bg thread
+        private void recordExit(int resultCode) {
+            metrics.recordExit(resultCode);
+
+            final long requestedAt = stopRequestedAt;
+
+            if (requestedAt == 0) {
+                return;
+            }
+
+            final long latency = SystemClock.elapsedRealtime() - requestedAt;
+
+            if (killedForcefully) {
+                metrics.increment(ServiceMetrics.STOPS_SIGKILL);
+                metrics.record(ServiceMetrics.STOP_SIGKILL, latency);
+            } else {
+                metrics.increment(ServiceMetrics.STOPS_SIGINT);
+                metrics.record(ServiceMetrics.STOP_SIGINT, latency);
+            }
+        }
+
+        private int getExitReason() {
+            if (hung) {
+                return RunHistory.REASON_HUNG;
+            }
+
+            if (stopRequestedAt != 0) {
+                return RunHistory.REASON_STOPPED;
+            }
+
+            return ready ? RunHistory.REASON_EXITED : RunHistory.REASON_NOT_READY;
+        }
+
+        private boolean isRunningExceptThis() {
+            for (AriaRunnable other : invocations.values()) {
+                if (other != this && other.isRunning()) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        // called on the probe thread
+        private void probe(int expectedQueue) {
+            final String version = awaitListening();
+
+            if (version == null) {
+                return;
+            }
+
+            final long listenTime = SystemClock.elapsedRealtime() - launchTime;
+
+            metrics.record(ServiceMetrics.TIME_TO_READY, listenTime);
+
+            ready = true;
+
+            sendResult(true);
+
+            mainHandler.post(() -> onInstanceReady(this));
+
+            if (!awaitSession(expectedQueue)) {
+                return;
+            }
+
+            final long sessionTime = SystemClock.elapsedRealtime() - launchTime;
+
+            startupStats.record(version, spawnTime, listenTime, sessionTime);
+        }
+
+        /**
+         * @return aria2 version or null if aria2 exited or did not start listening in time
+         */
+        private String awaitListening() {
+            final long deadline = SystemClock.elapsedRealtime() + READY_TIMEOUT;
+
+            long delay = PROBE_MIN_DELAY;
+
+            while (!exited) {
                 try {
-                    final PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+                    final JSONObject info = rpc.call(PROBE_CALL_TIMEOUT, "aria2.getVersion")
+                            .getObject(PROBE_CALL_TIMEOUT);
+
+                    return info.optString("version", "unknown");
+                } catch (RpcException e) {
+                    if (e.isFault()) {
+                        // aria2 is listening, but does not like us (e.g. the secret is wrong)
+                        return "unknown";
+                    }
+                }
 
-                    PowerManager.WakeLock lock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "aria2:newWakeLock");
+                if (SystemClock.elapsedRealtime() + delay > deadline) {
+                    Log.w(TAG, "aria2 did not start listening in " + READY_TIMEOUT + "ms");
 
-                    lock.acquire();
+                    return null;
+                }
 
-                    return lock;
-                } catch (RuntimeException e) {
-                    e.printStackTrace();
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return null;
                 }
+
+                delay = Math.min(delay * 2, PROBE_MAX_DELAY);
             }
 
             return null;
         }
 
-        private void releaseLock(PowerManager.WakeLock lock) {
-            if (lock == null) return;
+        /**
+         * Wait until the queue, reported by aria2, is as large as the session file
+         */
+        private boolean awaitSession(int expectedQueue) {
+            final long deadline = SystemClock.elapsedRealtime() + SESSION_TIMEOUT;
+
+            long delay = PROBE_MIN_DELAY;
+
+            while (!exited && expectedQueue != 0) {
+                try {
+                    final GlobalStat stat = GlobalStat.parse(rpc.call(PROBE_CALL_TIMEOUT, "aria2.getGlobalStat")
+                            .getObject(PROBE_CALL_TIMEOUT), null);
+
+                    if (stat.numActive + stat.numWaiting + stat.numStopped >= expectedQueue) {
+                        break;
+                    }
+                } catch (RpcException e) {
+                    // try again
+                }
+
+                if (SystemClock.elapsedRealtime() + delay > deadline) {
+                    Log.w(TAG, "aria2 did not load " + expectedQueue + " session entries in " + SESSION_TIMEOUT + "ms");
+
+                    return false;
+                }
+
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+
+                delay = Math.min(delay * 2, PROBE_MAX_DELAY);
+            }
+
+            return !exited;
+        }
+
+        private void writeConfFile() {
+            final DevicePreset preset = DevicePreset.probe(Aria2Service.this, properties.sessionDir);
 
             try {
-                lock.release();
-            } catch (RuntimeException e) {
-                e.printStackTrace();
+                if (ConfFile.write(properties.generatedConfFile, preset.toOptions(), preset.toString(), properties.configFile)) {
+                    Log.i(TAG, "Updated " + properties.generatedConfFile + " for " + preset);
+                }
+            } catch (IOException e) {
+                // aria2 will use the user's file
+                Log.e(TAG, "Failed to write config", e);
+            }
+        }
+
+        private int countQueued() {
+            final File input = properties.getInputSessionFile();
+
+            if (input == null) {
+                return 0;
+            }
+
+            try {
+                return SessionReader.read(input).size();
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+
+        private boolean hasPendingDownloads() {
+            final File input = properties.getInputSessionFile();
+
+            if (input == null) {
+                return false;
+            }
+
+            try {
+                return SessionReader.read(input).hasPending();
+            } catch (IOException e) {
+                // let aria2 deal with it
+                return true;
             }
         }
 
         private boolean didSomeWork() {
-            return System.currentTimeMillis() - startupTime > 500;
+            return ready;
         }
 
         boolean isRunning() {
@@ -391,6 +1455,8 @@ public final class Aria2Service extends Service {
                 if (!warnedOnce) {
                     warnedOnce = true;
 
+                    stopRequestedAt = SystemClock.elapsedRealtime();
+
                     TermExec.sendSignal(pid, 2); // SIGINT
                 } else {
                     killedForcefully = true;
@@ -408,11 +1474,15 @@ class ProcessOutputHandler extends ContextWrapper implements Runnable {
     private final boolean delegateDisplay;
     private final boolean showMumblings;
     private final ParcelFileDescriptor ptmx;
+    private final OutputRing output;
+    private final ReadoutParser readout;
 
-    ProcessOutputHandler(Context ctx, ParcelFileDescriptor ptmx,
+    ProcessOutputHandler(Context ctx, ParcelFileDescriptor ptmx, OutputRing output, @Nullable ReadoutParser readout,
                          boolean delegateDisplay, boolean showMumblings) {
         super(ctx);
 
+        this.output = output;
+        this.readout = readout;
         this.delegateDisplay = delegateDisplay;
         this.showMumblings = showMumblings;
         this.ptmx = ptmx;
@@ -424,8 +1494,6 @@ class ProcessOutputHandler extends ContextWrapper implements Runnable {
 
         FileChannel fc = new ParcelFileDescriptor.AutoCloseInputStream(ptmx).getChannel();
             try {
-                final ByteBuffer lastLines = ByteBuffer.allocate(2048).order(ByteOrder.nativeOrder());
-
                 try {
                     final TermConnection conn;
 
@@ -439,27 +1507,51 @@ class ProcessOutputHandler extends ContextWrapper implements Runnable {
                 } finally {
                     String errHeader = null;
 
+                    // copies of the output for logcat are made only on demand
+                    final boolean verbose = Log.isLoggable(Config.TAG, Log.VERBOSE);
+                    final byte[] scratch = new byte[OutputRing.CHUNK];
+                    final long[] position = new long[1];
+                    long logged = 0;
+                    long parsed = 0;
+
                     try  {
                         int slurped;
                         do {
-                            slurped = fc.read(lastLines);
+                            slurped = output.fill(fc);
 
-                            if (lastLines.position() == lastLines.limit() || slurped == -1) {
-                                if (errHeader == null) {
-                                    errHeader = new String(lastLines.array(), lastLines.arrayOffset(), lastLines.position());
-                                }
+                            final long written = output.getWritten();
 
-                                Log.v(Config.TAG, new String(lastLines.array(), 0, lastLines.position()));
+                            if (errHeader == null && (written >= OutputRing.CHUNK || slurped == -1)) {
+                                errHeader = new String(scratch, 0, output.read(0, scratch, position));
                             }
 
-                            if (lastLines.position() == lastLines.limit()) {
-                                lastLines.clear();
+                            if (verbose && (written - logged >= OutputRing.CHUNK || slurped == -1)) {
+                                final int count = output.read(logged, scratch, position);
+
+                                Log.v(Config.TAG, new String(scratch, 0, count));
+
+                                logged = position[0] + count;
+                            }
+
+                            if (readout != null) {
+                                while (parsed < written) {
+                                    final int count = output.read(parsed, scratch, position);
+
+                                    if (position[0] != parsed) {
+                                        // fell behind the ring, part of the readout is gone
+                                        readout.reset();
+                                    }
+
+                                    readout.feed(scratch, 0, count);
+
+                                    parsed = position[0] + count;
+                                }
                             }
                         }
                         while (slurped != -1);
                     } finally {
                         if (errHeader == null) {
-                            errHeader = new String(lastLines.array(), 0, lastLines.position());
+                            errHeader = new String(scratch, 0, output.read(0, scratch, position));
                         }
 
                         if (showMumblings || (System.currentTimeMillis() - startupTime < 400)) {
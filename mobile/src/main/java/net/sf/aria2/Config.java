@@ -36,19 +36,22 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
 
+import net.sf.aria2.preset.ConfFile;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 final class Config implements Parcelable {
-    public static final String CONFIG_FILE_NAME = "aria2.txt";
+    public static final String CONFIG_FILE_NAME = ConfFile.USER_FILE_NAME;
 
     private static final String EXTRA_NAME = BuildConfig.APPLICATION_ID + ".config";
 
@@ -58,12 +61,25 @@ final class Config implements Parcelable {
 
     static final String TAG = "aria2j";
 
+    static final int DEFAULT_RPC_PORT = 6800;
+
+    /**
+     * Key of the instance, configured by app preferences
+     */
+    static final String DEFAULT_INSTANCE = "default";
+
     private final Set<String> singularOptions = new LinkedHashSet<>(20);
 
     File sessionDir;
     File sessionFile;
+    File liveSessionFile;
     File configFile;
 
+    /**
+     * Combination of device preset and {@link #configFile}, or null if presets are disabled
+     */
+    File generatedConfFile;
+
     String binaryName;
 
     String networkInterface;
@@ -76,17 +92,34 @@ final class Config implements Parcelable {
 
     boolean takeWakelock;
 
+    long lockGracePeriod = ActivityLocks.DEFAULT_GRACE_PERIOD;
+
     boolean listenAll;
 
     String secret;
 
+    int rpcPort = DEFAULT_RPC_PORT;
+
+    String instanceKey = DEFAULT_INSTANCE;
+
+    /**
+     * Schedule rules, one per line, see {@link net.sf.aria2.schedule.ScheduleRule}
+     */
+    String schedule = "";
+
+    /**
+     * aria2 options, passed on command line and updated via {@code aria2.changeGlobalOption}
+     */
+    final Map<String, String> globalOptions = new LinkedHashMap<>();
+
     public Config() {
         Collections.addAll(singularOptions,
                 "-c", "--enable-rpc", "--referer=*",
                 "--bt-save-metadata=true",
                 "--rpc-allow-origin-all=true",
                 "--rpc-save-upload-metadata=true",
-                "--save-session-interval=10");
+                // the session is saved on demand, see SessionKeeper
+                "--save-session-interval=0");
     }
 
     public Config setShowStoppedNf(boolean showStoppedNf) {
@@ -109,6 +142,11 @@ final class Config implements Parcelable {
         return this;
     }
 
+    public Config setLockGracePeriod(long lockGracePeriod) {
+        this.lockGracePeriod = lockGracePeriod;
+        return this;
+    }
+
     public Config setListenAll(boolean listenAll) {
         this.listenAll = listenAll;
         return this;
@@ -148,16 +186,68 @@ final class Config implements Parcelable {
         return this;
     }
 
+    /**
+     * @param liveSessionFile the file, where aria2 itself saves the session (on internal storage),
+     *                        {@link #sessionFile} receives a copy of it
+     */
+    public Config setLiveSessionFile(File liveSessionFile) {
+        //noinspection ResultOfMethodCallIgnored
+        liveSessionFile.getParentFile().mkdirs();
+
+        this.liveSessionFile = liveSessionFile;
+        return this;
+    }
+
+    public Config setGeneratedConfFile(File generatedConfFile) {
+        this.generatedConfFile = generatedConfFile;
+        return this;
+    }
+
     public Config setRPCSecret(String secret) {
         this.secret = secret;
         return this;
     }
 
+    public Config setRpcPort(int rpcPort) {
+        this.rpcPort = rpcPort;
+        return this;
+    }
+
+    public Config setInstanceKey(String instanceKey) {
+        this.instanceKey = instanceKey;
+        return this;
+    }
+
+    public Config setSchedule(String schedule) {
+        this.schedule = schedule == null ? "" : schedule;
+        return this;
+    }
+
+    public Config setGlobalOption(String name, String value) {
+        globalOptions.put(name, value);
+        return this;
+    }
+
     public Config setNetworkInterface(String networkInterface) {
         this.networkInterface = networkInterface;
         return this;
     }
 
+    /**
+     * @return the session file, aria2 will load on startup, or null
+     */
+    File getInputSessionFile() {
+        final boolean haveLive = liveSessionFile.exists();
+
+        if (!sessionFile.exists()) {
+            // the first copy did not happen yet or could not be written to the download dir
+            return haveLive ? liveSessionFile : null;
+        }
+
+        // the live copy is newer, if the copying did not happen (e.g. we were killed)
+        return haveLive && liveSessionFile.lastModified() > sessionFile.lastModified() ? liveSessionFile : sessionFile;
+    }
+
     @Override
     public String toString() {
         return Arrays.toString(toCommand());
@@ -170,27 +260,31 @@ final class Config implements Parcelable {
         options.addAll(singularOptions);
 
         Collections.addAll(options, "-d", sessionDir.getAbsolutePath());
-        Collections.addAll(options, "--save-session", sessionFile.getAbsolutePath());
-        Collections.addAll(options, "--conf-path", configFile.getAbsolutePath());
+        Collections.addAll(options, "--save-session", liveSessionFile.getAbsolutePath());
+        final File conf = generatedConfFile != null && generatedConfFile.exists() ? generatedConfFile : configFile;
+        Collections.addAll(options, "--conf-path", conf.getAbsolutePath());
 
-        if (sessionFile.exists()) {
-            Collections.addAll(options, "-i", sessionFile.getAbsolutePath());
+        final File input = getInputSessionFile();
+        if (input != null) {
+            Collections.addAll(options, "-i", input.getAbsolutePath());
         }
 
+        options.add("--rpc-listen-port=" + rpcPort);
+
         if (!TextUtils.isEmpty(secret)) {
             Collections.addAll(options, "--rpc-secret", secret);
         }
 
-        if (!useATE) {
-            options.add("--show-console-readout=false");
+        // scraped by ReadoutParser, when RPC does not respond
+        options.add("--show-console-readout=true");
 
+        if (!useATE) {
             options.add("--summary-interval=0");
 
             if (!showOutput) {
-                options.add("-q");
+                // -q would silence the readout too
+                options.add("--console-log-level=error");
             }
-        } else {
-            options.add("--show-console-readout=true");
         }
 
         if (showOutput || !useATE) {
@@ -201,6 +295,10 @@ final class Config implements Parcelable {
             options.add("--rpc-listen-all=true");
         }
 
+        for (Map.Entry<String, String> option : globalOptions.entrySet()) {
+            options.add("--" + option.getKey() + '=' + option.getValue());
+        }
+
         return options.toArray(new String[options.size()]);
     }
 
@@ -220,12 +318,23 @@ final class Config implements Parcelable {
         dest.writeInt(showOutput ? 1 : 0);
         dest.writeInt(takeWakelock ? 1 : 0);
         dest.writeInt(listenAll ? 1 : 0);
+        dest.writeInt(rpcPort);
+        dest.writeString(liveSessionFile.getAbsolutePath());
+        dest.writeString(instanceKey);
+        dest.writeString(schedule);
+        dest.writeLong(lockGracePeriod);
+        dest.writeString(generatedConfFile == null ? null : generatedConfFile.getAbsolutePath());
+        dest.writeInt(globalOptions.size());
+        for (Map.Entry<String, String> option : globalOptions.entrySet()) {
+            dest.writeString(option.getKey());
+            dest.writeString(option.getValue());
+        }
     }
 
     public static final Parcelable.Creator<Config> CREATOR = new Creator<Config>() {
         @Override
         public Config createFromParcel(Parcel source) {
-            return new Config()
+            final Config config = new Config()
                     .setProcessname(source.readString())
                     .setRPCSecret(source.readString())
                     .setSessionPath(new File(source.readString()))
@@ -234,7 +343,24 @@ final class Config implements Parcelable {
                     .setUseATE(source.readInt() != 0)
                     .setShowOutput(source.readInt() != 0)
                     .setTakeWakelock(source.readInt() != 0)
-                    .setListenAll(source.readInt() != 0);
+                    .setListenAll(source.readInt() != 0)
+                    .setRpcPort(source.readInt())
+                    .setLiveSessionFile(new File(source.readString()))
+                    .setInstanceKey(source.readString())
+                    .setSchedule(source.readString())
+                    .setLockGracePeriod(source.readLong());
+
+            final String generatedConf = source.readString();
+            if (generatedConf != null) {
+                config.setGeneratedConfFile(new File(generatedConf));
+            }
+
+            final int optionCount = source.readInt();
+            for (int i = 0; i < optionCount; ++i) {
+                config.setGlobalOption(source.readString(), source.readString());
+            }
+
+            return config;
         }
 
         @Override
@@ -42,20 +42,72 @@ import android.net.LinkProperties;
 import android.net.Network;
 import android.net.NetworkInfo;
 import android.os.Build;
+import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
+import android.util.Log;
 
+import net.sf.aria2.session.SessionReader;
 import net.sf.aria2.util.InterfaceUtil;
 
 import java.io.File;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static net.sf.aria2.Config.CONFIG_FILE_NAME;
 
 public final class ConfigBuilder extends ContextWrapper {
+    private static final String TAG = "ConfigBuilder";
+
+    /**
+     * Options, that aria2 accepts in {@code aria2.changeGlobalOption} (and we care about). Only
+     * these can be passed by other apps in {@link PublicReceiver#EXTRA_OPTIONS}
+     */
+    static final Set<String> RUNTIME_OPTIONS = new HashSet<>(Arrays.asList(
+            "max-overall-download-limit", "max-overall-upload-limit",
+            "max-concurrent-downloads", "max-connection-per-server",
+            "max-download-limit", "max-upload-limit", "split", "min-split-size",
+            "bt-max-peers", "bt-max-open-files", "bt-request-peer-speed-limit",
+            "seed-ratio", "seed-time", "lowest-speed-limit", "log-level",
+            "optimize-concurrent-downloads", "user-agent", "all-proxy", "no-proxy"));
+
+    /**
+     * Difference between the configuration of running aria2 and the desired one
+     */
+    static final class ConfigDiff {
+        /**
+         * Options to pass to {@code aria2.changeGlobalOption}
+         */
+        final Map<String, String> globalOptions = new LinkedHashMap<>();
+
+        /**
+         * Set, if the difference can not be applied without restarting aria2
+         */
+        boolean needsRestart;
+
+        /**
+         * Set, if only the app itself is affected (e.g. wakelock preference has changed)
+         */
+        boolean appOnly;
+
+        boolean isEmpty() {
+            return globalOptions.isEmpty() && !needsRestart;
+        }
+    }
+
+    // privileged ports are out of reach anyway
+    private static final int MIN_RPC_PORT = 1024;
+    private static final int MAX_RPC_PORT = 65535;
+
     private final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 
     private final ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
@@ -65,13 +117,36 @@ public final class ConfigBuilder extends ContextWrapper {
     }
 
     public @NonNull Intent constructServiceCommand(Intent serviceMoniker) throws Exception {
+        return constructServiceCommand(serviceMoniker, null);
+    }
+
+    /**
+     * @param overrides extras, describing an instance (see {@link PublicReceiver#EXTRA_INSTANCE}),
+     *                  or null to use app settings. Must only come from trusted callers
+     *                  (see {@link ControlReceiver})
+     */
+    public @NonNull Intent constructServiceCommand(Intent serviceMoniker, @Nullable Bundle overrides) throws Exception {
         final Config ariaConfig = new Config();
 
+        if (overrides == null) {
+            overrides = Bundle.EMPTY;
+        }
+
+        final String instance = overrides.getString(PublicReceiver.EXTRA_INSTANCE, Config.DEFAULT_INSTANCE);
+
+        if (!Config.DEFAULT_INSTANCE.equals(instance)) {
+            if (TextUtils.isEmpty(overrides.getString(PublicReceiver.EXTRA_DOWNLOAD_DIR))
+                    || !overrides.containsKey(PublicReceiver.EXTRA_RPC_PORT)) {
+                throw new Exception(getString(R.string.error_instance_incomplete, instance));
+            }
+        }
+
         final Intent intent = ariaConfig.putInto(serviceMoniker)
                 .putExtra(Config.EXTRA_INTERACTIVE, true)
                 .putExtra(Aria2Service.EXTRA_NOTIFICATION, NfBuilder.createSerivceNf(this));
 
-        final String downloadDir = prefs.getString(getString(R.string.download_dir_pref), "");
+        final String downloadDir = overrides.getString(PublicReceiver.EXTRA_DOWNLOAD_DIR,
+                prefs.getString(getString(R.string.download_dir_pref), ""));
         if (TextUtils.isEmpty(downloadDir))
             throw new Exception(getString(R.string.error_empty_dir));
 
@@ -81,7 +156,19 @@ public final class ConfigBuilder extends ContextWrapper {
             throw new Exception(getString(R.string.will_start_later));
         }
 
-        final String networkInterface = getPreferredInterface();
+        final boolean outsideAccess = prefs.getBoolean(getString(R.string.outside_access_pref), false);
+
+        final String networkInterface;
+        if (overrides.containsKey(PublicReceiver.EXTRA_INTERFACE)) {
+            networkInterface = overrides.getString(PublicReceiver.EXTRA_INTERFACE);
+
+            // exposing aria2 beyond the device is up to the user
+            if (!TextUtils.isEmpty(networkInterface) && !outsideAccess && !isLoopback(networkInterface)) {
+                throw new Exception(getString(R.string.error_instance_interface, networkInterface));
+            }
+        } else {
+            networkInterface = getPreferredInterface();
+        }
         if (!TextUtils.isEmpty(networkInterface)) {
             ariaConfig.setNetworkInterface(networkInterface);
         }
@@ -90,7 +177,7 @@ public final class ConfigBuilder extends ContextWrapper {
         binaryName = "lib" + binaryName + "_exec.so";
         binaryName = new File(getApplicationInfo().nativeLibraryDir, binaryName).getAbsolutePath();
 
-        final File sessionFile = new File(downloadDir, ".aria2.session.gz");
+        final File sessionFile = new File(downloadDir, SessionReader.DEFAULT_FILE_NAME);
 
         final boolean showNfs = prefs.getBoolean(getString(R.string.show_nf_stopped_pref), true);
 
@@ -100,22 +187,116 @@ public final class ConfigBuilder extends ContextWrapper {
 
         final boolean takeWakelock = prefs.getBoolean(getString(R.string.use_wakelock_pref), false);
 
-        final boolean outsideAccess = prefs.getBoolean(getString(R.string.outside_access_pref), false);
+        final long lockGracePeriod = Long.parseLong(prefs.getString(getString(R.string.lock_grace_pref),
+                String.valueOf(ActivityLocks.DEFAULT_GRACE_PERIOD)));
+
+        final String schedule = prefs.getString(getString(R.string.schedule_pref), "");
 
         final String secretToken = prefs.getString(getString(R.string.token_pref), getString(R.string.rpc_secret));
 
-        ariaConfig.setSessionPath(sessionFile)
+        // aria2 writes the session to internal storage, one file per download directory
+        final String liveSessionName = "session-" + Integer.toHexString(sessionFile.getAbsolutePath().hashCode());
+        final File liveSessionFile = new File(new File(getFilesDir(), "sessions"), liveSessionName);
+
+        if (prefs.getBoolean(getString(R.string.tune_pref), true)) {
+            final String confName = "aria2-" + Integer.toHexString(sessionFile.getAbsolutePath().hashCode()) + ".conf";
+            ariaConfig.setGeneratedConfFile(new File(new File(getFilesDir(), "conf"), confName));
+        }
+
+        final Bundle options = overrides.getBundle(PublicReceiver.EXTRA_OPTIONS);
+        if (options != null) {
+            for (String name : options.keySet()) {
+                // others can run commands (on-download-complete), expose RPC or read arbitrary files
+                if (!RUNTIME_OPTIONS.contains(name)) {
+                    Log.w(TAG, "Ignoring option " + name);
+                    continue;
+                }
+
+                ariaConfig.setGlobalOption(name, String.valueOf(options.get(name)));
+            }
+        }
+
+        final int rpcPort = overrides.getInt(PublicReceiver.EXTRA_RPC_PORT, Config.DEFAULT_RPC_PORT);
+        if (rpcPort < MIN_RPC_PORT || rpcPort > MAX_RPC_PORT) {
+            throw new Exception(getString(R.string.error_instance_port, rpcPort));
+        }
+
+        ariaConfig.setInstanceKey(instance)
+                .setRpcPort(rpcPort)
+                .setSessionPath(sessionFile)
+                .setLiveSessionFile(liveSessionFile)
                 .setProcessname(binaryName)
                 .setRPCSecret(secretToken)
                 .setShowStoppedNf(showNfs)
                 .setUseATE(useATE)
                 .setShowOutput(showOutput)
                 .setListenAll(outsideAccess)
-                .setTakeWakelock(takeWakelock);
+                .setSchedule(schedule)
+                .setTakeWakelock(takeWakelock)
+                .setLockGracePeriod(lockGracePeriod);
 
         return intent;
     }
 
+    static ConfigDiff diff(Config running, Config updated) {
+        final ConfigDiff diff = new ConfigDiff();
+
+        // neither of those can be changed without restarting aria2 (interface is bound on startup)
+        diff.needsRestart = !TextUtils.equals(running.instanceKey, updated.instanceKey)
+                || !TextUtils.equals(running.binaryName, updated.binaryName)
+                || !TextUtils.equals(running.secret, updated.secret)
+                || !TextUtils.equals(running.networkInterface, updated.networkInterface)
+                || !running.sessionFile.equals(updated.sessionFile)
+                || !running.liveSessionFile.equals(updated.liveSessionFile)
+                || !equals(running.generatedConfFile, updated.generatedConfFile)
+                || running.rpcPort != updated.rpcPort
+                || running.listenAll != updated.listenAll
+                || running.useATE != updated.useATE
+                || running.showOutput != updated.showOutput;
+
+        for (Map.Entry<String, String> option : updated.globalOptions.entrySet()) {
+            final String name = option.getKey();
+
+            if (TextUtils.equals(option.getValue(), running.globalOptions.get(name))) {
+                continue;
+            }
+
+            if (RUNTIME_OPTIONS.contains(name)) {
+                diff.globalOptions.put(name, option.getValue());
+            } else {
+                diff.needsRestart = true;
+            }
+        }
+
+        // there is no way to "unset" an option, the default is unknown
+        for (String name : running.globalOptions.keySet()) {
+            if (!updated.globalOptions.containsKey(name)) {
+                diff.needsRestart = true;
+            }
+        }
+
+        diff.appOnly = running.takeWakelock != updated.takeWakelock
+                || running.lockGracePeriod != updated.lockGracePeriod
+                || running.showStoppedNf != updated.showStoppedNf
+                || !TextUtils.equals(running.schedule, updated.schedule);
+
+        return diff;
+    }
+
+    private static boolean isLoopback(String ifName) {
+        final NetworkInterface resolved = InterfaceUtil.resolveInterfaceByName(ifName);
+
+        try {
+            return resolved != null && resolved.isLoopback();
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    private static boolean equals(@Nullable Object first, @Nullable Object second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
     public static final int NET_UNSPECIFIED = 0;
     public static final int NET_CUSTOM = 1;
     public static final int NET_ACTIVE = 2;
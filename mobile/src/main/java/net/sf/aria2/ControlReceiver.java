@@ -0,0 +1,14 @@
+package net.sf.aria2;
+
+/**
+ * Same as {@link PublicReceiver}, but honours the extras, that describe an instance
+ * ({@link #EXTRA_INSTANCE}, {@link #EXTRA_DOWNLOAD_DIR}, {@link #EXTRA_RPC_PORT},
+ * {@link #EXTRA_INTERFACE}) and {@link #EXTRA_OPTIONS}. The senders must hold
+ * {@code net.sf.aria2.permission.CONTROL}, which is enforced by the manifest.
+ */
+public final class ControlReceiver extends PublicReceiver {
+    @Override
+    boolean isTrusted() {
+        return true;
+    }
+}
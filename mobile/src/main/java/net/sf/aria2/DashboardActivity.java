@@ -0,0 +1,697 @@
+package net.sf.aria2;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.preference.PreferenceManager;
+import android.text.format.Formatter;
+import android.util.SparseBooleanArray;
+import android.view.ActionMode;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import net.sf.aria2.rpc.GlobalStat;
+import net.sf.aria2.rpc.RpcCall;
+import net.sf.aria2.rpc.RpcClient;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Native list of downloads, a lightweight alternative to the WebUI.
+ *
+ * The list may contain thousands of downloads, so only the part around visible rows is fetched:
+ * global stat provides the size of each section (active, waiting, stopped), and {@code tellWaiting}
+ * and {@code tellStopped} are asked for the visible range only, with just the keys, that are
+ * shown. Everything, including the names of downloads, not seen before, goes out in a single
+ * multicall per update. Rows, that did not change since last update, are not rebound.
+ */
+public final class DashboardActivity extends Activity implements ServiceConnection, AbsListView.MultiChoiceModeListener {
+    private static final long POLL_INTERVAL = 1000;
+    private static final long SCROLL_DELAY = 150;
+
+    // rows, fetched above and below the visible ones
+    private static final int MARGIN = 20;
+
+    // the names are fetched separately, because "files" and "bittorrent" can be huge
+    private static final int MAX_NAME_LOOKUPS = 16;
+    private static final int MAX_NAMES = 2048;
+
+    private static final String[] KEYS = {
+            "gid", "status", "totalLength", "completedLength", "downloadSpeed", "uploadSpeed",
+            "errorCode", "infoHash"
+    };
+
+    private static final String[] TORRENT_NAME_KEYS = { "bittorrent" };
+    private static final String[] FILE_NAME_KEYS = { "files" };
+
+    private final Handler handler = new Handler();
+    private final Runnable poller = this::poll;
+
+    private final Map<String, String> names = new HashMap<>();
+
+    private IAria2 serviceLink;
+    private RpcClient rpc;
+
+    private ListView listView;
+    private TextView emptyView;
+    private DownloadAdapter adapter;
+
+    private GlobalStat stat = GlobalStat.EMPTY;
+
+    // the rows at positions [windowStart, windowStart + window.length)
+    private Row[] window = new Row[0];
+    private int windowStart;
+
+    private boolean started;
+    private boolean polling;
+    private boolean repoll;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.activity_dashboard);
+
+        adapter = new DownloadAdapter(LayoutInflater.from(this));
+
+        emptyView = (TextView) findViewById(android.R.id.empty);
+
+        listView = (ListView) findViewById(android.R.id.list);
+        listView.setEmptyView(emptyView);
+        listView.setAdapter(adapter);
+        listView.setFastScrollEnabled(true);
+        listView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        listView.setMultiChoiceModeListener(this);
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisible, int visibleCount, int totalCount) {
+                if (started && (firstVisible < windowStart || firstVisible + visibleCount > windowStart + window.length)) {
+                    schedulePoll(SCROLL_DELAY);
+                }
+            }
+        });
+
+        bindService(new Intent(this, Aria2Service.class), this, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+
+        started = true;
+
+        schedulePoll(0);
+    }
+
+    @Override
+    protected void onStop() {
+        started = false;
+
+        handler.removeCallbacks(poller);
+
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        unbindService(this);
+
+        if (rpc != null) {
+            rpc.close();
+            rpc = null;
+        }
+
+        super.onDestroy();
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder service) {
+        serviceLink = IAria2.Stub.asInterface(service);
+
+        if (started) {
+            schedulePoll(0);
+        }
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        serviceLink = null;
+    }
+
+    private void schedulePoll(long delay) {
+        handler.removeCallbacks(poller);
+        handler.postDelayed(poller, delay);
+    }
+
+    private void poll() {
+        if (!started) return;
+
+        if (polling) {
+            repoll = true;
+            return;
+        }
+
+        final RpcClient client = obtainClient();
+
+        if (client == null) {
+            showStopped();
+            schedulePoll(POLL_INTERVAL);
+            return;
+        }
+
+        final int first = Math.max(0, listView.getFirstVisiblePosition() - MARGIN);
+        final int end = listView.getFirstVisiblePosition() + Math.max(listView.getChildCount(), MARGIN) + MARGIN;
+
+        // the sizes of sections are the ones, known from previous update; if they have changed,
+        // another update follows right away
+        final int waitingStart = stat.numActive;
+        final int stoppedStart = waitingStart + stat.numWaiting;
+
+        final List<RpcCall> calls = new ArrayList<>(4 + MAX_NAME_LOOKUPS);
+
+        final RpcCall statCall = client.prepare("aria2.getGlobalStat");
+        final RpcCall activeCall = client.prepare("aria2.tellActive", (Object) KEYS);
+
+        calls.add(statCall);
+        calls.add(activeCall);
+
+        final int waitingOffset = clamp(first - waitingStart);
+        final int stoppedOffset = clamp(first - stoppedStart);
+
+        final RpcCall waitingCall = client.prepare("aria2.tellWaiting",
+                waitingOffset, clamp(end - waitingStart - waitingOffset), KEYS);
+        final RpcCall stoppedCall = client.prepare("aria2.tellStopped",
+                stoppedOffset, clamp(end - stoppedStart - stoppedOffset), KEYS);
+
+        calls.add(waitingCall);
+        calls.add(stoppedCall);
+
+        if (names.size() > MAX_NAMES) {
+            names.clear();
+        }
+
+        final List<String> lookups = new ArrayList<>();
+
+        for (Row row : window) {
+            if (row != null && !names.containsKey(row.gid) && lookups.size() < MAX_NAME_LOOKUPS) {
+                lookups.add(row.gid);
+                calls.add(client.prepare("aria2.tellStatus", row.gid,
+                        row.infoHash != null ? TORRENT_NAME_KEYS : FILE_NAME_KEYS));
+            }
+        }
+
+        polling = true;
+
+        final Runnable onDone = () -> {
+            polling = false;
+
+            boolean again = repoll;
+            repoll = false;
+
+            if (rpc != client) {
+                // closed or replaced meanwhile
+            } else if (!(statCall.peek() instanceof JSONObject)) {
+                showStopped();
+            } else {
+                for (int i = 0; i < lookups.size(); ++i) {
+                    final String name = parseName(calls.get(4 + i).peek());
+
+                    // otherwise ask again later, e.g. once the torrent metadata is received
+                    if (name != null) {
+                        names.put(lookups.get(i), name);
+                    }
+                }
+
+                apply(first, end, waitingOffset, stoppedOffset, lookups, statCall, activeCall, waitingCall, stoppedCall);
+
+                // the window was fetched with outdated section sizes, the rows may be misplaced
+                again |= stat.numActive != waitingStart || stat.numActive + stat.numWaiting != stoppedStart;
+            }
+
+            if (started) {
+                schedulePoll(again ? 0 : POLL_INTERVAL);
+            }
+        };
+
+        whenAllDone(calls, onDone);
+
+        client.callAll(calls);
+    }
+
+    private void whenAllDone(List<RpcCall> calls, Runnable action) {
+        final int[] remaining = { calls.size() };
+
+        for (RpcCall call : calls) {
+            call.then(c -> {
+                synchronized (remaining) {
+                    if (--remaining[0] != 0) return;
+                }
+
+                handler.post(action);
+            });
+        }
+    }
+
+    private static int clamp(int offset) {
+        return Math.max(0, offset);
+    }
+
+    private RpcClient obtainClient() {
+        int port = -1;
+
+        if (serviceLink != null) {
+            try {
+                if (serviceLink.isInstanceReady(Config.DEFAULT_INSTANCE)) {
+                    port = serviceLink.getInstancePort(Config.DEFAULT_INSTANCE);
+                }
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (rpc != null && rpc.getPort() != port) {
+            rpc.close();
+            rpc = null;
+        }
+
+        if (rpc == null && port > 0) {
+            final String secret = PreferenceManager.getDefaultSharedPreferences(this)
+                    .getString(getString(R.string.token_pref), getString(R.string.rpc_secret));
+
+            rpc = new RpcClient(port, secret);
+        }
+
+        return rpc;
+    }
+
+    private void showStopped() {
+        emptyView.setText(R.string.dashboard_not_running);
+
+        if (stat.numActive + stat.numWaiting + stat.numStopped != 0) {
+            stat = GlobalStat.EMPTY;
+            window = new Row[0];
+
+            adapter.notifyDataSetChanged();
+        }
+    }
+
+    private void apply(int first, int end, int waitingOffset, int stoppedOffset, List<String> named,
+                       RpcCall statCall, RpcCall activeCall, RpcCall waitingCall, RpcCall stoppedCall) {
+        emptyView.setText(R.string.dashboard_empty);
+
+        final GlobalStat newStat = GlobalStat.parse((JSONObject) statCall.peek(), null);
+
+        final JSONArray active = asArray(activeCall.peek());
+        final JSONArray waiting = asArray(waitingCall.peek());
+        final JSONArray stopped = asArray(stoppedCall.peek());
+
+        // the lists are more recent, than the counts
+        final int numActive = active.length();
+        final int numWaiting = Math.max(newStat.numWaiting, waitingOffset + waiting.length());
+        final int numStopped = Math.max(newStat.numStopped, stoppedOffset + stopped.length());
+
+        final int total = numActive + numWaiting + numStopped;
+        final int windowEnd = Math.min(total, end);
+
+        final Row[] newWindow = new Row[Math.max(0, windowEnd - first)];
+
+        for (int position = first; position < windowEnd; ++position) {
+            final JSONObject item;
+
+            if (position < numActive) {
+                item = active.optJSONObject(position);
+            } else if (position < numActive + numWaiting) {
+                item = waiting.optJSONObject(position - numActive - waitingOffset);
+            } else {
+                item = stopped.optJSONObject(position - numActive - numWaiting - stoppedOffset);
+            }
+
+            newWindow[position - first] = item == null ? null : Row.parse(item);
+        }
+
+        final int oldTotal = stat.numActive + stat.numWaiting + stat.numStopped;
+        final Row[] oldWindow = window;
+        final int oldStart = windowStart;
+
+        stat = new GlobalStat(newStat.downloadSpeed, newStat.uploadSpeed, numActive, numWaiting, numStopped, 0);
+        window = newWindow;
+        windowStart = first;
+
+        if (total != oldTotal) {
+            adapter.notifyDataSetChanged();
+            return;
+        }
+
+        // the same number of rows, rebind the visible ones, that have changed
+        final int firstVisible = listView.getFirstVisiblePosition();
+
+        for (int i = 0; i < listView.getChildCount(); ++i) {
+            final int position = firstVisible + i;
+
+            final Row old = position >= oldStart && position < oldStart + oldWindow.length
+                    ? oldWindow[position - oldStart] : null;
+            final Row updated = adapter.getItem(position);
+
+            if (updated == null ? old != null : !updated.equals(old) || named.contains(updated.gid)) {
+                adapter.bind(listView.getChildAt(i), updated);
+            }
+        }
+    }
+
+    private static JSONArray asArray(Object result) {
+        return result instanceof JSONArray ? (JSONArray) result : new JSONArray();
+    }
+
+    private static String parseName(Object status) {
+        if (!(status instanceof JSONObject)) {
+            return null;
+        }
+
+        final JSONObject download = (JSONObject) status;
+
+        final JSONObject bittorrent = download.optJSONObject("bittorrent");
+
+        if (bittorrent != null) {
+            final JSONObject info = bittorrent.optJSONObject("info");
+
+            // magnet links have no info until metadata is downloaded
+            return info == null ? null : info.optString("name", null);
+        }
+
+        final JSONArray files = download.optJSONArray("files");
+
+        if (files == null || files.length() == 0) {
+            return null;
+        }
+
+        final JSONObject file = files.optJSONObject(0);
+
+        if (file == null) {
+            return null;
+        }
+
+        String path = file.optString("path");
+
+        if (path.isEmpty()) {
+            final JSONArray uris = file.optJSONArray("uris");
+            final JSONObject uri = uris == null ? null : uris.optJSONObject(0);
+
+            path = uri == null ? "" : uri.optString("uri");
+        }
+
+        final String name = path.substring(path.lastIndexOf('/') + 1);
+
+        return name.isEmpty() ? null : name;
+    }
+
+    @Override
+    public void onItemCheckedStateChanged(ActionMode mode, int position, long id, boolean checked) {
+        mode.setTitle(String.valueOf(listView.getCheckedItemCount()));
+    }
+
+    @Override
+    public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+        mode.getMenuInflater().inflate(R.menu.dashboard_actions, menu);
+
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+        return false;
+    }
+
+    @Override
+    public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+        final List<Row> selected = new ArrayList<>();
+
+        final SparseBooleanArray checked = listView.getCheckedItemPositions();
+
+        for (int i = 0; i < checked.size(); ++i) {
+            final Row row = checked.valueAt(i) ? adapter.getItem(checked.keyAt(i)) : null;
+
+            if (row != null) {
+                selected.add(row);
+            }
+        }
+
+        switch (item.getItemId()) {
+            case R.id.action_pause:
+            case R.id.action_resume:
+            case R.id.action_remove:
+                act(item.getItemId(), selected);
+
+                mode.finish();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void onDestroyActionMode(ActionMode mode) {
+    }
+
+    /**
+     * Apply the action to all selected downloads at once, in a single multicall
+     */
+    private void act(int action, List<Row> rows) {
+        final RpcClient client = rpc;
+
+        if (client == null || rows.isEmpty()) return;
+
+        final List<RpcCall> calls = new ArrayList<>(rows.size());
+
+        for (Row row : rows) {
+            final String method;
+
+            switch (action) {
+                case R.id.action_pause:
+                    method = row.isQueued() ? "aria2.pause" : null;
+                    break;
+                case R.id.action_resume:
+                    method = "paused".equals(row.status) ? "aria2.unpause" : null;
+                    break;
+                default:
+                    method = row.isQueued() || "paused".equals(row.status) ? "aria2.remove" : "aria2.removeDownloadResult";
+            }
+
+            if (method != null) {
+                calls.add(client.prepare(method, row.gid));
+            }
+        }
+
+        if (calls.isEmpty()) return;
+
+        whenAllDone(calls, () -> {
+            int failed = 0;
+
+            for (RpcCall call : calls) {
+                if (call.getError() != null) {
+                    ++failed;
+                }
+            }
+
+            if (failed != 0) {
+                Toast.makeText(this, getResources().getQuantityString(R.plurals.dashboard_failed, failed, failed),
+                        Toast.LENGTH_SHORT).show();
+            }
+
+            if (started) {
+                schedulePoll(0);
+            }
+        });
+
+        client.callAll(calls);
+    }
+
+    private static final class Row {
+        final String gid;
+        final String status;
+        final String infoHash;
+        final long totalLength;
+        final long completedLength;
+        final long downloadSpeed;
+        final long uploadSpeed;
+        final String errorCode;
+
+        Row(String gid, String status, String infoHash, long totalLength, long completedLength,
+            long downloadSpeed, long uploadSpeed, String errorCode) {
+            this.gid = gid;
+            this.status = status;
+            this.infoHash = infoHash;
+            this.totalLength = totalLength;
+            this.completedLength = completedLength;
+            this.downloadSpeed = downloadSpeed;
+            this.uploadSpeed = uploadSpeed;
+            this.errorCode = errorCode;
+        }
+
+        static Row parse(JSONObject item) {
+            return new Row(
+                    item.optString("gid"),
+                    item.optString("status"),
+                    item.optString("infoHash", null),
+                    GlobalStat.parseLong(item.optString("totalLength")),
+                    GlobalStat.parseLong(item.optString("completedLength")),
+                    GlobalStat.parseLong(item.optString("downloadSpeed")),
+                    GlobalStat.parseLong(item.optString("uploadSpeed")),
+                    item.optString("errorCode", null));
+        }
+
+        boolean isQueued() {
+            return "active".equals(status) || "waiting".equals(status);
+        }
+
+        int getProgress() {
+            return totalLength <= 0 ? 0 : (int) (completedLength * 1000 / totalLength);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Row)) return false;
+
+            final Row other = (Row) o;
+
+            return totalLength == other.totalLength
+                    && completedLength == other.completedLength
+                    && downloadSpeed == other.downloadSpeed
+                    && uploadSpeed == other.uploadSpeed
+                    && gid.equals(other.gid)
+                    && status.equals(other.status)
+                    && equal(errorCode, other.errorCode);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] { gid, status, completedLength });
+        }
+
+        private static boolean equal(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private static final class RowViews {
+        final TextView name;
+        final TextView details;
+        final ProgressBar progress;
+
+        RowViews(View view) {
+            name = (TextView) view.findViewById(R.id.download_name);
+            details = (TextView) view.findViewById(R.id.download_details);
+            progress = (ProgressBar) view.findViewById(R.id.download_progress);
+        }
+    }
+
+    private final class DownloadAdapter extends BaseAdapter {
+        private final LayoutInflater inflater;
+
+        DownloadAdapter(LayoutInflater inflater) {
+            this.inflater = inflater;
+        }
+
+        @Override
+        public int getCount() {
+            return stat.numActive + stat.numWaiting + stat.numStopped;
+        }
+
+        @Override
+        public Row getItem(int position) {
+            final int index = position - windowStart;
+
+            return index >= 0 && index < window.length ? window[index] : null;
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            final View view = convertView != null
+                    ? convertView
+                    : inflater.inflate(R.layout.dashboard_row, parent, false);
+
+            bind(view, getItem(position));
+
+            return view;
+        }
+
+        void bind(View view, Row row) {
+            RowViews views = (RowViews) view.getTag();
+
+            if (views == null) {
+                views = new RowViews(view);
+                view.setTag(views);
+            }
+
+            if (row == null) {
+                // not fetched yet
+                views.name.setText(null);
+                views.details.setText(null);
+                views.progress.setProgress(0);
+                return;
+            }
+
+            final String name = names.get(row.gid);
+
+            views.name.setText(name == null ? row.gid : name);
+            views.progress.setProgress(row.getProgress());
+            views.details.setText(describe(row));
+        }
+
+        private CharSequence describe(Row row) {
+            final Context context = DashboardActivity.this;
+
+            final String size = getString(R.string.dashboard_size,
+                    Formatter.formatShortFileSize(context, row.completedLength),
+                    Formatter.formatShortFileSize(context, row.totalLength));
+
+            switch (row.status) {
+                case "active":
+                    return getString(R.string.dashboard_active, size, getString(R.string.nf_speeds,
+                            Formatter.formatShortFileSize(context, row.downloadSpeed),
+                            Formatter.formatShortFileSize(context, row.uploadSpeed)));
+                case "waiting":
+                    return getString(R.string.dashboard_waiting, size);
+                case "paused":
+                    return getString(R.string.dashboard_paused, size);
+                case "complete":
+                    return getString(R.string.dashboard_complete, Formatter.formatShortFileSize(context, row.totalLength));
+                case "error":
+                    return getString(R.string.dashboard_error, row.errorCode);
+                default:
+                    return getString(R.string.dashboard_removed, size);
+            }
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package net.sf.aria2;
+
+import android.content.Context;
+import android.content.Intent;
+import android.util.Base64;
+import android.util.Base64OutputStream;
+import android.util.Log;
+
+import net.sf.aria2.rpc.RpcCall;
+import net.sf.aria2.rpc.RpcClient;
+import net.sf.aria2.rpc.RpcException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads, that were requested by other apps (or shared by user), but not yet handed over to
+ * aria2. They are kept in files, one file per request, so that nothing is lost, if aria2 takes
+ * a while to start or does not start at all (e.g. there is no network). The queue is flushed
+ * to the default instance as soon as it becomes ready, with all downloads added in a single
+ * multicall.
+ *
+ * Torrent files are stored encoded in base64 (the way {@code aria2.addTorrent} wants them),
+ * the encoding is done while copying, so the torrent is never held in memory in both forms.
+ */
+final class DownloadQueue {
+    private static final String TAG = "DownloadQueue";
+
+    private static final String DIR_NAME = "add-queue";
+
+    private static final String URIS_SUFFIX = ".uris";
+    private static final String TORRENT_SUFFIX = ".torrent64";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final long MAX_TORRENT = 16 * 1024 * 1024;
+
+    // the amount of base64 text, that is loaded into memory for single multicall
+    private static final long MAX_BATCH_BYTES = 8 * 1024 * 1024;
+
+    private static final long CALL_TIMEOUT = 30000;
+
+    private static final long STALE_AGE = 24 * 60 * 60000;
+
+    private static final String[] SCHEMES = { "http:", "https:", "ftp:", "sftp:", "magnet:" };
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // the queue is shared by binder threads, receivers and service threads of both processes,
+    // but only the aria2 process flushes it
+    private static final Object flushLock = new Object();
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    private final File dir;
+
+    DownloadQueue(Context context) {
+        this.dir = new File(context.getFilesDir(), DIR_NAME);
+    }
+
+    /**
+     * Start the default aria2 instance (if it is not running yet) and let it pick up the queue
+     */
+    static void requestFlush(Context context) throws Exception {
+        final ConfigBuilder builder = new ConfigBuilder(context);
+
+        final Intent serviceIntent = builder
+                .constructServiceCommand(new Intent(context, Aria2Service.class))
+                .setAction(PublicReceiver.INTENT_ADD_DOWNLOADS);
+
+        builder.startForegroundCompat(serviceIntent);
+    }
+
+    /**
+     * @return whether the URI is one of those, accepted by {@link #addUris}
+     */
+    static boolean isSupported(String uri) {
+        final String lowercase = uri.toLowerCase(Locale.ROOT);
+
+        for (String scheme : SCHEMES) {
+            if (lowercase.startsWith(scheme)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param uris URIs (HTTP(S), FTP, SFTP, magnet), each becomes a separate download
+     */
+    void addUris(Collection<String> uris) throws IOException {
+        if (uris.isEmpty()) return;
+
+        final File tmpFile = newTmpFile();
+
+        try (Writer writer = new FileWriter(tmpFile)) {
+            for (String uri : uris) {
+                writer.append(uri).append('\n');
+            }
+        }
+
+        commit(tmpFile, URIS_SUFFIX);
+    }
+
+    /**
+     * Copy torrent from stream, encoding it on the fly
+     */
+    void addTorrent(InputStream torrent) throws IOException {
+        final File tmpFile = newTmpFile();
+
+        long total = 0;
+
+        try (OutputStream out = new Base64OutputStream(new FileOutputStream(tmpFile), Base64.NO_WRAP)) {
+            final byte[] buffer = new byte[16 * 1024];
+
+            int read;
+            while ((read = torrent.read(buffer)) != -1) {
+                total += read;
+
+                if (total > MAX_TORRENT) {
+                    throw new IOException("Torrent file is too big");
+                }
+
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+
+            throw e;
+        }
+
+        if (total == 0) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+
+            throw new IOException("Torrent file is empty");
+        }
+
+        commit(tmpFile, TORRENT_SUFFIX);
+    }
+
+    private File newTmpFile() throws IOException {
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            throw new IOException("Failed to create " + dir);
+        }
+
+        // names sort in order of addition (within the same process, at least)
+        final String name = String.format("%013d-%05d-%d", System.currentTimeMillis(),
+                counter.incrementAndGet() % 100000, android.os.Process.myPid());
+
+        return new File(dir, name + TMP_SUFFIX);
+    }
+
+    private static void commit(File tmpFile, String suffix) throws IOException {
+        final String path = tmpFile.getPath();
+
+        final File target = new File(path.substring(0, path.length() - TMP_SUFFIX.length()) + suffix);
+
+        if (!tmpFile.renameTo(target)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+
+            throw new IOException("Failed to rename " + tmpFile);
+        }
+    }
+
+    boolean isEmpty() {
+        return listQueued().length == 0;
+    }
+
+    private File[] listQueued() {
+        final File[] files = dir.listFiles((d, name) -> name.endsWith(URIS_SUFFIX) || name.endsWith(TORRENT_SUFFIX));
+
+        if (files == null) {
+            return new File[0];
+        }
+
+        Arrays.sort(files);
+
+        return files;
+    }
+
+    /**
+     * Hand queued downloads over to aria2. Blocks until aria2 responds, must not be called on
+     * the main thread. Requests, that were rejected by aria2 (e.g. malformed URIs), are dropped,
+     * the ones, that failed to reach it, stay in the queue.
+     *
+     * @return the number of added downloads
+     */
+    int flush(RpcClient rpc) {
+        synchronized (flushLock) {
+            int added = 0;
+
+            removeStale();
+
+            File[] files;
+            while ((files = listQueued()).length != 0) {
+                final int result = flushBatch(rpc, files);
+
+                if (result < 0) {
+                    break;
+                }
+
+                added += result;
+
+                final File[] left = listQueued();
+
+                if (left.length != 0 && left[0].equals(files[0])) {
+                    Log.e(TAG, "Failed to remove " + files[0]);
+                    break;
+                }
+            }
+
+            return added;
+        }
+    }
+
+    /**
+     * @return the number of added downloads or -1, if aria2 could not be reached
+     */
+    private int flushBatch(RpcClient rpc, File[] files) {
+        final List<File> batchFiles = new ArrayList<>();
+        final List<List<String>> batchUris = new ArrayList<>();
+        final List<List<RpcCall>> batchCalls = new ArrayList<>();
+        final List<RpcCall> calls = new ArrayList<>();
+
+        long bytes = 0;
+
+        for (File file : files) {
+            if (!batchFiles.isEmpty() && bytes + file.length() > MAX_BATCH_BYTES) {
+                break;
+            }
+
+            final List<String> uris = new ArrayList<>();
+            final List<RpcCall> fileCalls = new ArrayList<>();
+
+            try {
+                if (file.getName().endsWith(TORRENT_SUFFIX)) {
+                    bytes += file.length();
+
+                    fileCalls.add(rpc.prepare("aria2.addTorrent", readFully(file)));
+                } else {
+                    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            line = line.trim();
+
+                            if (!line.isEmpty()) {
+                                uris.add(line);
+
+                                fileCalls.add(rpc.prepare("aria2.addUri", (Object) new String[] { line }));
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Dropping unreadable " + file, e);
+
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+
+                continue;
+            }
+
+            batchFiles.add(file);
+            batchUris.add(uris);
+            batchCalls.add(fileCalls);
+            calls.addAll(fileCalls);
+        }
+
+        if (calls.isEmpty()) {
+            // all files of the batch were empty or unreadable
+            for (File file : batchFiles) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+
+            return 0;
+        }
+
+        rpc.callAll(calls);
+
+        int added = 0;
+        boolean unreachable = false;
+
+        for (int i = 0; i < batchFiles.size(); ++i) {
+            final File file = batchFiles.get(i);
+            final List<String> uris = batchUris.get(i);
+            final List<RpcCall> fileCalls = batchCalls.get(i);
+
+            int failed = 0;
+
+            // URIs of the file, that did not reach aria2
+            final List<String> remaining = new ArrayList<>();
+
+            for (int j = 0; j < fileCalls.size(); ++j) {
+                try {
+                    fileCalls.get(j).get(CALL_TIMEOUT);
+
+                    ++added;
+                } catch (RpcException e) {
+                    if (e.isFault()) {
+                        Log.w(TAG, "aria2 rejected " + fileCalls.get(j) + ": " + e.getMessage());
+                    } else {
+                        ++failed;
+
+                        if (!uris.isEmpty()) {
+                            remaining.add(uris.get(j));
+                        }
+                    }
+                }
+            }
+
+            if (failed == 0) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            } else {
+                unreachable = true;
+
+                // don't add the same URIs twice
+                if (failed != fileCalls.size()) {
+                    rewrite(file, remaining);
+                }
+            }
+        }
+
+        Log.i(TAG, "Added " + added + " of " + calls.size() + " queued downloads");
+
+        return unreachable ? -1 : added;
+    }
+
+    /**
+     * Remove temporary files, left by interrupted additions
+     */
+    private void removeStale() {
+        final File[] files = dir.listFiles((d, name) -> name.endsWith(TMP_SUFFIX));
+
+        if (files == null) return;
+
+        final long threshold = System.currentTimeMillis() - STALE_AGE;
+
+        for (File file : files) {
+            if (file.lastModified() < threshold) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private void rewrite(File file, List<String> uris) {
+        final File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+
+        try {
+            try (Writer writer = new FileWriter(tmpFile)) {
+                for (String uri : uris) {
+                    writer.append(uri).append('\n');
+                }
+            }
+
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Failed to rename " + tmpFile);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String readFully(File file) throws IOException {
+        // base64 is ASCII, one char per byte
+        final char[] chars = new char[(int) file.length()];
+
+        int length = 0;
+
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), ASCII)) {
+            int read;
+            while (length < chars.length && (read = reader.read(chars, length, chars.length - length)) != -1) {
+                length += read;
+            }
+        }
+
+        return new String(chars, 0, length);
+    }
+}
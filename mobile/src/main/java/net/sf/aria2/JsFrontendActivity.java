@@ -1,9 +1,11 @@
 package net.sf.aria2;
 
-import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
@@ -11,36 +13,27 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.IBinder;
 import android.os.Parcelable;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
-import android.text.TextUtils;
 import android.view.View;
-import android.webkit.ClientCertRequest;
+import android.view.ViewGroup;
 import android.webkit.ConsoleMessage;
-import android.webkit.CookieManager;
 import android.webkit.CookieSyncManager;
 import android.webkit.ValueCallback;
 import android.webkit.WebChromeClient;
-import android.webkit.WebSettings;
 import android.webkit.WebView;
-import android.webkit.WebViewClient;
 import android.widget.Toast;
 
-import net.sf.aria2.util.WebUiExtractor;
-
-import java.io.File;
 import java.util.ArrayList;
 
 public final class JsFrontendActivity extends Activity {
-    private static final String START_PAGE = "file:///android_asset/webui-aria2/index.html";
-
     private ValueCallback uploadMessage;
 
-    private WebView webView;
+    private WebViewHolder holder;
 
     @Override
-    @SuppressWarnings("deprecation")
-    @SuppressLint("SetJavaScriptEnabled")
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
@@ -51,98 +44,63 @@ public final class JsFrontendActivity extends Activity {
                 getResources().getBoolean(R.bool.prefer_external_browser));
 
         if (externalFrontendMandated) {
-            final String dDir = prefs.getString(getString(R.string.download_dir_pref), "");
+            // the server picks a new port and path on each start, ask the service for them
+            bindService(new Intent(this, Aria2Service.class), new ServiceConnection() {
+                @Override
+                public void onServiceConnected(ComponentName name, IBinder service) {
+                    String url = null;
+                    try {
+                        url = IAria2.Stub.asInterface(service).getWebUiUrl();
+                    } catch (RemoteException e) {
+                        e.printStackTrace();
+                    }
 
-            if (TextUtils.isEmpty(dDir)) {
-                Toast.makeText(this, "Unable to start WebUI: set your aria2 directory first", Toast.LENGTH_SHORT).show();
-                finish();
-                return;
-            }
+                    unbindService(this);
 
-            final File uiDir = new File(dDir, WebUiExtractor.DIR_NAME);
+                    if (!isFinishing()) {
+                        openExternalFrontend(url);
+                    }
+                }
 
-            if (!uiDir.exists()) {
-                Toast.makeText(this, "WebUI directory '" + WebUiExtractor.DIR_NAME + "' not found in aria2 directory", Toast.LENGTH_SHORT).show();
-                finish();
-                return;
-            }
+                @Override
+                public void onServiceDisconnected(ComponentName name) {
+                }
+            }, Context.BIND_AUTO_CREATE);
+            return;
+        }
+
+        showWebView();
+    }
 
-            final Intent i = new Intent(Intent.ACTION_VIEW);
+    private void openExternalFrontend(String url) {
+        if (url != null) {
+            final Intent i = new Intent(Intent.ACTION_VIEW, Uri.parse(url));
             i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            i.setDataAndType(Uri.fromFile(new File(uiDir, "index.html")), "text/html");
 
             final PackageManager pm = getPackageManager();
 
-            if (pm.resolveActivity(i, PackageManager.MATCH_DEFAULT_ONLY) == null) {
-                Toast.makeText(this, "No browser supporting a file:// scheme found, falling back to WebView", Toast.LENGTH_SHORT).show();
-            } else {
+            if (pm.resolveActivity(i, PackageManager.MATCH_DEFAULT_ONLY) != null) {
                 startActivity(i);
                 finish();
                 return;
             }
-        }
 
-        if (Build.VERSION.SDK_INT <= 21) {
-            CookieSyncManager.createInstance(this);
+            Toast.makeText(this, "No web browsers found, falling back to WebView", Toast.LENGTH_SHORT).show();
         }
 
-        if (Build.VERSION.SDK_INT >= 12) {
-            CookieManager.setAcceptFileSchemeCookies(true);
-        }
+        showWebView();
 
-        final CookieManager cookieManager = CookieManager.getInstance();
-        cookieManager.setAcceptCookie(true);
+        // already started by now
+        holder.onVisible();
+    }
 
+    private void showWebView() {
         setContentView(R.layout.activity_js_frontend);
 
-        webView = (WebView) findViewById(R.id.uiCore);
+        holder = WebViewHolder.get(this);
 
-        if (Build.VERSION.SDK_INT >= 21) {
-            cookieManager.setAcceptThirdPartyCookies(webView, true);
-        }
-
-        final WebSettings config = webView.getSettings();
+        final WebView webView = holder.attach(this, (ViewGroup) findViewById(R.id.uiCore));
         webView.setWebChromeClient(new QuietChromeClient());
-        webView.setWebViewClient(new JsAwareWebViewClient());
-
-        config.setJavaScriptEnabled(true);
-        config.setAllowFileAccess(true);
-        config.setLoadsImagesAutomatically(true);
-
-        // apparently setting this to true prevents data: and some other uri types from working
-        config.setBlockNetworkImage(false);
-
-        config.setAppCacheEnabled(false);
-        config.setSavePassword(false);
-        config.setSaveFormData(false);
-        config.setDomStorageEnabled(false);
-        config.setGeolocationEnabled(false);
-        config.setSupportMultipleWindows(false);
-        config.setJavaScriptCanOpenWindowsAutomatically(false);
-        config.setCacheMode(WebSettings.LOAD_NO_CACHE);
-
-        if (Build.VERSION.SDK_INT >= 11) {
-            config.setAllowContentAccess(true);
-
-            if (Build.VERSION.SDK_INT >= 16) {
-                config.setAllowUniversalAccessFromFileURLs(true);
-                config.setAllowFileAccessFromFileURLs(true);
-
-                if (Build.VERSION.SDK_INT >= 17) {
-                    config.setMediaPlaybackRequiresUserGesture(true);
-
-                    if (Build.VERSION.SDK_INT >= 21) {
-                        config.setMixedContentMode(WebSettings.MIXED_CONTENT_NEVER_ALLOW);
-                    }
-                }
-            }
-        }
-
-        if (BuildConfig.DEBUG && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            WebView.setWebContentsDebuggingEnabled(true);
-        }
-
-        webView.loadUrl(START_PAGE);
     }
 
     @Override
@@ -152,10 +110,6 @@ public final class JsFrontendActivity extends Activity {
             CookieSyncManager.getInstance().stopSync();
         }
 
-        if (Build.VERSION.SDK_INT >= 11) {
-            webView.onPause();
-        }
-
         super.onPause();
     }
 
@@ -164,15 +118,38 @@ public final class JsFrontendActivity extends Activity {
     protected void onResume() {
         super.onResume();
 
-        if (Build.VERSION.SDK_INT >= 11) {
-            webView.onResume();
-        }
-
         if (Build.VERSION.SDK_INT < 21) {
             CookieSyncManager.getInstance().startSync();
         }
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+
+        if (holder != null) {
+            holder.onVisible();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        if (holder != null) {
+            holder.onHidden();
+        }
+
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (holder != null) {
+            holder.detach(this);
+        }
+
+        super.onDestroy();
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
@@ -344,52 +321,4 @@ public final class JsFrontendActivity extends Activity {
             throw new UnsupportedOperationException();
         }
     }
-
-    private final class JsAwareWebViewClient extends WebViewClient {
-        @Override
-        public void onReceivedClientCertRequest(WebView view, ClientCertRequest request) {
-            throw new UnsupportedOperationException();
-        }
-
-        @Override
-        public void onPageFinished(WebView view, String url) {
-            if (!START_PAGE.equals(url)) return;
-
-            final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(view.getContext());
-
-            final String authPref = prefs.getString("token", getString(R.string.rpc_secret));
-
-            final String config = "aria2authConfig.token = '"+ authPref + "';";
-
-            initializeConfig(view, config);
-        }
-
-        private void initializeConfig(WebView view, String expression) {
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.KITKAT) {
-                view.evaluateJavascript(expression, null);
-            } else {
-                view.loadUrl("javascript:" + expression);
-            }
-        }
-
-        @Override
-        public boolean shouldOverrideUrlLoading(WebView view, String url)
-        {
-            if (url.startsWith("file:")) {
-                return false;
-            }
-
-            final Intent i = new Intent(Intent.ACTION_VIEW, Uri.parse(url));
-            final PackageManager packageManager = getPackageManager();
-            if (i.resolveActivity(packageManager) != null) {
-                startActivity(i);
-            } else if (url.startsWith("http:") || url.startsWith("https:")) {
-                Toast.makeText(getApplicationContext(), "No web browsers found!", Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(getApplicationContext(), "None of installed applications can handle the link", Toast.LENGTH_SHORT).show();
-            }
-
-            return true;
-        }
-    }
 }
@@ -40,6 +40,7 @@ import android.preference.CheckBoxPreference;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceFragment;
+import android.preference.PreferenceManager;
 import android.preference.PreferenceScreen;
 import android.preference.SwitchPreference;
 import android.support.annotation.NonNull;
@@ -56,6 +57,10 @@ import net.sf.aria2.loader.ApplicationLoader;
 import net.sf.aria2.loader.DownloadDirLoader;
 import net.sf.aria2.loader.FrontendSetupLoader;
 import net.sf.aria2.loader.NetworkInterfaceLoader;
+import net.sf.aria2.loader.PresetLoader;
+import net.sf.aria2.loader.SessionLoader;
+import net.sf.aria2.schedule.ScheduleRule;
+import net.sf.aria2.session.SessionIndex;
 import net.sf.aria2.util.CalligraphyContextWrapper;
 import net.sf.aria2.util.CloseableHandler;
 import net.sf.aria2.util.SimpleResultReceiver;
@@ -63,7 +68,11 @@ import org.jraf.android.backport.switchwidget.TwoStatePreference;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static android.Manifest.permission.WAKE_LOCK;
 import static android.os.Build.VERSION_CODES.*;
@@ -73,6 +82,12 @@ public final class MainActivity extends PreferenceActivity {
     private String lastChosenFragment;
     private ServiceControl serviceControl;
 
+    // keys of preferences, that end up in Config
+    private Set<String> configPrefs;
+
+    // shared preferences hold their listeners weakly
+    private final SharedPreferences.OnSharedPreferenceChangeListener settingsListener = this::onSettingChanged;
+
     @Override
     public View onCreateView(View parent, String name, Context context, AttributeSet attrs) {
         return super.onCreateView(parent, name, context, attrs);
@@ -253,16 +268,45 @@ public final class MainActivity extends PreferenceActivity {
 
         if (Build.VERSION.SDK_INT < HONEYCOMB)
             serviceControl.start();
+
+        PreferenceManager.getDefaultSharedPreferences(this).registerOnSharedPreferenceChangeListener(settingsListener);
     }
 
     @Override
     protected void onStop() {
+        PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(settingsListener);
+
         if (Build.VERSION.SDK_INT < HONEYCOMB)
             serviceControl.stop();
 
         super.onStop();
     }
 
+    private void onSettingChanged(SharedPreferences prefs, String key) {
+        if (configPrefs == null) {
+            configPrefs = new HashSet<>(Arrays.asList(
+                    getString(R.string.download_dir_pref),
+                    getString(R.string.tune_pref),
+                    getString(R.string.show_output_pref),
+                    getString(R.string.use_wakelock_pref),
+                    getString(R.string.lock_grace_pref),
+                    getString(R.string.show_nf_stopped_pref),
+                    getString(R.string.outside_access_pref),
+                    getString(R.string.network_choice_strategy_pref),
+                    getString(R.string.network_interface_pref),
+                    getString(R.string.schedule_pref),
+                    getString(R.string.token_pref),
+                    getString(R.string.use_ate_pref)));
+        }
+
+        if (!configPrefs.contains(key)) {
+            return;
+        }
+
+        // the service rebuilds the config itself and applies it to running aria2 (without restart, if possible)
+        startService(new Intent(this, Aria2Service.class).setAction(Aria2Service.ACTION_APPLY_SETTINGS));
+    }
+
     @Override
     protected void attachBaseContext(Context newBase) {
         super.attachBaseContext(CalligraphyContextWrapper.wrap(newBase));
@@ -276,6 +320,8 @@ public final class MainActivity extends PreferenceActivity {
         private Preference networkIfacePref;
         private Preference wakelockPref;
         private Preference securityPref;
+        private Preference schedulePref;
+        private Preference tunePref;
 
         @Override
         public void onCreate(Bundle savedInstanceState) {
@@ -289,11 +335,14 @@ public final class MainActivity extends PreferenceActivity {
             networkIfacePref = findPreference(getString(R.string.network_interface_pref));
             wakelockPref = findPreference(getString(R.string.use_wakelock_pref));
             securityPref = findPreference(getString(R.string.outside_access_pref));
+            schedulePref = findPreference(getString(R.string.schedule_pref));
+            tunePref = findPreference(getString(R.string.tune_pref));
 
             dirPref.setOnPreferenceChangeListener((p, v) -> dirPrefChange());
             networkStrategyPref.setOnPreferenceChangeListener((p, v) -> networkPrefChange(Integer.parseInt((String) v)));
             wakelockPref.setOnPreferenceChangeListener((p, v) -> wakelockPrefChange((Boolean) v));
             securityPref.setOnPreferenceChangeListener((p, v) -> outsideAccessChange((Boolean) v));
+            schedulePref.setOnPreferenceChangeListener((p, v) -> scheduleChange((String) v));
 
             initSummaries();
             checkWakelockPermission();
@@ -314,6 +363,28 @@ public final class MainActivity extends PreferenceActivity {
             return true;
         }
 
+        private boolean scheduleChange(String schedule) {
+            final List<ScheduleRule> rules;
+            try {
+                rules = ScheduleRule.parseAll(schedule);
+            } catch (IllegalArgumentException e) {
+                Toast.makeText(getActivity(), getString(R.string.error_bad_schedule, e.getMessage()), Toast.LENGTH_LONG).show();
+                return false;
+            }
+
+            setScheduleSummary(rules);
+
+            ScheduleJobService.schedule(getActivity(), rules);
+
+            return true;
+        }
+
+        private void setScheduleSummary(List<ScheduleRule> rules) {
+            schedulePref.setSummary(rules.isEmpty()
+                    ? getString(R.string.schedule_rules_summary)
+                    : getString(R.string.schedule_rules_count, rules.size()));
+        }
+
         private void checkWakelockPermission() {
             if (!PermissionHelper.checkWakelockPermission(this)) {
                 // wakelock permission disabled, reflect this in preference display
@@ -331,6 +402,8 @@ public final class MainActivity extends PreferenceActivity {
 
             getLoaderManager().initLoader(R.id.ldr_download_dir, Bundle.EMPTY, this);
             getLoaderManager().initLoader(R.id.ldr_net_config, Bundle.EMPTY, this);
+            getLoaderManager().initLoader(R.id.ldr_session, Bundle.EMPTY, this);
+            getLoaderManager().initLoader(R.id.ldr_preset, Bundle.EMPTY, this);
         }
 
         private int getNetworkPrefValue() {
@@ -345,6 +418,8 @@ public final class MainActivity extends PreferenceActivity {
 
         private void initSummaries() {
             networkPrefChange(getNetworkPrefValue());
+
+            setScheduleSummary(ScheduleJobService.readRules(getActivity()));
         }
 
         @SuppressLint("NewApi")
@@ -404,6 +479,10 @@ public final class MainActivity extends PreferenceActivity {
                     return new NetworkInterfaceLoader(getActivity());
                 case R.id.ldr_download_dir:
                     return new DownloadDirLoader(getActivity());
+                case R.id.ldr_session:
+                    return new SessionLoader(getActivity());
+                case R.id.ldr_preset:
+                    return new PresetLoader(getActivity());
                 default:
                     throw new UnsupportedOperationException("unknown loader id " + id);
             }
@@ -423,6 +502,12 @@ public final class MainActivity extends PreferenceActivity {
                         }
                     } else {
                         dirPref.setSummary(getString(R.string.space_available, bytesToHuman(byteCount)));
+
+                        // the directory may have been measured just now
+                        final Loader<Object> presetLoader = getLoaderManager().getLoader(R.id.ldr_preset);
+                        if (presetLoader != null) {
+                            presetLoader.onContentChanged();
+                        }
                     }
                     break;
                 case R.id.ldr_net_config:
@@ -430,6 +515,19 @@ public final class MainActivity extends PreferenceActivity {
                     final String outcome = bundle.getString(getString(R.string.network_interface_pref));
                     networkIfacePref.setSummary(outcome);
                     break;
+                case R.id.ldr_session:
+                    final SessionIndex index = (SessionIndex) data;
+                    serviceControl.setQueueSummary(index.size() == 0
+                            ? getString(R.string.session_empty)
+                            : getString(R.string.session_queued, index.getPendingCount(), index.getPausedCount()));
+                    break;
+                case R.id.ldr_preset:
+                    @SuppressWarnings("unchecked")
+                    final Map<String, String> options = (Map<String, String>) data;
+                    tunePref.setSummary(options.isEmpty()
+                            ? getString(R.string.tune_for_device_summary)
+                            : formatOptions(options));
+                    break;
             }
         }
 
@@ -447,6 +545,20 @@ public final class MainActivity extends PreferenceActivity {
         @Override
         public void onLoaderReset(Loader<Object> loader) {}
 
+        private static String formatOptions(Map<String, String> options) {
+            final StringBuilder summary = new StringBuilder();
+
+            for (Map.Entry<String, String> option : options.entrySet()) {
+                if (summary.length() != 0) {
+                    summary.append(", ");
+                }
+
+                summary.append(option.getKey()).append('=').append(option.getValue());
+            }
+
+            return summary.toString();
+        }
+
         private static String bytesToHuman (long size)
         {
             long Kb = 1024;
@@ -506,6 +618,9 @@ public final class MainActivity extends PreferenceActivity {
                 useBrowserPref.setEnabled(false);
 
                 getLoaderManager().initLoader(R.id.ldr_webui_setup, Bundle.EMPTY, this);
+            } else if (getResources().getBoolean(R.bool.allow_builtin_webview)) {
+                // the builtin frontend is likely to be opened next, get it ready
+                WebViewHolder.get(getActivity()).prewarm();
             }
         }
 
@@ -633,6 +748,10 @@ final class ServiceControl extends ContextWrapper implements ServiceConnection {
         bindService(sericeMoniker, this, Context.BIND_AUTO_CREATE);
     }
 
+    public void setQueueSummary(CharSequence summary) {
+        pref.setSummary(summary);
+    }
+
     public void stop() {
         uiThreadHandler.close();
 
@@ -8,9 +8,17 @@ import android.content.Intent;
 import android.preference.PreferenceActivity;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+
+import net.sf.aria2.rpc.GlobalStat;
 
 final class NfBuilder {
     static Notification createSerivceNf(Context ctx) {
+        return createServiceNfBuilder(ctx).build();
+    }
+
+    static NotificationCompat.Builder createServiceNfBuilder(Context ctx) {
         @SuppressLint("InlinedApi")
         final Intent resultIntent = new Intent(ctx, MainActivity.class)
                 .putExtra(PreferenceActivity.EXTRA_SHOW_FRAGMENT, "net.sf.aria2.MainActivity$Aria2Preferences")
@@ -28,7 +36,31 @@ final class NfBuilder {
                 .setContentTitle("aria2 is running")
                 .setContentText("Touch to open settings")
                 .setContentIntent(contentIntent)
-                .setOnlyAlertOnce(true)
+                .setOnlyAlertOnce(true);
+    }
+
+    static String statusTitle(Context ctx, GlobalStat stat) {
+        return ctx.getString(R.string.nf_download_counts, stat.numActive, stat.numWaiting);
+    }
+
+    static String statusText(Context ctx, GlobalStat stat) {
+        final String speeds = ctx.getString(R.string.nf_speeds,
+                Formatter.formatShortFileSize(ctx, stat.downloadSpeed),
+                Formatter.formatShortFileSize(ctx, stat.uploadSpeed));
+
+        final long eta = stat.getEta();
+
+        return eta < 0 ? speeds : ctx.getString(R.string.nf_speeds_eta, speeds, DateUtils.formatElapsedTime(eta));
+    }
+
+    /**
+     * Fill the persistent notification with aggregate statistics of running aria2 instances.
+     */
+    static Notification createStatusNf(NotificationCompat.Builder builder, String title, String text) {
+        return builder
+                .setContentTitle(title)
+                .setContentText(text)
+                .setShowWhen(false)
                 .build();
     }
 
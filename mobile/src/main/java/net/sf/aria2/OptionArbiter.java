@@ -0,0 +1,394 @@
+package net.sf.aria2;
+
+import android.os.Handler;
+import android.util.Log;
+
+import net.sf.aria2.rpc.DownloadListener;
+import net.sf.aria2.rpc.RpcCall;
+import net.sf.aria2.rpc.RpcClient;
+import net.sf.aria2.schedule.ScheduleRule;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reconciles limits, requested by independent parties (the schedule, resource governor etc.),
+ * for single aria2 instance. Each party owns a layer: the strictest value of every option wins
+ * and downloads are paused while at least one layer asks for it. Everything is done via RPC,
+ * so ongoing transfers are not interrupted.
+ *
+ * Downloads are paused one by one and only those, paused by the arbiter, are resumed later, so
+ * downloads, paused by user, stay paused. Their GIDs are kept in a file, because aria2 saves
+ * them to the session as paused, if it exits in meantime.
+ *
+ * All methods except {@link #onDownloadEvent} must be called on the main thread.
+ */
+final class OptionArbiter implements DownloadListener {
+    private static final String TAG = "OptionArbiter";
+
+    static final int LAYER_SCHEDULE = 0;
+    static final int LAYER_GOVERNOR = 1;
+    static final int LAYER_DISK_SPACE = 2;
+
+    private static final int LAYER_COUNT = 3;
+
+    static final String DOWNLOAD_LIMIT = "max-overall-download-limit";
+    static final String UPLOAD_LIMIT = "max-overall-upload-limit";
+    static final String CONCURRENT_DOWNLOADS = "max-concurrent-downloads";
+
+    // aria2 defaults, restored when nobody wants to limit the option
+    private static final Map<String, String> DEFAULTS = new HashMap<>();
+
+    static {
+        DEFAULTS.put(DOWNLOAD_LIMIT, "0");
+        DEFAULTS.put(UPLOAD_LIMIT, "0");
+        DEFAULTS.put(CONCURRENT_DOWNLOADS, "5");
+    }
+
+    private static final String[] STATUS_KEYS = { "gid", "status" };
+
+    private static final int MAX_WAITING = 1000;
+
+    private final Handler handler;
+    private final RpcClient rpc;
+    private final File heldFile;
+
+    // per option: a value for each layer, 0 means "no limit"
+    private final Map<String, long[]> requests = new HashMap<>();
+
+    // values, configured by user, 0 means "no limit"
+    private final Map<String, Long> base = new HashMap<>();
+
+    // the values aria2 currently has (as far as we know)
+    private final Map<String, String> applied = new HashMap<>();
+
+    private final boolean[] pauseRequests = new boolean[LAYER_COUNT];
+
+    private final Set<String> pausedByUs = new LinkedHashSet<>();
+
+    private boolean started;
+    private boolean paused;
+
+    OptionArbiter(Handler handler, RpcClient rpc, File heldFile, Map<String, String> options) {
+        this.handler = handler;
+        this.rpc = rpc;
+        this.heldFile = heldFile;
+
+        for (String option : DEFAULTS.keySet()) {
+            requests.put(option, new long[LAYER_COUNT]);
+
+            final String value = options.get(option);
+
+            applied.put(option, value == null ? DEFAULTS.get(option) : value);
+        }
+
+        takeBase(options);
+    }
+
+    /**
+     * Begin issuing RPC calls. Should be called once aria2 is ready to accept them.
+     */
+    void start() {
+        if (started) return;
+
+        started = true;
+
+        pausedByUs.addAll(readHeld());
+
+        if (!pausedByUs.isEmpty()) {
+            Log.d(TAG, "Restoring " + pausedByUs.size() + " downloads, paused by previous run");
+        }
+
+        apply();
+
+        if (paused) {
+            pauseAll();
+        } else {
+            unpauseAll();
+        }
+    }
+
+    /**
+     * Stop issuing RPC calls (aria2 has exited)
+     */
+    void stop() {
+        started = false;
+    }
+
+    /**
+     * Update values, configured by user.
+     *
+     * @return the options, that are not managed by the arbiter
+     */
+    Map<String, String> setBase(Map<String, String> options) {
+        final Map<String, String> rest = takeBase(options);
+
+        apply();
+
+        return rest;
+    }
+
+    private Map<String, String> takeBase(Map<String, String> options) {
+        final Map<String, String> rest = new LinkedHashMap<>(options);
+
+        for (String option : DEFAULTS.keySet()) {
+            final String value = rest.remove(option);
+
+            if (value == null) {
+                base.remove(option);
+            } else {
+                try {
+                    base.put(option, ScheduleRule.parseRate(value));
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Bad value of " + option + ": " + value);
+                }
+            }
+        }
+
+        return rest;
+    }
+
+    /**
+     * @param value requested limit, 0 to lift the limit, imposed by the layer
+     */
+    void setLimit(int layer, String option, long value) {
+        final long[] values = requests.get(option);
+
+        if (values == null) {
+            throw new IllegalArgumentException("Not managed: " + option);
+        }
+
+        if (values[layer] == value) return;
+
+        values[layer] = value;
+
+        apply();
+    }
+
+    void setPaused(int layer, boolean pause) {
+        if (pauseRequests[layer] == pause) return;
+
+        pauseRequests[layer] = pause;
+
+        boolean shouldPause = false;
+        for (boolean request : pauseRequests) {
+            shouldPause |= request;
+        }
+
+        if (shouldPause == paused) return;
+
+        paused = shouldPause;
+
+        Log.i(TAG, paused ? "Pausing downloads" : "Resuming downloads");
+
+        if (!started) return;
+
+        if (paused) {
+            pauseAll();
+        } else {
+            unpauseAll();
+        }
+    }
+
+    boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * @return the value of option, aria2 should currently have
+     */
+    String getEffective(String option) {
+        final long[] values = requests.get(option);
+
+        final Long configured = base.get(option);
+
+        long effective = configured == null ? 0 : configured;
+
+        for (long value : values) {
+            if (value > 0 && (effective == 0 || value < effective)) {
+                effective = value;
+            }
+        }
+
+        if (effective == 0 && configured == null) {
+            return DEFAULTS.get(option);
+        }
+
+        return String.valueOf(effective);
+    }
+
+    private void apply() {
+        if (!started) return;
+
+        final Map<String, String> changes = new LinkedHashMap<>();
+
+        for (String option : DEFAULTS.keySet()) {
+            final String effective = getEffective(option);
+
+            if (!effective.equals(applied.get(option))) {
+                changes.put(option, effective);
+            }
+        }
+
+        if (changes.isEmpty()) return;
+
+        Log.i(TAG, "Changing options: " + changes);
+
+        applied.putAll(changes);
+
+        rpc.call("aria2.changeGlobalOption", changes).then(call -> {
+            if (call.getError() != null) {
+                Log.w(TAG, "Failed to change options", call.getError());
+
+                // try again next time
+                handler.post(() -> applied.keySet().removeAll(changes.keySet()));
+            }
+        });
+    }
+
+    private void pauseAll() {
+        final List<RpcCall> calls = rpc.callAll(Arrays.asList(
+                rpc.prepare("aria2.tellActive", (Object) STATUS_KEYS),
+                rpc.prepare("aria2.tellWaiting", 0, MAX_WAITING, STATUS_KEYS)));
+
+        for (RpcCall call : calls) {
+            call.then(done -> handler.post(() -> pauseListed(done)));
+        }
+    }
+
+    private void pauseListed(RpcCall listing) {
+        if (!started || !paused) return;
+
+        final JSONArray downloads = listing.peek() instanceof JSONArray ? (JSONArray) listing.peek() : null;
+
+        if (downloads == null) {
+            Log.w(TAG, "Failed to list downloads", listing.getError());
+            return;
+        }
+
+        final List<String> gids = new ArrayList<>();
+
+        for (int i = 0; i < downloads.length(); ++i) {
+            final JSONObject download = downloads.optJSONObject(i);
+
+            if (download == null) continue;
+
+            final String status = download.optString("status");
+
+            if ("active".equals(status) || "waiting".equals(status)) {
+                gids.add(download.optString("gid"));
+            }
+        }
+
+        pause(gids);
+    }
+
+    private void pause(List<String> gids) {
+        if (gids.isEmpty()) return;
+
+        final List<RpcCall> calls = new ArrayList<>(gids.size());
+
+        for (String gid : gids) {
+            calls.add(rpc.prepare("aria2.pause", gid));
+        }
+
+        pausedByUs.addAll(gids);
+
+        writeHeld();
+
+        rpc.callAll(calls);
+    }
+
+    private void unpauseAll() {
+        if (pausedByUs.isEmpty()) return;
+
+        final List<RpcCall> calls = new ArrayList<>(pausedByUs.size());
+
+        for (String gid : pausedByUs) {
+            calls.add(rpc.prepare("aria2.unpause", gid));
+        }
+
+        pausedByUs.clear();
+
+        writeHeld();
+
+        // some of them may be gone, that's fine
+        rpc.callAll(calls);
+    }
+
+    @Override
+    public void onDownloadEvent(int event, String gid) {
+        switch (event) {
+            case EVENT_START:
+                // new downloads (and the ones, resumed from frontend) must wait too
+                handler.post(() -> {
+                    if (started && paused) {
+                        pause(Arrays.asList(gid));
+                    }
+                });
+                break;
+            case EVENT_STOP:
+            case EVENT_COMPLETE:
+            case EVENT_ERROR:
+                handler.post(() -> {
+                    if (pausedByUs.remove(gid)) {
+                        writeHeld();
+                    }
+                });
+                break;
+        }
+    }
+
+    private Set<String> readHeld() {
+        final Set<String> gids = new LinkedHashSet<>();
+
+        if (!heldFile.exists()) {
+            return gids;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(heldFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    gids.add(line);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return gids;
+    }
+
+    private void writeHeld() {
+        if (pausedByUs.isEmpty()) {
+            //noinspection ResultOfMethodCallIgnored
+            heldFile.delete();
+            return;
+        }
+
+        try (Writer writer = new FileWriter(heldFile)) {
+            for (String gid : pausedByUs) {
+                writer.write(gid);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
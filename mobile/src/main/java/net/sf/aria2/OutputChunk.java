@@ -0,0 +1,59 @@
+package net.sf.aria2;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A piece of aria2 console output, returned by {@link IAria2#getRecentOutput}. Pass {@link #next}
+ * to the next call to resume reading where this chunk has ended.
+ */
+public final class OutputChunk implements Parcelable {
+    /**
+     * Absolute position of the first byte in {@link #data}. If it is larger than requested
+     * position, some output was lost.
+     */
+    public final long start;
+
+    /**
+     * Absolute position to request next time.
+     */
+    public final long next;
+
+    public final byte[] data;
+
+    public OutputChunk(long start, byte[] data, int length) {
+        this.start = start;
+        this.next = start + length;
+        this.data = length == data.length ? data : java.util.Arrays.copyOf(data, length);
+    }
+
+    private OutputChunk(Parcel source) {
+        start = source.readLong();
+        next = source.readLong();
+        data = source.createByteArray();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(start);
+        dest.writeLong(next);
+        dest.writeByteArray(data);
+    }
+
+    public static final Parcelable.Creator<OutputChunk> CREATOR = new Creator<OutputChunk>() {
+        @Override
+        public OutputChunk createFromParcel(Parcel source) {
+            return new OutputChunk(source);
+        }
+
+        @Override
+        public OutputChunk[] newArray(int size) {
+            return new OutputChunk[size];
+        }
+    };
+}
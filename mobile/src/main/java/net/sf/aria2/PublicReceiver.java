@@ -3,24 +3,86 @@ package net.sf.aria2;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Bundle;
 
-public final class PublicReceiver extends BroadcastReceiver {
+import java.util.ArrayList;
+
+/**
+ * Lets other apps start and stop aria2 and add downloads. Anyone can send to this receiver, so
+ * the extras, that describe an instance or pass aria2 options, are ignored here; they are only
+ * honoured by {@link ControlReceiver}.
+ */
+public class PublicReceiver extends BroadcastReceiver {
     public static final String INTENT_START_SERVICE = "net.sf.aria2.service.START_SERVICE";
     public static final String INTENT_STOP_SERVICE = "net.sf.aria2.service.STOP_SERVICE";
     public static final String INTENT_RESTART_SERVICE = "net.sf.aria2.service.RESTART_SERVICE";
 
+    /**
+     * Add downloads from {@link #EXTRA_URIS} to the default instance, starting it if needed.
+     * The downloads are queued on disk until aria2 responds, and added all at once.
+     */
+    public static final String INTENT_ADD_DOWNLOADS = "net.sf.aria2.service.ADD_DOWNLOADS";
+
+    /**
+     * Boolean extra of {@link #INTENT_START_SERVICE}: do not start aria2, unless the saved session
+     * has downloads, that aren't paused
+     */
+    public static final String EXTRA_ONLY_IF_PENDING = "net.sf.aria2.service.extra.ONLY_IF_PENDING";
+
+    /**
+     * String extra, that selects aria2 instance to start, stop or restart. Without it, the
+     * instance, configured in app settings, is started, and stop applies to all instances.
+     * Starting an instance other than default requires {@link #EXTRA_DOWNLOAD_DIR} and
+     * {@link #EXTRA_RPC_PORT}; other settings are shared with the default instance.
+     * Only honoured by {@link ControlReceiver} (except for stopping).
+     */
+    public static final String EXTRA_INSTANCE = "net.sf.aria2.service.extra.INSTANCE";
+
+    /**
+     * String extra: absolute path of the download directory (also holds the session)
+     */
+    public static final String EXTRA_DOWNLOAD_DIR = "net.sf.aria2.service.extra.DOWNLOAD_DIR";
+
+    /**
+     * Int extra: RPC port (1024-65535), must differ between simultaneously running instances
+     */
+    public static final String EXTRA_RPC_PORT = "net.sf.aria2.service.extra.RPC_PORT";
+
+    /**
+     * String extra: name or address of the interface to bind to. Unless the user allowed
+     * outside access, only loopback interface is accepted.
+     */
+    public static final String EXTRA_INTERFACE = "net.sf.aria2.service.extra.INTERFACE";
+
+    /**
+     * Bundle extra with aria2 options (names without leading dashes, values are converted to
+     * Strings). Only the options, that can be changed at runtime, are accepted; when sent with
+     * {@link #INTENT_RESTART_SERVICE}, they are applied without restarting aria2. Only honoured
+     * by {@link ControlReceiver}.
+     */
+    public static final String EXTRA_OPTIONS = "net.sf.aria2.service.extra.OPTIONS";
+
+    /**
+     * String ArrayList extra of {@link #INTENT_ADD_DOWNLOADS}: URIs (HTTP(S), FTP, SFTP or
+     * magnet), each of them becomes a separate download
+     */
+    public static final String EXTRA_URIS = "net.sf.aria2.service.extra.URIS";
+
     @Override
     public void onReceive(Context context, Intent intent) {
         final String action = intent.getAction();
 
         final ConfigBuilder builder = new ConfigBuilder(context);
 
+        final Bundle overrides = isTrusted() ? intent.getExtras() : null;
+
         switch ((action == null ? "" : action)) {
             case INTENT_START_SERVICE:
                 try {
                     final Intent serviceIntent = builder
-                            .constructServiceCommand(new Intent(context, Aria2Service.class))
-                            .setAction(INTENT_START_SERVICE);
+                            .constructServiceCommand(new Intent(context, Aria2Service.class), overrides)
+                            .setAction(INTENT_START_SERVICE)
+                            .putExtra(EXTRA_ONLY_IF_PENDING, intent.getBooleanExtra(EXTRA_ONLY_IF_PENDING, false));
 
                     builder.startForegroundCompat(serviceIntent);
                 } catch (Exception e) {
@@ -30,7 +92,7 @@ public final class PublicReceiver extends BroadcastReceiver {
             case INTENT_RESTART_SERVICE:
                 try {
                     final Intent serviceIntent = builder
-                            .constructServiceCommand(new Intent(context, Aria2Service.class))
+                            .constructServiceCommand(new Intent(context, Aria2Service.class), overrides)
                             .setAction(INTENT_RESTART_SERVICE);
 
                     builder.startForegroundCompat(serviceIntent);
@@ -38,11 +100,57 @@ public final class PublicReceiver extends BroadcastReceiver {
                     // nothing can be done…
                 }
                 break;
+            case INTENT_ADD_DOWNLOADS:
+                final ArrayList<String> uris = intent.getStringArrayListExtra(EXTRA_URIS);
+
+                if (uris == null || uris.isEmpty()) {
+                    break;
+                }
+
+                final ArrayList<String> supported = new ArrayList<>(uris.size());
+
+                for (String uri : uris) {
+                    if (uri != null && DownloadQueue.isSupported(uri)) {
+                        supported.add(uri);
+                    }
+                }
+
+                if (supported.isEmpty()) {
+                    break;
+                }
+
+                final Context appContext = context.getApplicationContext();
+                final PendingResult result = goAsync();
+
+                // the queue is on disk
+                new Thread(() -> {
+                    try {
+                        new DownloadQueue(appContext).addUris(supported);
+
+                        DownloadQueue.requestFlush(appContext);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        result.finish();
+                    }
+                }, "aria2 add downloads").start();
+                break;
             case INTENT_STOP_SERVICE:
                 final Intent serviceIntent = new Intent(context, Aria2Service.class)
                         .setAction(INTENT_STOP_SERVICE);
 
+                if (intent.hasExtra(EXTRA_INSTANCE)) {
+                    serviceIntent.putExtra(EXTRA_INSTANCE, intent.getStringExtra(EXTRA_INSTANCE));
+                }
+
                 builder.stopServiceCompat(serviceIntent);
         }
     }
+
+    /**
+     * @return true, if the sender is known to hold the permission to configure aria2
+     */
+    boolean isTrusted() {
+        return false;
+    }
 }
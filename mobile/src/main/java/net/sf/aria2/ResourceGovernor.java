@@ -0,0 +1,275 @@
+package net.sf.aria2;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.text.format.DateFormat;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * Scales aria2 down, when the device is under stress: the battery is hot (there is no thermal
+ * API before Android Q, battery temperature is the closest thing), almost empty or the system
+ * is short on memory. Each signal has separate thresholds for entering and leaving a level, and
+ * the level is lowered only after it has been calm for a while, so that aria2 is not
+ * reconfigured back and forth. Every decision is logged and kept for {@link #dump}.
+ *
+ * Must be used from the handler thread.
+ */
+final class ResourceGovernor extends ContextWrapper {
+    interface Listener {
+        void onGovernorLevelChanged(int level);
+    }
+
+    private static final String TAG = "ResourceGovernor";
+
+    static final int LEVEL_NORMAL = 0;
+    static final int LEVEL_REDUCED = 1;
+    static final int LEVEL_MINIMAL = 2;
+
+    // battery temperature, tenths of °C: enter and leave thresholds for each level
+    static final int HOT_ENTER = 420;
+    static final int HOT_LEAVE = 390;
+    static final int OVERHEAT_ENTER = 460;
+    static final int OVERHEAT_LEAVE = 430;
+
+    // battery charge (percents), only while not charging
+    static final int LOW_BATTERY_ENTER = 15;
+    static final int LOW_BATTERY_LEAVE = 20;
+    static final int EMPTY_BATTERY_ENTER = 5;
+    static final int EMPTY_BATTERY_LEAVE = 8;
+
+    // memory pressure is forgotten, if not repeated for this long
+    static final long MEMORY_PRESSURE_TTL = 5 * 60000;
+
+    // the level is lowered only after signals stay below it for this long
+    static final long RELAX_DELAY = 60000;
+
+    // what aria2 is allowed to do on each level (0 means no limit)
+    private static final long[] DOWNLOAD_LIMITS = { 0, 2 * 1024 * 1024, 512 * 1024 };
+    private static final long[] CONCURRENT_DOWNLOADS = { 0, 2, 1 };
+
+    static final String DISK_CACHE_LOW_MEMORY = "4M";
+
+    private static final int MAX_DECISIONS = 32;
+
+    private static final String[] LEVEL_NAMES = { "normal", "reduced", "minimal" };
+
+    private final Handler handler;
+    private final Listener listener;
+
+    private final ArrayDeque<String> decisions = new ArrayDeque<>(MAX_DECISIONS);
+
+    private final Runnable relaxTask = this::evaluate;
+
+    private BroadcastReceiver batteryReceiver;
+
+    private int thermalLevel;
+    private int batteryLevel;
+    private int memoryLevel;
+    private long memoryPressureTime;
+
+    private int temperature = -1;
+    private int charge = -1;
+    private boolean charging;
+
+    private int level;
+    private long calmSince;
+
+    ResourceGovernor(Context base, Handler handler, Listener listener) {
+        super(base);
+
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    void start() {
+        if (batteryReceiver != null) return;
+
+        registerReceiver(batteryReceiver = new BatteryReceiver(),
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED), null, handler);
+    }
+
+    void stop() {
+        if (batteryReceiver == null) return;
+
+        unregisterReceiver(batteryReceiver);
+        batteryReceiver = null;
+
+        handler.removeCallbacks(relaxTask);
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    static long getDownloadLimit(int level) {
+        return DOWNLOAD_LIMITS[level];
+    }
+
+    static long getConcurrentDownloads(int level) {
+        return CONCURRENT_DOWNLOADS[level];
+    }
+
+    /**
+     * {@code disk-cache} can not be changed via RPC, so it can only be lowered, when aria2 starts
+     *
+     * @return the value to override the preset with, or null
+     */
+    @Nullable String getDiskCache() {
+        return memoryLevel != LEVEL_NORMAL ? DISK_CACHE_LOW_MEMORY : null;
+    }
+
+    void onTrimMemory(int trimLevel) {
+        final int newLevel;
+
+        if (trimLevel >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || trimLevel == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            newLevel = LEVEL_MINIMAL;
+        } else if (trimLevel >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || trimLevel == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            newLevel = LEVEL_REDUCED;
+        } else {
+            // TRIM_MEMORY_UI_HIDDEN and friends are not about us
+            return;
+        }
+
+        memoryPressureTime = SystemClock.elapsedRealtime();
+
+        if (newLevel > memoryLevel) {
+            memoryLevel = newLevel;
+        }
+
+        evaluate("trim memory " + trimLevel);
+    }
+
+    private void onBatteryChanged(Intent battery) {
+        final int newTemperature = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, -1);
+        final int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+        final int newCharge = scale <= 0 ? -1 : battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1) * 100 / scale;
+        final boolean newCharging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+
+        // ACTION_BATTERY_CHANGED is sent often, most of the time nothing relevant changes
+        if (newTemperature == temperature && newCharge == charge && newCharging == charging) {
+            return;
+        }
+
+        temperature = newTemperature;
+        charge = newCharge;
+        charging = newCharging;
+
+        thermalLevel = withHysteresis(thermalLevel, temperature, HOT_ENTER, HOT_LEAVE, OVERHEAT_ENTER, OVERHEAT_LEAVE);
+
+        if (charging || charge < 0) {
+            batteryLevel = LEVEL_NORMAL;
+        } else {
+            // less charge is worse, so negate everything
+            batteryLevel = withHysteresis(batteryLevel, -charge,
+                    -LOW_BATTERY_ENTER, -LOW_BATTERY_LEAVE, -EMPTY_BATTERY_ENTER, -EMPTY_BATTERY_LEAVE);
+        }
+
+        evaluate("battery " + charge + "%" + (charging ? " charging" : "") + ", " + temperature / 10f + "°C");
+    }
+
+    private static int withHysteresis(int current, int value,
+                                      int reducedEnter, int reducedLeave, int minimalEnter, int minimalLeave) {
+        if (value >= minimalEnter) {
+            return LEVEL_MINIMAL;
+        }
+
+        if (current == LEVEL_MINIMAL && value >= minimalLeave) {
+            return LEVEL_MINIMAL;
+        }
+
+        if (value >= reducedEnter) {
+            return LEVEL_REDUCED;
+        }
+
+        if (current != LEVEL_NORMAL && value >= reducedLeave) {
+            return LEVEL_REDUCED;
+        }
+
+        return LEVEL_NORMAL;
+    }
+
+    private void evaluate() {
+        evaluate("timer");
+    }
+
+    private void evaluate(String cause) {
+        final long now = SystemClock.elapsedRealtime();
+
+        if (memoryLevel != LEVEL_NORMAL && now - memoryPressureTime > MEMORY_PRESSURE_TTL) {
+            memoryLevel = LEVEL_NORMAL;
+        }
+
+        final int wanted = Math.max(thermalLevel, Math.max(batteryLevel, memoryLevel));
+
+        handler.removeCallbacks(relaxTask);
+
+        if (wanted > level) {
+            setLevel(wanted, cause);
+        } else if (wanted < level) {
+            if (calmSince == 0) {
+                calmSince = now;
+            }
+
+            if (now - calmSince >= RELAX_DELAY) {
+                setLevel(wanted, cause);
+            } else {
+                handler.postDelayed(relaxTask, RELAX_DELAY - (now - calmSince));
+                return;
+            }
+        }
+
+        calmSince = 0;
+
+        if (memoryLevel != LEVEL_NORMAL) {
+            handler.postDelayed(relaxTask, MEMORY_PRESSURE_TTL);
+        }
+    }
+
+    private void setLevel(int newLevel, String cause) {
+        final String decision = LEVEL_NAMES[level] + " -> " + LEVEL_NAMES[newLevel]
+                + " (" + cause + "; thermal " + thermalLevel + ", battery " + batteryLevel
+                + ", memory " + memoryLevel + ')';
+
+        Log.i(TAG, decision);
+
+        if (decisions.size() == MAX_DECISIONS) {
+            decisions.removeFirst();
+        }
+
+        decisions.addLast(DateFormat.format("MM-dd kk:mm:ss ", System.currentTimeMillis()) + decision);
+
+        level = newLevel;
+
+        listener.onGovernorLevelChanged(level);
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("Resource governor: " + LEVEL_NAMES[level]);
+        writer.println("  battery: " + charge + "%" + (charging ? " charging" : "") + ", " + temperature / 10f + "°C");
+        writer.println("  levels: thermal " + thermalLevel + ", battery " + batteryLevel + ", memory " + memoryLevel);
+
+        for (String decision : decisions) {
+            writer.println("  " + decision);
+        }
+    }
+
+    private final class BatteryReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onBatteryChanged(intent);
+        }
+    }
+}
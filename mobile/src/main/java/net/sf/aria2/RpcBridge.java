@@ -0,0 +1,442 @@
+package net.sf.aria2;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.webkit.JavascriptInterface;
+import android.webkit.WebView;
+
+import net.sf.aria2.rpc.RpcCall;
+import net.sf.aria2.rpc.RpcClient;
+import net.sf.aria2.rpc.RpcException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Native transport for the WebUI, exposed to it as {@value #NAME} (the page is patched to use
+ * it by {@code res/raw/rpc_bridge.js}). Calls are sent by {@link RpcClient}s, kept for the
+ * lifetime of WebView, so there is one persistent connection per aria2 port instead of a new
+ * XHR per update, and calls from the same tick are folded into single multicall by the client.
+ *
+ * Reading methods are shared: an identical call, issued while the previous one is in flight,
+ * waits for the same response. Their results are also kept for a short while (and results of
+ * methods, that never change, for as long as the connection works), so that re-rendering the
+ * page after reload or navigation does not query aria2 again.
+ */
+final class RpcBridge implements Closeable {
+    private static final String TAG = "RpcBridge";
+
+    static final String NAME = "aria2native";
+
+    private static final String MULTICALL = "system.multicall";
+
+    // results of these do not change while aria2 is running
+    private static final Set<String> STABLE = new HashSet<>(Arrays.asList(
+            "aria2.getVersion", "system.listMethods", "system.listNotifications"));
+
+    // the WebUI polls once per second, no need to serve it stale data
+    private static final long FRESH_NANOS = 500 * 1000_000L;
+
+    private static final int MAX_CACHED = 128;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final WebView webView;
+
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private final Map<Integer, RpcClient> clients = new HashMap<>();
+    private final Map<String, Shared> inFlight = new HashMap<>();
+    private final Map<String, Cached> cache = new HashMap<>();
+    private boolean closed;
+
+    // whether the page in WebView is ours, the bridge is visible to any page
+    private volatile boolean trusted;
+
+    RpcBridge(WebView webView) {
+        this.webView = webView;
+    }
+
+    /**
+     * Called on the main thread, when the WebView starts loading a page. Calls from untrusted
+     * pages are dropped.
+     */
+    void setTrusted(boolean trusted) {
+        this.trusted = trusted;
+    }
+
+    static String getScript(Context context) {
+        try (InputStream in = context.getResources().openRawResource(R.raw.rpc_bridge)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(2048);
+
+            final byte[] buffer = new byte[2048];
+
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+
+            return out.toString("UTF-8");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Called on the JavaBridge thread of WebView. The response is delivered asynchronously to
+     * {@code aria2bridge.done(id, response)}, failed calls yield {@code null} response.
+     */
+    @JavascriptInterface
+    public void call(int id, int port, String method, String paramsJson) {
+        if (!trusted) {
+            Log.w(TAG, "Rejected " + method + " from foreign page");
+            return;
+        }
+
+        final RpcClient client;
+
+        final List<String> methods = new ArrayList<>();
+        final List<JSONArray> params = new ArrayList<>();
+
+        final boolean multicall = MULTICALL.equals(method);
+
+        // validate everything before anything is shared with other callers
+        try {
+            client = getClient(port);
+
+            final JSONArray parsed = new JSONArray(paramsJson);
+
+            if (multicall) {
+                final JSONArray invocations = parsed.getJSONArray(0);
+
+                for (int i = 0; i < invocations.length(); ++i) {
+                    final JSONObject invocation = invocations.getJSONObject(i);
+
+                    final JSONArray invocationParams = invocation.optJSONArray("params");
+
+                    methods.add(invocation.getString("methodName"));
+                    params.add(invocationParams == null ? new JSONArray() : invocationParams);
+                }
+            } else {
+                methods.add(method);
+                params.add(parsed);
+            }
+        } catch (JSONException | RpcException e) {
+            Log.w(TAG, "Rejected " + method + ": " + e.getMessage());
+
+            deliver(id, null);
+            return;
+        }
+
+        if (methods.isEmpty()) {
+            deliver(id, "{\"result\":[]}");
+            return;
+        }
+
+        final Reply reply = new Reply(id, multicall, methods.size());
+
+        final List<RpcCall> batch = new ArrayList<>(methods.size());
+
+        for (int i = 0; i < methods.size(); ++i) {
+            submit(reply, i, client, port, methods.get(i), params.get(i), batch);
+        }
+
+        if (!batch.isEmpty()) {
+            client.callAll(batch);
+        }
+    }
+
+    private void submit(Reply reply, int index, RpcClient client, int port, String method, JSONArray params, List<RpcCall> batch) {
+        if (!isReading(method)) {
+            synchronized (lock) {
+                // something is going to change
+                dropVolatile();
+            }
+
+            batch.add(prepare(client, method, params).then(call -> reply.complete(index, call)));
+
+            return;
+        }
+
+        final String key = port + " " + method + " " + params;
+
+        synchronized (lock) {
+            final Cached cached = cache.get(key);
+
+            if (cached != null && cached.isFresh(System.nanoTime())) {
+                reply.set(index, cached.result);
+                return;
+            }
+
+            final Shared shared = inFlight.get(key);
+
+            if (shared != null) {
+                shared.waiters.add(reply);
+                shared.indices.add(index);
+                return;
+            }
+
+            final Shared created = new Shared(key, STABLE.contains(method));
+            created.waiters.add(reply);
+            created.indices.add(index);
+
+            inFlight.put(key, created);
+
+            batch.add(prepare(client, method, params).then(created));
+        }
+    }
+
+    private static RpcCall prepare(RpcClient client, String method, JSONArray params) {
+        final Object[] args = new Object[params.length()];
+
+        for (int i = 0; i < args.length; ++i) {
+            args[i] = params.opt(i);
+        }
+
+        // the WebUI passes the secret token itself, so the client is created without one
+        return client.prepare(method, args);
+    }
+
+    private RpcClient getClient(int port) throws RpcException {
+        if (port <= 0 || port > 0xffff) {
+            throw new RpcException(RpcException.TRANSPORT, "Invalid port " + port);
+        }
+
+        synchronized (lock) {
+            if (closed) {
+                throw new RpcException(RpcException.TRANSPORT, "Bridge is closed");
+            }
+
+            RpcClient client = clients.get(port);
+
+            if (client == null) {
+                client = new RpcClient(port, null);
+
+                clients.put(port, client);
+            }
+
+            return client;
+        }
+    }
+
+    private static boolean isReading(String method) {
+        return method.startsWith("aria2.get") || method.startsWith("aria2.tell") || method.startsWith("system.list");
+    }
+
+    // called with lock held
+    private void dropVolatile() {
+        final Iterator<Cached> i = cache.values().iterator();
+
+        while (i.hasNext()) {
+            if (!i.next().stable) {
+                i.remove();
+            }
+        }
+    }
+
+    // called with lock held
+    private void store(String key, Object result, boolean stable) {
+        if (cache.size() >= MAX_CACHED) {
+            final long now = System.nanoTime();
+
+            final Iterator<Cached> i = cache.values().iterator();
+
+            while (i.hasNext()) {
+                if (!i.next().isFresh(now)) {
+                    i.remove();
+                }
+            }
+
+            if (cache.size() >= MAX_CACHED) {
+                return;
+            }
+        }
+
+        cache.put(key, new Cached(result, stable));
+    }
+
+    private void deliver(int id, String response) {
+        // line terminators, that JSON allows in strings, but JavaScript does not
+        final String literal = response == null
+                ? "null"
+                : response.replace("\u2028", "\\u2028").replace("\u2029", "\\u2029");
+
+        mainHandler.post(() -> {
+            synchronized (lock) {
+                if (closed) return;
+            }
+
+            webView.evaluateJavascript("window.aria2bridge && aria2bridge.done(" + id + "," + literal + ");", null);
+        });
+    }
+
+    @Override
+    public void close() {
+        final List<RpcClient> abandoned;
+
+        synchronized (lock) {
+            if (closed) return;
+
+            closed = true;
+
+            abandoned = new ArrayList<>(clients.values());
+
+            clients.clear();
+            cache.clear();
+        }
+
+        for (RpcClient client : abandoned) {
+            client.close();
+        }
+    }
+
+    private final class Shared implements RpcCall.Listener {
+        final List<Reply> waiters = new ArrayList<>(1);
+        final List<Integer> indices = new ArrayList<>(1);
+
+        final String key;
+        final boolean stable;
+
+        Shared(String key, boolean stable) {
+            this.key = key;
+            this.stable = stable;
+        }
+
+        @Override
+        public void onComplete(RpcCall call) {
+            synchronized (lock) {
+                inFlight.remove(key);
+
+                final RpcException error = call.getError();
+
+                if (error == null) {
+                    store(key, call.peek(), stable);
+                } else if (!error.isFault()) {
+                    // aria2 might have been restarted, possibly a different version of it
+                    cache.clear();
+                }
+            }
+
+            // no new waiters after removal from inFlight
+            for (int i = 0; i < waiters.size(); ++i) {
+                waiters.get(i).complete(indices.get(i), call);
+            }
+        }
+    }
+
+    private static final class Cached {
+        final Object result;
+        final boolean stable;
+        final long createdAt = System.nanoTime();
+
+        Cached(Object result, boolean stable) {
+            this.result = result;
+            this.stable = stable;
+        }
+
+        boolean isFresh(long now) {
+            return stable || now - createdAt < FRESH_NANOS;
+        }
+    }
+
+    /**
+     * Collects results for a single invocation from the page
+     */
+    private final class Reply {
+        private final int id;
+        private final boolean multicall;
+        private final Object[] results;
+
+        private int remaining;
+
+        Reply(int id, boolean multicall, int count) {
+            this.id = id;
+            this.multicall = multicall;
+            this.results = new Object[count];
+            this.remaining = count;
+        }
+
+        void complete(int index, RpcCall call) {
+            final RpcException error = call.getError();
+
+            set(index, error == null ? call.peek() : error);
+        }
+
+        void set(int index, Object result) {
+            synchronized (this) {
+                results[index] = result;
+
+                if (--remaining != 0) {
+                    return;
+                }
+            }
+
+            String response;
+            try {
+                response = encode();
+            } catch (JSONException e) {
+                e.printStackTrace();
+
+                response = null;
+            }
+
+            deliver(id, response);
+        }
+
+        /**
+         * @return the response in the format of aria2 itself, or null if aria2 was not reached
+         */
+        private String encode() throws JSONException {
+            for (Object result : results) {
+                if (result instanceof RpcException && !((RpcException) result).isFault()) {
+                    return null;
+                }
+            }
+
+            if (!multicall) {
+                final Object result = results[0];
+
+                if (result instanceof RpcException) {
+                    return new JSONObject().put("error", toError((RpcException) result)).toString();
+                }
+
+                return new JSONObject().put("result", result == null ? JSONObject.NULL : result).toString();
+            }
+
+            final JSONArray items = new JSONArray();
+
+            for (Object result : results) {
+                if (result instanceof RpcException) {
+                    items.put(toError((RpcException) result));
+                } else {
+                    items.put(new JSONArray().put(result == null ? JSONObject.NULL : result));
+                }
+            }
+
+            return new JSONObject().put("result", items).toString();
+        }
+
+        private JSONObject toError(RpcException e) throws JSONException {
+            return new JSONObject()
+                    .put("code", e.getCode())
+                    .put("message", e.getMessage());
+        }
+    }
+}
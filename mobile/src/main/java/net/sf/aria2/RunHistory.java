@@ -0,0 +1,162 @@
+package net.sf.aria2;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * The last {@link #MAX_RUNS} runs of aria2, persisted across restarts: when each run started,
+ * how long it lasted and how it ended. Tells crash loops from occasional failures on devices,
+ * that nobody looks at.
+ */
+final class RunHistory {
+    private static final String TAG = "RunHistory";
+
+    static final String FILE_NAME = "run-history";
+
+    private static final int FORMAT = 1;
+
+    static final int MAX_RUNS = 32;
+
+    // stopped on request (of user, schedule, another app or WebUI)
+    static final int REASON_STOPPED = 0;
+    // exited on it's own
+    static final int REASON_EXITED = 1;
+    // killed after failing health checks
+    static final int REASON_HUNG = 2;
+    // exited before it started responding to RPC
+    static final int REASON_NOT_READY = 3;
+
+    private static final String[] REASON_NAMES = { "stopped", "exited", "hung", "not ready" };
+
+    private final File file;
+
+    // ring buffer, the oldest record is at (next - count)
+    private final String[] instances = new String[MAX_RUNS];
+    private final long[] startTimes = new long[MAX_RUNS];
+    private final long[] uptimes = new long[MAX_RUNS];
+    private final int[] exitCodes = new int[MAX_RUNS];
+    private final int[] reasons = new int[MAX_RUNS];
+
+    private int next;
+    private int count;
+
+    private boolean loaded;
+
+    RunHistory(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param startTime wall clock time of the start
+     * @param uptime milliseconds from start till exit
+     * @param reason one of REASON_* constants
+     */
+    synchronized void record(String instance, long startTime, long uptime, int exitCode, int reason) {
+        load();
+
+        append(instance, startTime, uptime, exitCode, reason);
+
+        save();
+
+        Log.i(TAG, "aria2 " + instance + " " + REASON_NAMES[reason] + " with code " + exitCode
+                + " after " + uptime / 1000 + "s");
+    }
+
+    private void append(String instance, long startTime, long uptime, int exitCode, int reason) {
+        instances[next] = instance;
+        startTimes[next] = startTime;
+        uptimes[next] = uptime;
+        exitCodes[next] = exitCode;
+        reasons[next] = reason;
+
+        next = (next + 1) % MAX_RUNS;
+        count = Math.min(count + 1, MAX_RUNS);
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        load();
+
+        writer.println("Run history:");
+
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+
+        for (int i = 0; i < count; ++i) {
+            final int index = (next - count + i + MAX_RUNS) % MAX_RUNS;
+
+            writer.println("  " + format.format(new Date(startTimes[index])) + ' ' + instances[index]
+                    + ": " + REASON_NAMES[reasons[index]] + ", code " + exitCodes[index]
+                    + ", up " + uptimes[index] / 1000 + "s");
+        }
+    }
+
+    private void load() {
+        if (loaded) return;
+
+        loaded = true;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT) {
+                return;
+            }
+
+            final int stored = in.readUnsignedByte();
+
+            for (int i = 0; i < stored; ++i) {
+                final String instance = in.readUTF();
+                final long startTime = in.readLong();
+                final long uptime = in.readLong();
+                final int exitCode = in.readInt();
+                final int reason = in.readUnsignedByte();
+
+                if (reason < REASON_NAMES.length) {
+                    append(instance, startTime, uptime, exitCode, reason);
+                }
+            }
+        } catch (FileNotFoundException ignored) {
+            // first launch
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding damaged history", e);
+
+            next = count = 0;
+        }
+    }
+
+    private void save() {
+        final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FORMAT);
+            out.writeByte(count);
+
+            for (int i = 0; i < count; ++i) {
+                final int index = (next - count + i + MAX_RUNS) % MAX_RUNS;
+
+                out.writeUTF(instances[index]);
+                out.writeLong(startTimes[index]);
+                out.writeLong(uptimes[index]);
+                out.writeInt(exitCodes[index]);
+                out.writeByte(reasons[index]);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save history", e);
+            return;
+        }
+
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "Failed to replace " + file);
+        }
+    }
+}
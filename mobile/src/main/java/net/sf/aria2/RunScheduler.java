@@ -0,0 +1,226 @@
+package net.sf.aria2;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+
+import net.sf.aria2.schedule.ScheduleRule;
+
+import java.util.Calendar;
+
+/**
+ * Tracks the device state, schedule rules depend on (network type, roaming, charging and time
+ * of day) and tells the listener, whenever it changes. The listener also hears about network
+ * changes as such, since those may affect the interface aria2 binds to. Must be used from the
+ * handler thread.
+ */
+final class RunScheduler extends ContextWrapper {
+    interface Listener {
+        void onScheduleStateChanged(ScheduleRule.State state);
+
+        void onNetworkChanged();
+    }
+
+    private static final String ACTION_TICK = BuildConfig.APPLICATION_ID + ".action.SCHEDULE_TICK";
+
+    private final Handler handler;
+    private final Listener listener;
+
+    private final ConnectivityManager cm;
+    private final AlarmManager alarmManager;
+
+    private final Runnable evaluateTask = this::evaluate;
+    private final Runnable networkTask = this::reportNetwork;
+
+    private BroadcastReceiver receiver;
+    private Object networkCallback;
+    private PendingIntent tick;
+
+    private ScheduleRule.State state;
+
+    RunScheduler(Context base, Handler handler, Listener listener) {
+        super(base);
+
+        this.handler = handler;
+        this.listener = listener;
+
+        cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
+    }
+
+    void start() {
+        if (receiver != null) return;
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        filter.addAction(ACTION_TICK);
+
+        if (Build.VERSION.SDK_INT >= 21) {
+            registerNetworkCallback();
+        } else {
+            //noinspection deprecation
+            filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        }
+
+        registerReceiver(receiver = new StateReceiver(), filter, null, handler);
+
+        tick = PendingIntent.getBroadcast(this, 0, new Intent(ACTION_TICK).setPackage(getPackageName()), 0);
+
+        state = readState(this);
+    }
+
+    void stop() {
+        if (receiver == null) return;
+
+        handler.removeCallbacks(evaluateTask);
+        handler.removeCallbacks(networkTask);
+
+        unregisterReceiver(receiver);
+        receiver = null;
+
+        if (networkCallback != null) {
+            unregisterNetworkCallback();
+        }
+
+        alarmManager.cancel(tick);
+        tick = null;
+    }
+
+    ScheduleRule.State getState() {
+        return state == null ? readState(this) : state;
+    }
+
+    /**
+     * Re-evaluate the state after given delay, e.g. when the next time window opens.
+     *
+     * @param delay milliseconds or -1 to cancel
+     */
+    void setNextCheck(long delay) {
+        if (tick == null) return;
+
+        if (delay < 0) {
+            alarmManager.cancel(tick);
+            return;
+        }
+
+        // a little late is better than a little early
+        final long at = System.currentTimeMillis() + delay + 1000;
+
+        if (Build.VERSION.SDK_INT >= 23) {
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, at, tick);
+        } else {
+            alarmManager.setExact(AlarmManager.RTC_WAKEUP, at, tick);
+        }
+    }
+
+    private void evaluate() {
+        if (receiver == null) return;
+
+        state = readState(this);
+
+        listener.onScheduleStateChanged(state);
+    }
+
+    private void reportNetwork() {
+        if (receiver == null) return;
+
+        listener.onNetworkChanged();
+    }
+
+    // network callbacks tend to come in bursts
+    private void requestEvaluation() {
+        handler.removeCallbacks(evaluateTask);
+        handler.postDelayed(evaluateTask, 500);
+    }
+
+    private void onNetworkEvent() {
+        requestEvaluation();
+
+        // wait a bit longer for the addresses of new network to settle
+        handler.removeCallbacks(networkTask);
+        handler.postDelayed(networkTask, 2000);
+    }
+
+    static ScheduleRule.State readState(Context context) {
+        final ConnectivityManager cm = (ConnectivityManager) context.getSystemService(CONNECTIVITY_SERVICE);
+
+        final NetworkInfo ni = cm.getActiveNetworkInfo();
+
+        final boolean roaming = ni != null && ni.isRoaming();
+
+        final Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+
+        final boolean charging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+
+        final Calendar now = Calendar.getInstance();
+
+        final int minute = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+
+        return new ScheduleRule.State(cm.isActiveNetworkMetered(), roaming, charging, minute);
+    }
+
+    @TargetApi(21)
+    private void registerNetworkCallback() {
+        final ConnectivityManager.NetworkCallback callback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                onNetworkEvent();
+            }
+
+            @Override
+            public void onLost(Network network) {
+                onNetworkEvent();
+            }
+
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                requestEvaluation();
+            }
+
+            @Override
+            public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+                onNetworkEvent();
+            }
+        };
+
+        cm.registerNetworkCallback(new NetworkRequest.Builder().build(), callback);
+
+        networkCallback = callback;
+    }
+
+    @TargetApi(21)
+    private void unregisterNetworkCallback() {
+        cm.unregisterNetworkCallback((ConnectivityManager.NetworkCallback) networkCallback);
+
+        networkCallback = null;
+    }
+
+    private final class StateReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            //noinspection deprecation
+            if (ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) {
+                onNetworkEvent();
+            } else {
+                requestEvaluation();
+            }
+        }
+    }
+}
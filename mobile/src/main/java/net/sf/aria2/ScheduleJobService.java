@@ -0,0 +1,107 @@
+package net.sf.aria2;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import net.sf.aria2.schedule.ScheduleRule;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+import static net.sf.aria2.PublicReceiver.EXTRA_ONLY_IF_PENDING;
+import static net.sf.aria2.PublicReceiver.INTENT_START_SERVICE;
+
+/**
+ * Starts aria2, when a time window of some schedule rule opens (unless the rule says to pause,
+ * or there is nothing to download). Once running, aria2 is governed by {@link RunScheduler}.
+ */
+@TargetApi(21)
+public final class ScheduleJobService extends JobService {
+    private static final String TAG = "ScheduleJobService";
+
+    private static final int JOB_ID = 0xa2;
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        final List<ScheduleRule> rules = readRules(this);
+
+        final ScheduleRule rule = ScheduleRule.select(rules, RunScheduler.readState(this));
+
+        if (rule.isRunWindow()) {
+            Log.i(TAG, "Starting aria2 according to \"" + rule + '"');
+
+            final ConfigBuilder builder = new ConfigBuilder(this);
+
+            try {
+                final Intent intent = builder.constructServiceCommand(new Intent(this, Aria2Service.class))
+                        .setAction(INTENT_START_SERVICE)
+                        .putExtra(EXTRA_ONLY_IF_PENDING, true);
+
+                // nobody is there to see the toasts
+                intent.removeExtra(Config.EXTRA_INTERACTIVE);
+
+                builder.startForegroundCompat(intent);
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to start aria2: " + e.getMessage());
+            }
+        }
+
+        schedule(this, rules);
+
+        return false;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+
+    static List<ScheduleRule> readRules(Context context) {
+        final String text = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(context.getString(R.string.schedule_pref), "");
+
+        try {
+            return ScheduleRule.parseAll(text);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Bad schedule: " + e.getMessage());
+
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Schedule the job for the next run window, or cancel it, if there are none
+     */
+    static void schedule(Context context, List<ScheduleRule> rules) {
+        if (Build.VERSION.SDK_INT < 21) {
+            return;
+        }
+
+        final JobScheduler scheduler = (JobScheduler) context.getSystemService(JOB_SCHEDULER_SERVICE);
+
+        final long delay = ScheduleRule.untilNextRunWindow(rules, Calendar.getInstance());
+
+        if (delay < 0) {
+            scheduler.cancel(JOB_ID);
+            return;
+        }
+
+        final JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, ScheduleJobService.class))
+                .setMinimumLatency(delay + 1000)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setPersisted(true)
+                .build();
+
+        scheduler.schedule(job);
+    }
+}
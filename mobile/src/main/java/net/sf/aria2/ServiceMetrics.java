@@ -0,0 +1,196 @@
+package net.sf.aria2;
+
+import android.os.SystemClock;
+
+import net.sf.aria2.http.WebUiServer;
+import net.sf.aria2.rpc.GlobalStat;
+import net.sf.aria2.rpc.RpcClient;
+import net.sf.aria2.util.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Counters and histograms of the service since it was created, for comparing builds across
+ * devices. Printed by {@code adb shell dumpsys activity service net.sf.aria2/.Aria2Service} and
+ * (if {@code R.bool.metrics_endpoint} is set) served by {@link WebUiServer} at {@code /metrics}
+ * in Prometheus text format.
+ *
+ * Recording does not allocate: values are kept in primitive arrays, indexed by the constants
+ * below. Thread-safe.
+ */
+final class ServiceMetrics implements RpcClient.Monitor, WebUiServer.MetricsSource, StatSampler.Listener {
+    static final int STARTS = 0;
+    static final int RESTARTS = 1;
+    // options were applied without restarting aria2
+    static final int LIVE_RESTARTS = 2;
+    static final int STOPS_SIGINT = 3;
+    static final int STOPS_SIGKILL = 4;
+    static final int RPC_REQUESTS = 5;
+    static final int RPC_CALLS = 6;
+    static final int RPC_FAILED_CALLS = 7;
+    static final int RPC_BYTES_SENT = 8;
+    static final int RPC_BYTES_RECEIVED = 9;
+    // by all aria2 instances, estimated from sampled speeds
+    static final int BYTES_DOWNLOADED = 10;
+    static final int BYTES_UPLOADED = 11;
+
+    private static final String[] COUNTER_NAMES = {
+            "starts", "restarts", "live_restarts", "stops_sigint", "stops_sigkill",
+            "rpc_requests", "rpc_calls", "rpc_failed_calls", "rpc_bytes_sent", "rpc_bytes_received",
+            "bytes_downloaded", "bytes_uploaded"
+    };
+
+    static final int TIME_TO_READY = 0;
+    // from the first SIGINT until the process has exited
+    static final int STOP_SIGINT = 1;
+    static final int STOP_SIGKILL = 2;
+    static final int RPC_LATENCY = 3;
+
+    private static final String[] HISTOGRAM_NAMES = {
+            "time_to_ready_ms", "stop_sigint_ms", "stop_sigkill_ms", "rpc_latency_ms"
+    };
+
+    private static final String PREFIX = "aria2_";
+
+    // values() clones the array every time
+    private static final ExitCode[] EXIT_CODES = ExitCode.values();
+
+    private final long createdAt = SystemClock.elapsedRealtime();
+
+    private final long[] counters = new long[COUNTER_NAMES.length];
+    private final long[] exits = new long[EXIT_CODES.length];
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[HISTOGRAM_NAMES.length];
+
+    // the histograms only keep counts
+    private final long[] sums = new long[HISTOGRAM_NAMES.length];
+
+    ServiceMetrics() {
+        for (int i = 0; i < histograms.length; ++i) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    synchronized void increment(int counter) {
+        counters[counter]++;
+    }
+
+    synchronized void add(int counter, long delta) {
+        counters[counter] += delta;
+    }
+
+    synchronized void record(int histogram, long millis) {
+        histograms[histogram].record(millis);
+        sums[histogram] += Math.max(0, millis);
+    }
+
+    synchronized void recordExit(int code) {
+        int index = ExitCode.UnsupportedCode.ordinal();
+
+        for (ExitCode exitCode : EXIT_CODES) {
+            if (exitCode.getCode() == code && exitCode != ExitCode.UnsupportedCode) {
+                index = exitCode.ordinal();
+                break;
+            }
+        }
+
+        exits[index]++;
+    }
+
+    @Override
+    public synchronized void onRequest(int calls, int bytes) {
+        counters[RPC_REQUESTS]++;
+        counters[RPC_CALLS] += calls;
+        counters[RPC_BYTES_SENT] += bytes;
+    }
+
+    @Override
+    public synchronized void onResponse(long latencyNanos, int bytes) {
+        counters[RPC_BYTES_RECEIVED] += bytes;
+
+        record(RPC_LATENCY, latencyNanos / 1000_000L);
+    }
+
+    @Override
+    public synchronized void onFailure(int calls) {
+        counters[RPC_FAILED_CALLS] += calls;
+    }
+
+    @Override
+    public synchronized void onStat(StatSampler sampler, GlobalStat stat) {
+        counters[BYTES_DOWNLOADED] += sampler.getLastDownloaded();
+        counters[BYTES_UPLOADED] += sampler.getLastUploaded();
+    }
+
+    @Override
+    public void writeMetrics(Writer out) throws IOException {
+        final long[] counters;
+        final long[] exits;
+        final long[] sums;
+        final int[][] buckets = new int[histograms.length][];
+
+        synchronized (this) {
+            counters = this.counters.clone();
+            exits = this.exits.clone();
+            sums = this.sums.clone();
+
+            for (int i = 0; i < histograms.length; ++i) {
+                buckets[i] = histograms[i].toArray();
+            }
+        }
+
+        final StringBuilder builder = new StringBuilder(4096);
+
+        builder.append(PREFIX).append("uptime_seconds ")
+                .append((SystemClock.elapsedRealtime() - createdAt) / 1000).append('\n');
+
+        for (int i = 0; i < counters.length; ++i) {
+            builder.append(PREFIX).append(COUNTER_NAMES[i]).append("_total ").append(counters[i]).append('\n');
+        }
+
+        for (int i = 0; i < exits.length; ++i) {
+            if (exits[i] == 0) continue;
+
+            builder.append(PREFIX).append("exits_total{code=\"").append(EXIT_CODES[i].getCode())
+                    .append("\",name=\"").append(EXIT_CODES[i].name()).append("\"} ")
+                    .append(exits[i]).append('\n');
+        }
+
+        for (int i = 0; i < buckets.length; ++i) {
+            final String name = PREFIX + HISTOGRAM_NAMES[i];
+
+            long cumulative = 0;
+
+            for (int bucket = 0; bucket < buckets[i].length; ++bucket) {
+                cumulative += buckets[i][bucket];
+
+                // the last bucket is open-ended; "le" is inclusive, durations are whole milliseconds
+                final String bound = bucket == buckets[i].length - 1
+                        ? "+Inf"
+                        : String.valueOf(LatencyHistogram.upperBound(bucket) - 1);
+
+                builder.append(name).append("_bucket{le=\"").append(bound).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+
+            builder.append(name).append("_sum ").append(sums[i]).append('\n');
+            builder.append(name).append("_count ").append(cumulative).append('\n');
+        }
+
+        out.write(builder.toString());
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("Metrics:");
+
+        try {
+            writeMetrics(writer);
+        } catch (IOException e) {
+            // PrintWriter does not throw
+        }
+
+        writer.flush();
+    }
+}
@@ -0,0 +1,190 @@
+package net.sf.aria2;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.sf.aria2.rpc.DownloadListener;
+import net.sf.aria2.rpc.GlobalStat;
+import net.sf.aria2.rpc.RpcCall;
+import net.sf.aria2.rpc.RpcClient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decides when aria2 saves it's session. aria2 itself writes the session to internal storage
+ * only when asked to (via {@code aria2.saveSession}) and on exit. The keeper asks shortly after
+ * the queue changes and periodically, stretching the period while nothing changes. A gzipped
+ * copy is placed in the download directory only when the contents actually differ from the
+ * last copy, so slow external storage is not rewritten for nothing.
+ */
+final class SessionKeeper implements DownloadListener, StatSampler.Listener {
+    private static final String TAG = "SessionKeeper";
+
+    static final long EVENT_DELAY = 3000;
+    static final long MAX_EVENT_DELAY = 15000;
+    static final long MIN_INTERVAL = 60000;
+    static final long MAX_INTERVAL = 15 * 60000;
+
+    private final RpcClient rpc;
+    private final File liveFile;
+    private final File mirrorFile;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    private final Runnable saveTask = this::save;
+
+    private volatile boolean active;
+
+    // accessed on the keeper thread (and by finish after the thread is gone)
+    private long interval = MIN_INTERVAL;
+    private long changedSince;
+    private long mirroredCrc = -1;
+
+    SessionKeeper(RpcClient rpc, File liveFile, File mirrorFile) {
+        this.rpc = rpc;
+        this.liveFile = liveFile;
+        this.mirrorFile = mirrorFile;
+
+        thread = new HandlerThread("aria2 session keeper");
+        thread.start();
+
+        handler = new Handler(thread.getLooper());
+    }
+
+    void start() {
+        handler.post(() -> schedule(interval));
+    }
+
+    /**
+     * Stop periodic saves and copy the session, written by exiting aria2, to the download dir.
+     * Blocks, must be called after aria2 process exits.
+     */
+    void finish() {
+        thread.quit();
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        mirrorIfChanged();
+    }
+
+    @Override
+    public void onDownloadEvent(int event, String gid) {
+        handler.post(this::onQueueChanged);
+    }
+
+    @Override
+    public void onStat(StatSampler sampler, GlobalStat stat) {
+        active = stat.numActive != 0;
+    }
+
+    private void onQueueChanged() {
+        final long now = SystemClock.uptimeMillis();
+
+        if (changedSince == 0) {
+            changedSince = now;
+        }
+
+        // wait for the burst of events to end, but not forever
+        schedule(Math.max(0, Math.min(EVENT_DELAY, changedSince + MAX_EVENT_DELAY - now)));
+    }
+
+    private void save() {
+        changedSince = 0;
+
+        final RpcCall call = rpc.call("aria2.saveSession");
+
+        call.then(c -> handler.post(() -> onSaved(c)));
+    }
+
+    private void onSaved(RpcCall call) {
+        if (call.getError() == null && mirrorIfChanged() || active) {
+            interval = MIN_INTERVAL;
+        } else {
+            interval = Math.min(interval * 2, MAX_INTERVAL);
+        }
+
+        if (changedSince == 0) {
+            schedule(interval);
+        }
+    }
+
+    private void schedule(long delay) {
+        handler.removeCallbacks(saveTask);
+        handler.postDelayed(saveTask, delay);
+    }
+
+    private boolean mirrorIfChanged() {
+        if (!liveFile.exists()) {
+            return false;
+        }
+
+        try {
+            final long crc = checksum(liveFile);
+
+            if (crc == mirroredCrc && mirrorFile.exists()) {
+                return false;
+            }
+
+            final File tmp = new File(mirrorFile.getParentFile(), mirrorFile.getName() + ".tmp");
+
+            try (InputStream in = new FileInputStream(liveFile);
+                 FileOutputStream fileOut = new FileOutputStream(tmp)) {
+                final GZIPOutputStream out = new GZIPOutputStream(fileOut, 8192);
+
+                final byte[] buffer = new byte[8192];
+
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+
+                out.finish();
+
+                fileOut.getFD().sync();
+            }
+
+            if (!tmp.renameTo(mirrorFile)) {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+
+                throw new IOException("Failed to replace " + mirrorFile);
+            }
+
+            mirroredCrc = crc;
+
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to copy the session", e);
+
+            return false;
+        }
+    }
+
+    private static long checksum(File file) throws IOException {
+        final CRC32 crc = new CRC32();
+
+        try (InputStream in = new FileInputStream(file)) {
+            final byte[] buffer = new byte[8192];
+
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+
+        return crc.getValue();
+    }
+}
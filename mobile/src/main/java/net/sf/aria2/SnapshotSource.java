@@ -0,0 +1,224 @@
+package net.sf.aria2;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import net.sf.aria2.rpc.GlobalStat;
+import net.sf.aria2.rpc.RpcCall;
+import net.sf.aria2.rpc.RpcClient;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds {@link StatusSnapshot}s of single aria2 instance for binder clients. aria2 is queried on
+ * demand, at most once per {@link #MIN_INTERVAL}: concurrent requests wait for the same refresh,
+ * later ones are served from the last snapshot. When nothing has changed, the snapshot (and its
+ * sequence number) is kept, so clients can skip it.
+ *
+ * Used from binder threads.
+ */
+final class SnapshotSource {
+    private static final String TAG = "SnapshotSource";
+
+    private static final long MIN_INTERVAL = 1000;
+
+    private static final long CALL_TIMEOUT = 5000;
+
+    private static final int MAX_WAITING = 1000;
+
+    private static final String[] KEYS = {
+            "gid", "status", "totalLength", "completedLength", "downloadSpeed", "uploadSpeed", "infoHash"
+    };
+
+    // unique across restarts of the service, so old sequence never matches new snapshot
+    private static final AtomicLong sequences = new AtomicLong(System.currentTimeMillis());
+
+    private final RpcClient rpc;
+
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private StatusSnapshot current;
+    private GlobalStat lastStat;
+    private byte[] lastData;
+    private long refreshedAt;
+    private boolean refreshing;
+    private boolean closed;
+
+    SnapshotSource(RpcClient rpc) {
+        this.rpc = rpc;
+    }
+
+    /**
+     * @return the snapshot or null, if its sequence is {@code knownSequence}, or aria2 did not respond
+     */
+    @Nullable StatusSnapshot get(long knownSequence) {
+        synchronized (lock) {
+            while (refreshing) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+
+                    return null;
+                }
+            }
+
+            if (closed) {
+                return null;
+            }
+
+            if (current == null || SystemClock.elapsedRealtime() - refreshedAt >= MIN_INTERVAL) {
+                refreshing = true;
+            } else {
+                return pick(knownSequence);
+            }
+        }
+
+        final Sample sample = sample();
+
+        synchronized (lock) {
+            refreshing = false;
+            refreshedAt = SystemClock.elapsedRealtime();
+
+            if (!closed) {
+                publish(sample);
+            }
+
+            lock.notifyAll();
+
+            return closed ? null : pick(knownSequence);
+        }
+    }
+
+    // called with lock held
+    private StatusSnapshot pick(long knownSequence) {
+        if (current == null || current.sequence == knownSequence) {
+            return null;
+        }
+
+        // it's going to be marshalled into reply after the lock is released
+        current.acquire();
+
+        return current;
+    }
+
+    // called with lock held
+    private void publish(@Nullable Sample sample) {
+        if (sample == null) {
+            // stale data is worse than none
+            replace(null);
+
+            lastStat = null;
+            lastData = null;
+
+            return;
+        }
+
+        if (current != null && sample.stat.equals(lastStat) && Arrays.equals(sample.data, lastData)) {
+            return;
+        }
+
+        final GlobalStat stat = sample.stat;
+
+        replace(new StatusSnapshot(sequences.incrementAndGet(), stat.downloadSpeed, stat.uploadSpeed,
+                stat.numActive, stat.numWaiting, stat.numStopped, sample.data, sample.count));
+
+        lastStat = stat;
+        lastData = sample.data;
+    }
+
+    // called with lock held
+    private void replace(@Nullable StatusSnapshot snapshot) {
+        // the previous snapshot is released, once no binder thread is about to marshal it
+        if (current != null) {
+            current.retire();
+        }
+
+        current = snapshot;
+    }
+
+    @Nullable
+    private Sample sample() {
+        final RpcCall statCall = rpc.prepare("aria2.getGlobalStat");
+        final RpcCall activeCall = rpc.prepare("aria2.tellActive", (Object) KEYS);
+        final RpcCall waitingCall = rpc.prepare("aria2.tellWaiting", 0, MAX_WAITING, KEYS);
+
+        rpc.callAll(Arrays.asList(statCall, activeCall, waitingCall));
+
+        try {
+            final JSONObject stat = statCall.getObject(CALL_TIMEOUT);
+            final JSONArray active = activeCall.getArray(CALL_TIMEOUT);
+            final JSONArray waiting = waitingCall.getArray(CALL_TIMEOUT);
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * (active.length() + waiting.length()));
+            final DataOutputStream out = new DataOutputStream(bytes);
+
+            int count = 0;
+
+            for (JSONArray downloads : new JSONArray[] { active, waiting }) {
+                for (int i = 0; i < downloads.length(); ++i) {
+                    final JSONObject download = downloads.optJSONObject(i);
+                    if (download == null) continue;
+
+                    StatusSnapshot.encode(out, download.optString("gid"), parseStatus(download.optString("status")),
+                            GlobalStat.parseLong(download.optString("totalLength")),
+                            GlobalStat.parseLong(download.optString("completedLength")),
+                            GlobalStat.parseLong(download.optString("downloadSpeed")),
+                            GlobalStat.parseLong(download.optString("uploadSpeed")),
+                            download.optString("infoHash", null));
+
+                    ++count;
+                }
+            }
+
+            out.flush();
+
+            return new Sample(GlobalStat.parse(stat, active), bytes.toByteArray(), count);
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to sample aria2: " + e.getMessage());
+
+            return null;
+        }
+    }
+
+    private static int parseStatus(String status) {
+        switch (status) {
+            case "active":
+                return StatusSnapshot.STATUS_ACTIVE;
+            case "paused":
+                return StatusSnapshot.STATUS_PAUSED;
+            default:
+                return StatusSnapshot.STATUS_WAITING;
+        }
+    }
+
+    void close() {
+        synchronized (lock) {
+            closed = true;
+
+            replace(null);
+
+            lock.notifyAll();
+        }
+    }
+
+    private static final class Sample {
+        final GlobalStat stat;
+        final byte[] data;
+        final int count;
+
+        Sample(GlobalStat stat, byte[] data, int count) {
+            this.stat = stat;
+            this.data = data;
+            this.count = count;
+        }
+    }
+}
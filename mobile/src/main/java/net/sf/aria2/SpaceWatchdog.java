@@ -0,0 +1,161 @@
+package net.sf.aria2;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.StatFs;
+import android.util.Log;
+
+import net.sf.aria2.rpc.GlobalStat;
+
+import java.io.File;
+
+/**
+ * Pauses downloads of single aria2 instance before the download volume fills up (aria2 does not
+ * handle ENOSPC gracefully, a failed write may leave the file and it's control file
+ * inconsistent), and resumes them, once there is enough space again.
+ *
+ * Free space is checked more often, when aria2 writes faster. Download speed and remaining length
+ * of active downloads come from {@link StatSampler}. Must be used from the handler thread.
+ */
+final class SpaceWatchdog extends ContextWrapper implements StatSampler.Listener {
+    private static final String TAG = "SpaceWatchdog";
+
+    private static final long MB = 1024 * 1024;
+
+    // never let aria2 eat the last megabytes, the system needs them too
+    static final long RESERVE = 64 * MB;
+
+    // additional space, required to resume
+    static final long RESUME_MARGIN = 128 * MB;
+
+    // pause, if the volume is going to fill up within that time
+    static final long HORIZON = 30000;
+
+    static final long MIN_INTERVAL = 500;
+    static final long MAX_INTERVAL = 30000;
+
+    // space is not going to return in a blink
+    static final long PAUSED_INTERVAL = 10000;
+
+    private final Handler handler;
+    private final OptionArbiter arbiter;
+    private final File dir;
+
+    private final Runnable checkTask = this::check;
+
+    private boolean started;
+    private boolean paused;
+    private long freeWhenPaused;
+
+    private long downloadSpeed;
+    private long remainingLength;
+
+    SpaceWatchdog(Context base, Handler handler, OptionArbiter arbiter, File dir) {
+        super(base);
+
+        this.handler = handler;
+        this.arbiter = arbiter;
+        this.dir = dir;
+    }
+
+    void start() {
+        if (started) return;
+
+        started = true;
+
+        check();
+    }
+
+    void stop() {
+        started = false;
+
+        handler.removeCallbacks(checkTask);
+    }
+
+    @Override
+    public void onStat(StatSampler sampler, GlobalStat stat) {
+        final boolean faster = stat.downloadSpeed > downloadSpeed * 2;
+
+        downloadSpeed = stat.downloadSpeed;
+        remainingLength = stat.remainingLength;
+
+        // the sooner the better
+        if (faster && started) {
+            check();
+        }
+    }
+
+    private void check() {
+        if (!started) return;
+
+        handler.removeCallbacks(checkTask);
+
+        final long free;
+        try {
+            free = new StatFs(dir.getPath()).getAvailableBytes();
+        } catch (IllegalArgumentException e) {
+            // the volume is gone (e.g. unmounted), aria2 is going to fail anyway
+            Log.w(TAG, "Failed to stat " + dir);
+
+            handler.postDelayed(checkTask, MAX_INTERVAL);
+            return;
+        }
+
+        final long usable = free - RESERVE;
+
+        if (!paused) {
+            final boolean full = usable <= 0;
+
+            // only the part, that does not fit, matters
+            final boolean filling = remainingLength > usable && downloadSpeed > 0
+                    && usable * 1000 / downloadSpeed < HORIZON;
+
+            if (full || filling) {
+                Log.w(TAG, "Pausing downloads in " + dir + ": " + free / MB + "M free, "
+                        + remainingLength / MB + "M remaining at " + downloadSpeed / 1024 + "K/s");
+
+                paused = true;
+                freeWhenPaused = free;
+
+                arbiter.setPaused(OptionArbiter.LAYER_DISK_SPACE, true);
+
+                notifyUser();
+            }
+        } else if (usable >= RESUME_MARGIN && (remainingLength <= usable || free >= freeWhenPaused + RESUME_MARGIN)) {
+            Log.i(TAG, "Resuming downloads in " + dir + ": " + free / MB + "M free");
+
+            paused = false;
+
+            arbiter.setPaused(OptionArbiter.LAYER_DISK_SPACE, false);
+        }
+
+        handler.postDelayed(checkTask, paused ? PAUSED_INTERVAL : nextInterval(usable, downloadSpeed));
+    }
+
+    /**
+     * Check often enough to notice, when the margin shrinks by an eighth
+     */
+    static long nextInterval(long usable, long speed) {
+        if (usable <= 0) {
+            return MIN_INTERVAL;
+        }
+
+        if (speed <= 0) {
+            return MAX_INTERVAL;
+        }
+
+        final long untilFull = usable * 1000 / speed;
+
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, untilFull / 8));
+    }
+
+    private void notifyUser() {
+        final Intent toastIntent = new Intent(Aria2Service.ACTION_TOAST)
+                .setClassName(getPackageName(), "net.sf.aria2.PrivateReceiver")
+                .putExtra(Aria2Service.EXTRA_TEXT, getString(R.string.paused_no_space, dir.getPath()));
+
+        sendBroadcast(toastIntent);
+    }
+}
@@ -0,0 +1,164 @@
+package net.sf.aria2;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import net.sf.aria2.util.LatencyHistogram;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Startup timings of aria2 launches, persisted across restarts. Histograms are kept for current
+ * aria2 version and the one before it, so that regressions, introduced by new aria2 builds, can
+ * be spotted.
+ */
+final class StartupStats {
+    private static final String TAG = "StartupStats";
+
+    static final String FILE_NAME = "startup-stats";
+
+    private static final int FORMAT = 1;
+
+    static final int STAGE_SPAWN = 0;
+    static final int STAGE_LISTEN = 1;
+    static final int STAGE_SESSION = 2;
+
+    private static final String[] STAGE_KEYS = { "spawn", "listen", "session" };
+
+    private final File file;
+
+    private final LatencyHistogram[] current = new LatencyHistogram[STAGE_KEYS.length];
+    private final LatencyHistogram[] previous = new LatencyHistogram[STAGE_KEYS.length];
+    private final long[] last = { -1, -1, -1 };
+
+    private String version = "";
+    private String previousVersion = "";
+
+    private boolean loaded;
+
+    StartupStats(File file) {
+        this.file = file;
+
+        for (int i = 0; i < STAGE_KEYS.length; ++i) {
+            current[i] = new LatencyHistogram();
+            previous[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record timings (in milliseconds since launch) of successful aria2 launch.
+     */
+    synchronized void record(String aria2Version, long spawn, long listen, long sessionLoaded) {
+        load();
+
+        if (!version.equals(aria2Version)) {
+            if (!version.isEmpty()) {
+                for (int i = 0; i < STAGE_KEYS.length; ++i) {
+                    previous[i].copyFrom(current[i]);
+                }
+
+                previousVersion = version;
+            }
+
+            for (LatencyHistogram histogram : current) {
+                histogram.reset();
+            }
+
+            version = aria2Version;
+        }
+
+        last[STAGE_SPAWN] = spawn;
+        last[STAGE_LISTEN] = listen;
+        last[STAGE_SESSION] = sessionLoaded;
+
+        for (int i = 0; i < STAGE_KEYS.length; ++i) {
+            current[i].record(last[i]);
+        }
+
+        save();
+
+        Log.i(TAG, "aria2 " + version + " spawned in " + spawn + "ms, listening in " + listen
+                + "ms, session loaded in " + sessionLoaded + "ms");
+    }
+
+    /**
+     * @see IAria2#getStartupStats
+     */
+    synchronized Bundle toBundle() {
+        load();
+
+        final Bundle result = new Bundle();
+
+        result.putString("version", version);
+        result.putString("previous_version", previousVersion);
+
+        for (int i = 0; i < STAGE_KEYS.length; ++i) {
+            result.putLong("last_" + STAGE_KEYS[i], last[i]);
+            result.putIntArray(STAGE_KEYS[i], current[i].toArray());
+            result.putIntArray("previous_" + STAGE_KEYS[i], previous[i].toArray());
+        }
+
+        return result;
+    }
+
+    private void load() {
+        if (loaded) return;
+
+        loaded = true;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT) {
+                return;
+            }
+
+            version = in.readUTF();
+            previousVersion = in.readUTF();
+
+            for (int i = 0; i < STAGE_KEYS.length; ++i) {
+                current[i].readFrom(in);
+                previous[i].readFrom(in);
+            }
+        } catch (FileNotFoundException ignored) {
+            // first launch
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding damaged statistics", e);
+
+            version = previousVersion = "";
+
+            for (int i = 0; i < STAGE_KEYS.length; ++i) {
+                current[i].reset();
+                previous[i].reset();
+            }
+        }
+    }
+
+    private void save() {
+        final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FORMAT);
+            out.writeUTF(version);
+            out.writeUTF(previousVersion);
+
+            for (int i = 0; i < STAGE_KEYS.length; ++i) {
+                current[i].writeTo(out);
+                previous[i].writeTo(out);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save statistics", e);
+            return;
+        }
+
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "Failed to replace " + file);
+        }
+    }
+}
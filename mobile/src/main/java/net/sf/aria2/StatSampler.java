@@ -0,0 +1,243 @@
+package net.sf.aria2;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import net.sf.aria2.rpc.DownloadListener;
+import net.sf.aria2.rpc.GlobalStat;
+import net.sf.aria2.rpc.RpcCall;
+import net.sf.aria2.rpc.RpcClient;
+import net.sf.aria2.util.ReadoutParser;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Periodically polls {@code aria2.getGlobalStat} of single aria2 instance. The polling rate
+ * depends on screen state and presence of ongoing transfers: there is no point in frequent
+ * sampling, when nobody is looking and nothing is happening.
+ *
+ * If RPC is unavailable, statistics are taken from console readout, when there is one.
+ *
+ * All methods, except {@link #onDownloadEvent}, must be called on the handler thread.
+ */
+final class StatSampler extends ContextWrapper implements DownloadListener {
+    interface Listener {
+        void onStat(StatSampler sampler, GlobalStat stat);
+    }
+
+    static final long INTERVAL_ACTIVE = 1000;
+    static final long INTERVAL_IDLE = 5000;
+    static final long INTERVAL_SCREEN_OFF_ACTIVE = 15000;
+    static final long INTERVAL_SCREEN_OFF_IDLE = 60000;
+
+    private static final long MIN_FAILURE_BACKOFF = 2000;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final Handler handler;
+    private final RpcClient rpc;
+    private final ReadoutParser readout;
+
+    private final Runnable sampleTask = this::sample;
+
+    private BroadcastReceiver screenReceiver;
+
+    private boolean interactive = true;
+    private boolean started;
+    private boolean sampling;
+
+    private long failureBackoff = MIN_FAILURE_BACKOFF;
+
+    private GlobalStat last = GlobalStat.EMPTY;
+
+    private long sampledAt;
+
+    // estimated from the speeds, aria2 does not count transferred bytes globally
+    private long lastDownloaded;
+    private long lastUploaded;
+
+    StatSampler(Context base, Handler handler, RpcClient rpc, @Nullable ReadoutParser readout) {
+        super(base);
+
+        this.handler = handler;
+        this.rpc = rpc;
+        this.readout = readout;
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    GlobalStat getLast() {
+        return last;
+    }
+
+    /**
+     * @return bytes, downloaded between the last two samples
+     */
+    long getLastDownloaded() {
+        return lastDownloaded;
+    }
+
+    /**
+     * @return bytes, uploaded between the last two samples
+     */
+    long getLastUploaded() {
+        return lastUploaded;
+    }
+
+    RpcClient getRpc() {
+        return rpc;
+    }
+
+    void start() {
+        if (started) return;
+
+        started = true;
+
+        interactive = isInteractive();
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(screenReceiver = new ScreenReceiver(), filter, null, handler);
+
+        requestSample();
+    }
+
+    void stop() {
+        if (!started) return;
+
+        started = false;
+
+        handler.removeCallbacks(sampleTask);
+
+        unregisterReceiver(screenReceiver);
+        screenReceiver = null;
+    }
+
+    /**
+     * Sample as soon as possible. Multiple requests are coalesced into single sample.
+     */
+    void requestSample() {
+        if (!started || sampling) return;
+
+        handler.removeCallbacks(sampleTask);
+        handler.post(sampleTask);
+    }
+
+    @Override
+    public void onDownloadEvent(int event, String gid) {
+        // something changed, no need to wait for next tick
+        handler.post(this::requestSample);
+    }
+
+    private void sample() {
+        if (!started) return;
+
+        sampling = true;
+
+        final RpcCall statCall = rpc.call("aria2.getGlobalStat");
+        final RpcCall activeCall = rpc.call("aria2.tellActive", (Object) GlobalStat.ACTIVE_KEYS);
+
+        activeCall.then(c -> handler.post(() -> onSampled(statCall, activeCall)));
+    }
+
+    private void onSampled(RpcCall statCall, RpcCall activeCall) {
+        sampling = false;
+
+        if (!started) return;
+
+        try {
+            final GlobalStat stat = GlobalStat.parse(statCall.getObject(0), activeCall.getArray(0));
+
+            failureBackoff = MIN_FAILURE_BACKOFF;
+
+            deliver(stat);
+
+            schedule(nextInterval(interactive, stat.isTransferring()));
+        } catch (Exception e) {
+            // aria2 is still starting up or shutting down, or RPC is not reachable at all
+            long delay = failureBackoff;
+
+            if (readout != null && readout.hasFreshData()) {
+                final GlobalStat stat = readout.toGlobalStat();
+
+                deliver(stat);
+
+                delay = Math.min(delay, nextInterval(interactive, stat.isTransferring()));
+            }
+
+            schedule(delay);
+
+            failureBackoff = Math.min(failureBackoff * 2, INTERVAL_SCREEN_OFF_IDLE);
+        }
+    }
+
+    private void deliver(GlobalStat stat) {
+        final long now = SystemClock.elapsedRealtime();
+
+        // the speed is assumed to change linearly between samples; long gaps (RPC failures)
+        // are not worth guessing about
+        final long elapsed = sampledAt == 0 ? 0 : Math.min(now - sampledAt, INTERVAL_SCREEN_OFF_IDLE);
+
+        lastDownloaded = (last.downloadSpeed + stat.downloadSpeed) * elapsed / 2000;
+        lastUploaded = (last.uploadSpeed + stat.uploadSpeed) * elapsed / 2000;
+
+        sampledAt = now;
+        last = stat;
+
+        for (Listener listener : listeners) {
+            listener.onStat(this, stat);
+        }
+    }
+
+    private void schedule(long delay) {
+        handler.removeCallbacks(sampleTask);
+        handler.postAtTime(sampleTask, SystemClock.uptimeMillis() + delay);
+    }
+
+    static long nextInterval(boolean interactive, boolean transferring) {
+        if (interactive) {
+            return transferring ? INTERVAL_ACTIVE : INTERVAL_IDLE;
+        } else {
+            return transferring ? INTERVAL_SCREEN_OFF_ACTIVE : INTERVAL_SCREEN_OFF_IDLE;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    @TargetApi(Build.VERSION_CODES.KITKAT_WATCH)
+    private boolean isInteractive() {
+        final PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
+
+        return Build.VERSION.SDK_INT >= 20 ? pm.isInteractive() : pm.isScreenOn();
+    }
+
+    private final class ScreenReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            interactive = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+
+            if (interactive) {
+                // the user may be looking at the notification right now
+                requestSample();
+            } else if (!sampling) {
+                schedule(nextInterval(false, last.isTransferring()));
+            }
+        }
+    }
+}
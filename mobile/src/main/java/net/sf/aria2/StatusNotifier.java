@@ -0,0 +1,100 @@
+package net.sf.aria2;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+
+import net.sf.aria2.rpc.GlobalStat;
+
+/**
+ * Keeps the persistent notification in sync with aria2 statistics. Updates are coalesced:
+ * the notification is never posted more often than once per {@link #MIN_UPDATE_INTERVAL}
+ * (Android drops excessive updates anyway) and is not re-posted, when the rendered text
+ * stays the same.
+ *
+ * Must be used on the handler thread.
+ */
+final class StatusNotifier extends ContextWrapper {
+    static final long MIN_UPDATE_INTERVAL = 1000;
+
+    private final NotificationManager nm;
+    private final Handler handler;
+    private final int nfId;
+
+    private final Runnable postTask = this::post;
+
+    private NotificationCompat.Builder builder;
+
+    private GlobalStat pending;
+    private String postedTitle;
+    private String postedText;
+    private long lastPostTime;
+
+    StatusNotifier(Context base, Handler handler, int nfId) {
+        super(base);
+
+        this.handler = handler;
+        this.nfId = nfId;
+        this.nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+    }
+
+    void update(GlobalStat stat) {
+        final boolean scheduled = pending != null;
+
+        pending = stat;
+
+        if (scheduled) return;
+
+        final long wait = lastPostTime + MIN_UPDATE_INTERVAL - SystemClock.uptimeMillis();
+
+        if (wait <= 0) {
+            post();
+        } else {
+            handler.postDelayed(postTask, wait);
+        }
+    }
+
+    /**
+     * Forget previously posted state, e.g. because the notification was replaced by someone else.
+     */
+    void reset() {
+        handler.removeCallbacks(postTask);
+
+        pending = null;
+        postedTitle = null;
+        postedText = null;
+    }
+
+    private void post() {
+        final GlobalStat stat = pending;
+
+        pending = null;
+
+        if (stat == null) {
+            return;
+        }
+
+        final String title = NfBuilder.statusTitle(this, stat);
+        final String text = NfBuilder.statusText(this, stat);
+
+        if (title.equals(postedTitle) && text.equals(postedText)) {
+            return;
+        }
+
+        if (builder == null) {
+            builder = NfBuilder.createServiceNfBuilder(this);
+        }
+
+        final Notification nf = NfBuilder.createStatusNf(builder, title, text);
+
+        nm.notify(nfId, nf);
+
+        postedTitle = title;
+        postedText = text;
+        lastPostTime = SystemClock.uptimeMillis();
+    }
+}
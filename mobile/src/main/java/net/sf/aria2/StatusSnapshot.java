@@ -0,0 +1,331 @@
+package net.sf.aria2;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Status of aria2 instance, returned by {@link IAria2#getStatusSnapshot}: global statistics,
+ * active and waiting downloads (in that order). Downloads are stored in compact binary form and
+ * decoded by the first call to {@link #getEntries}. Large lists are passed in shared memory
+ * (on Android 8.1 and newer) instead of being copied into parcel; the region is released once
+ * decoded.
+ */
+public final class StatusSnapshot implements Parcelable {
+    private static final String TAG = "StatusSnapshot";
+
+    public static final int STATUS_ACTIVE = 0;
+    public static final int STATUS_WAITING = 1;
+    public static final int STATUS_PAUSED = 2;
+
+    // smaller lists are cheaper to copy, than to map
+    static final int SHARED_THRESHOLD = 16 * 1024;
+
+    private static final int INLINE = 0;
+    private static final int SHARED = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Changes whenever the snapshot does, pass it to the next call to skip unchanged snapshots
+     */
+    public final long sequence;
+
+    public final long downloadSpeed;
+    public final long uploadSpeed;
+    public final int numActive;
+    public final int numWaiting;
+    public final int numStopped;
+
+    private final int count;
+
+    // one of these holds encoded entries, until they are decoded
+    private byte[] data;
+    private SharedMemory shared;
+
+    private Entry[] entries;
+
+    // in the service: binder replies, that will carry the snapshot, but aren't written yet
+    private int pendingWrites;
+    private boolean retired;
+
+    StatusSnapshot(long sequence, long downloadSpeed, long uploadSpeed,
+                   int numActive, int numWaiting, int numStopped,
+                   byte[] data, int count) {
+        this.sequence = sequence;
+        this.downloadSpeed = downloadSpeed;
+        this.uploadSpeed = uploadSpeed;
+        this.numActive = numActive;
+        this.numWaiting = numWaiting;
+        this.numStopped = numStopped;
+        this.count = count;
+
+        if (Build.VERSION.SDK_INT >= 27 && data.length >= SHARED_THRESHOLD) {
+            this.shared = share(data);
+        }
+
+        if (shared == null) {
+            this.data = data;
+        }
+    }
+
+    private StatusSnapshot(Parcel source) {
+        sequence = source.readLong();
+        downloadSpeed = source.readLong();
+        uploadSpeed = source.readLong();
+        numActive = source.readInt();
+        numWaiting = source.readInt();
+        numStopped = source.readInt();
+        count = source.readInt();
+
+        if (source.readInt() == SHARED) {
+            shared = readShared(source);
+        } else {
+            data = source.createByteArray();
+        }
+    }
+
+    /**
+     * Encode single download, the way {@link #getEntries} expects it
+     */
+    static void encode(DataOutputStream out, String gid, int status,
+                       long totalLength, long completedLength, long downloadSpeed, long uploadSpeed,
+                       String infoHash) throws IOException {
+        putString(out, gid);
+        out.writeByte(status);
+        out.writeLong(totalLength);
+        out.writeLong(completedLength);
+        out.writeLong(downloadSpeed);
+        out.writeLong(uploadSpeed);
+        putString(out, infoHash);
+    }
+
+    // DataOutputStream and ByteBuffer are both big-endian
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        final byte[] bytes = value == null ? new byte[0] : value.getBytes(UTF_8);
+
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        final byte[] bytes = new byte[in.getShort() & 0xffff];
+
+        in.get(bytes);
+
+        return bytes.length == 0 ? null : new String(bytes, UTF_8);
+    }
+
+    /**
+     * @return active and waiting downloads, or null if the snapshot could not be decoded
+     */
+    public synchronized Entry[] getEntries() {
+        if (entries != null || (data == null && shared == null)) {
+            return entries;
+        }
+
+        try {
+            if (shared != null) {
+                entries = decodeShared();
+            } else {
+                entries = decode(ByteBuffer.wrap(data));
+            }
+        } catch (BufferUnderflowException e) {
+            Log.e(TAG, "Malformed snapshot " + sequence, e);
+        } finally {
+            release();
+        }
+
+        return entries;
+    }
+
+    private Entry[] decode(ByteBuffer in) {
+        final Entry[] decoded = new Entry[count];
+
+        for (int i = 0; i < count; ++i) {
+            decoded[i] = new Entry(getString(in), in.get(),
+                    in.getLong(), in.getLong(), in.getLong(), in.getLong(),
+                    getString(in));
+        }
+
+        return decoded;
+    }
+
+    /**
+     * Called by the service, before the snapshot is returned from binder call: it won't be
+     * released by {@link #retire} until written into the reply. Calls from the same process
+     * aren't marshalled, so such snapshot is left to the garbage collector.
+     */
+    synchronized void acquire() {
+        pendingWrites++;
+    }
+
+    /**
+     * Called by the service, when the snapshot is replaced: release it, once all replies, that
+     * carry it, are written
+     */
+    synchronized void retire() {
+        retired = true;
+
+        if (pendingWrites == 0) {
+            release();
+        }
+    }
+
+    /**
+     * Drop the encoded entries, closing shared memory region, if there is one
+     */
+    synchronized void release() {
+        data = null;
+
+        if (shared != null) {
+            closeShared();
+
+            shared = null;
+        }
+    }
+
+    @TargetApi(27)
+    private static SharedMemory share(byte[] data) {
+        SharedMemory memory = null;
+        try {
+            memory = SharedMemory.create("aria2-status", data.length);
+
+            final ByteBuffer buffer = memory.mapReadWrite();
+            try {
+                buffer.put(data);
+            } finally {
+                SharedMemory.unmap(buffer);
+            }
+
+            // the clients may only read it
+            memory.setProtect(OsConstants.PROT_READ);
+
+            return memory;
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Falling back to parcel: " + e.getMessage());
+
+            if (memory != null) {
+                memory.close();
+            }
+
+            return null;
+        }
+    }
+
+    @TargetApi(27)
+    private static SharedMemory readShared(Parcel source) {
+        return SharedMemory.CREATOR.createFromParcel(source);
+    }
+
+    @TargetApi(27)
+    private Entry[] decodeShared() {
+        try {
+            final ByteBuffer buffer = shared.mapReadOnly();
+            try {
+                return decode(buffer);
+            } finally {
+                SharedMemory.unmap(buffer);
+            }
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Failed to map snapshot " + sequence, e);
+
+            return null;
+        }
+    }
+
+    @TargetApi(27)
+    private void closeShared() {
+        shared.close();
+    }
+
+    @TargetApi(27)
+    private void writeShared(Parcel dest, int flags) {
+        shared.writeToParcel(dest, flags);
+    }
+
+    @Override
+    public int describeContents() {
+        return shared == null ? 0 : CONTENTS_FILE_DESCRIPTOR;
+    }
+
+    @Override
+    public synchronized void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(sequence);
+        dest.writeLong(downloadSpeed);
+        dest.writeLong(uploadSpeed);
+        dest.writeInt(numActive);
+        dest.writeInt(numWaiting);
+        dest.writeInt(numStopped);
+        dest.writeInt(count);
+
+        if (shared != null) {
+            dest.writeInt(SHARED);
+            writeShared(dest, flags);
+        } else {
+            dest.writeInt(INLINE);
+            dest.writeByteArray(data);
+        }
+
+        // the parcel holds its own duplicate of the descriptor now
+        if ((flags & PARCELABLE_WRITE_RETURN_VALUE) != 0 && pendingWrites > 0) {
+            if (--pendingWrites == 0 && retired) {
+                release();
+            }
+        }
+    }
+
+    public static final Parcelable.Creator<StatusSnapshot> CREATOR = new Creator<StatusSnapshot>() {
+        @Override
+        public StatusSnapshot createFromParcel(Parcel source) {
+            return new StatusSnapshot(source);
+        }
+
+        @Override
+        public StatusSnapshot[] newArray(int size) {
+            return new StatusSnapshot[size];
+        }
+    };
+
+    public static final class Entry {
+        public final String gid;
+
+        /**
+         * One of STATUS_* constants
+         */
+        public final int status;
+
+        public final long totalLength;
+        public final long completedLength;
+        public final long downloadSpeed;
+        public final long uploadSpeed;
+
+        /**
+         * Info hash of torrent download or null
+         */
+        public final String infoHash;
+
+        Entry(String gid, int status,
+              long totalLength, long completedLength, long downloadSpeed, long uploadSpeed,
+              String infoHash) {
+            this.gid = gid;
+            this.status = status;
+            this.totalLength = totalLength;
+            this.completedLength = completedLength;
+            this.downloadSpeed = downloadSpeed;
+            this.uploadSpeed = uploadSpeed;
+            this.infoHash = infoHash;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package net.sf.aria2;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.sf.aria2.rpc.RpcClient;
+import net.sf.aria2.rpc.RpcException;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps aria2 instances alive. Running instances are pinged every {@link #HEALTH_INTERVAL}; the
+ * one, that fails {@link #MAX_FAILED_CHECKS} checks in a row, is reported as hung. Instances,
+ * that exit abnormally (or hang), are restarted with exponential backoff, until they crash
+ * {@link #BREAKER_LIMIT} times within {@link #BREAKER_WINDOW}: after that they are left alone
+ * until started again by user, schedule or another app.
+ *
+ * Health checks and restarts run on the main thread, {@link #onExit} may be called from any.
+ */
+final class Supervisor {
+    private static final String TAG = "Supervisor";
+
+    private static final long HEALTH_INTERVAL = 60 * 1000;
+    private static final long HEALTH_TIMEOUT = 10 * 1000;
+    private static final int MAX_FAILED_CHECKS = 3;
+
+    private static final long MIN_BACKOFF = 5 * 1000;
+    private static final long MAX_BACKOFF = 10 * 60 * 1000;
+
+    // a run this long is not part of crash loop, whatever has happened before
+    private static final long STABLE_UPTIME = 10 * 60 * 1000;
+
+    private static final long BREAKER_WINDOW = 60 * 60 * 1000;
+    private static final int BREAKER_LIMIT = 5;
+
+    private final Handler handler;
+
+    // accessed from the main thread only
+    private final Map<String, HealthCheck> checks = new HashMap<>();
+    private final Map<String, Runnable> restarts = new HashMap<>();
+
+    // guarded by this
+    private final Map<String, Crashes> crashes = new HashMap<>();
+
+    Supervisor(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Start pinging the instance, replacing the previous health check for the same key.
+     *
+     * @param onHung called on the main thread, once the instance stops responding
+     */
+    void watch(String key, RpcClient rpc, Runnable onHung) {
+        unwatch(key);
+
+        final HealthCheck check = new HealthCheck(key, rpc, onHung);
+
+        checks.put(key, check);
+
+        handler.postDelayed(check, HEALTH_INTERVAL);
+    }
+
+    void unwatch(String key) {
+        final HealthCheck check = checks.remove(key);
+
+        if (check != null) {
+            check.cancelled = true;
+
+            handler.removeCallbacks(check);
+        }
+    }
+
+    /**
+     * Decide, whether the instance should be restarted.
+     *
+     * @param reason one of {@code RunHistory.REASON_*} constants
+     * @param uptime milliseconds from start till exit
+     * @return the delay before restart or -1, if the instance should stay stopped
+     */
+    synchronized long onExit(String key, int reason, int exitCode, long uptime) {
+        if (reason == RunHistory.REASON_STOPPED) {
+            return -1;
+        }
+
+        final ExitCode code = ExitCode.from(exitCode);
+
+        // aria2 has finished the queue or was shut down via RPC
+        if (reason != RunHistory.REASON_HUNG && code.isSuccess()) {
+            return -1;
+        }
+
+        // restarting won't fix these
+        switch (code) {
+            case BadArgument:
+            case DiskErr:
+            case MkdirErr:
+                Log.w(TAG, "Not restarting " + key + " after " + code);
+
+                return -1;
+        }
+
+        Crashes history = crashes.get(key);
+
+        if (history == null || uptime >= STABLE_UPTIME) {
+            history = new Crashes();
+
+            crashes.put(key, history);
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+
+        while (!history.times.isEmpty() && now - history.times.peekFirst() > BREAKER_WINDOW) {
+            history.times.pollFirst();
+        }
+
+        history.times.addLast(now);
+
+        if (history.times.size() >= BREAKER_LIMIT) {
+            history.tripped = true;
+
+            Log.e(TAG, key + " has crashed " + history.times.size() + " times within "
+                    + BREAKER_WINDOW / 60000 + " minutes, giving up");
+
+            return -1;
+        }
+
+        final long delay = Math.min(MIN_BACKOFF << (history.times.size() - 1), MAX_BACKOFF);
+
+        Log.w(TAG, "Restarting " + key + " after " + code + " in " + delay / 1000 + "s");
+
+        return delay;
+    }
+
+    /**
+     * Forget the crashes of the instance, so that explicit start is not affected by them
+     */
+    synchronized void reset(String key) {
+        crashes.remove(key);
+    }
+
+    // called on the main thread
+    void scheduleRestart(String key, Runnable restart, long delay) {
+        cancel(key);
+
+        final Runnable wrapper = () -> {
+            restarts.remove(key);
+
+            restart.run();
+        };
+
+        restarts.put(key, wrapper);
+
+        handler.postDelayed(wrapper, delay);
+    }
+
+    /**
+     * Called on the main thread.
+     *
+     * @return true, if there was a pending restart
+     */
+    boolean cancel(String key) {
+        final Runnable pending = restarts.remove(key);
+
+        if (pending == null) {
+            return false;
+        }
+
+        handler.removeCallbacks(pending);
+
+        return true;
+    }
+
+    // called on the main thread
+    boolean hasPendingRestarts() {
+        return !restarts.isEmpty();
+    }
+
+    // called on the main thread
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Supervisor:");
+        writer.println("  watched: " + checks.keySet());
+        writer.println("  pending restarts: " + restarts.keySet());
+
+        for (Map.Entry<String, Crashes> entry : crashes.entrySet()) {
+            final Crashes history = entry.getValue();
+
+            writer.println("  " + entry.getKey() + ": " + history.times.size() + " recent crashes"
+                    + (history.tripped ? ", not restarting" : ""));
+        }
+    }
+
+    private static final class Crashes {
+        // elapsed realtime of abnormal exits, oldest first
+        final ArrayDeque<Long> times = new ArrayDeque<>(BREAKER_LIMIT);
+
+        boolean tripped;
+    }
+
+    private final class HealthCheck implements Runnable {
+        private final String key;
+        private final RpcClient rpc;
+        private final Runnable onHung;
+
+        // accessed from the main thread only
+        private int failed;
+        private boolean pending;
+        private boolean cancelled;
+
+        HealthCheck(String key, RpcClient rpc, Runnable onHung) {
+            this.key = key;
+            this.rpc = rpc;
+            this.onHung = onHung;
+        }
+
+        @Override
+        public void run() {
+            if (pending) {
+                // the previous ping has not even timed out
+                onResult(new RpcException(RpcException.TRANSPORT, "No response"));
+
+                if (cancelled) return;
+            }
+
+            pending = true;
+
+            rpc.call(HEALTH_TIMEOUT, "aria2.getVersion")
+                    .then(call -> handler.post(() -> {
+                        if (pending && !cancelled) {
+                            onResult(call.getError());
+                        }
+                    }));
+
+            handler.postDelayed(this, HEALTH_INTERVAL);
+        }
+
+        private void onResult(RpcException error) {
+            pending = false;
+
+            // a fault means, that aria2 is alive enough to refuse
+            if (error == null || error.isFault()) {
+                failed = 0;
+
+                return;
+            }
+
+            ++failed;
+
+            Log.w(TAG, key + " failed health check " + failed + '/' + MAX_FAILED_CHECKS + ": " + error.getMessage());
+
+            if (failed >= MAX_FAILED_CHECKS) {
+                unwatch(key);
+
+                onHung.run();
+            }
+        }
+    }
+}
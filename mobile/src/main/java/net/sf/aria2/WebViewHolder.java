@@ -0,0 +1,371 @@
+package net.sf.aria2;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.MutableContextWrapper;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.view.ViewGroup;
+import android.webkit.ClientCertRequest;
+import android.webkit.CookieManager;
+import android.webkit.CookieSyncManager;
+import android.webkit.MimeTypeMap;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebSettings;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+import android.widget.Toast;
+
+import net.sf.aria2.util.WebUiExtractor;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Keeps the WebView of builtin frontend (and the page, loaded in it) alive between launches of
+ * {@link JsFrontendActivity}, so that reopening the UI does not reload it. The WebView lives in
+ * a {@link MutableContextWrapper}, pointing to the activity while attached and to application
+ * otherwise, so no activity is leaked.
+ *
+ * JavaScript timers are paused, while the UI is not visible: the WebUI polls aria2 from them,
+ * and there is nobody to see the results. When the system is short on memory, a detached
+ * WebView is destroyed altogether.
+ *
+ * The WebUI is served from assets by the WebView itself, under an origin, that never reaches the
+ * network, so no other app can stand in for it. The RPC secret and {@link RpcBridge} are only
+ * given to pages of that origin.
+ *
+ * Must be used from the main thread.
+ */
+final class WebViewHolder implements ComponentCallbacks2 {
+    private static final String TAG = "WebViewHolder";
+
+    // all requests to this origin are answered from assets, see JsAwareWebViewClient
+    private static final String ORIGIN = "http://webui.aria2.invalid/";
+
+    private static final String START_PAGE = ORIGIN + "index.html";
+
+    @SuppressLint("StaticFieldLeak") // holds application context only
+    private static WebViewHolder instance;
+
+    private final Context appContext;
+    private final MutableContextWrapper context;
+
+    private WebView webView;
+    private RpcBridge bridge;
+    private String bridgeScript;
+    private boolean attached;
+
+    private WebViewHolder(Context appContext) {
+        this.appContext = appContext;
+        this.context = new MutableContextWrapper(appContext);
+
+        appContext.registerComponentCallbacks(this);
+    }
+
+    static WebViewHolder get(Context context) {
+        if (instance == null) {
+            instance = new WebViewHolder(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * Create the WebView and load the UI in background, once the main thread is idle
+     */
+    void prewarm() {
+        if (webView != null) return;
+
+        Looper.myQueue().addIdleHandler(() -> {
+            if (webView == null) {
+                Log.d(TAG, "Prewarming WebView");
+
+                create();
+
+                // not visible yet
+                webView.pauseTimers();
+            }
+
+            return false;
+        });
+    }
+
+    /**
+     * @return the WebView, added to the container
+     */
+    WebView attach(Activity activity, ViewGroup container) {
+        context.setBaseContext(activity);
+
+        if (webView == null) {
+            create();
+        } else if (webView.getParent() instanceof ViewGroup) {
+            ((ViewGroup) webView.getParent()).removeView(webView);
+        }
+
+        container.addView(webView, new ViewGroup.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+
+        attached = true;
+
+        return webView;
+    }
+
+    void detach(Activity activity) {
+        if (context.getBaseContext() != activity) return;
+
+        attached = false;
+
+        if (webView != null) {
+            if (webView.getParent() instanceof ViewGroup) {
+                ((ViewGroup) webView.getParent()).removeView(webView);
+            }
+
+            webView.setWebChromeClient(null);
+        }
+
+        context.setBaseContext(appContext);
+    }
+
+    void onVisible() {
+        if (webView == null) return;
+
+        webView.onResume();
+        webView.resumeTimers();
+    }
+
+    void onHidden() {
+        if (webView == null) return;
+
+        // stops the polling of aria2 (timers are global for all WebViews in the process)
+        webView.pauseTimers();
+        webView.onPause();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (webView == null) return;
+
+        if (!attached && level >= TRIM_MEMORY_BACKGROUND) {
+            Log.i(TAG, "Destroying detached WebView, trim level " + level);
+
+            bridge.close();
+            bridge = null;
+
+            webView.destroy();
+            webView = null;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            webView.clearCache(false);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    @SuppressLint("SetJavaScriptEnabled")
+    @SuppressWarnings("deprecation")
+    private void create() {
+        if (Build.VERSION.SDK_INT <= 21) {
+            CookieSyncManager.createInstance(appContext);
+        }
+
+        CookieManager.setAcceptFileSchemeCookies(true);
+
+        final CookieManager cookieManager = CookieManager.getInstance();
+        cookieManager.setAcceptCookie(true);
+
+        webView = new WebView(context);
+
+        if (Build.VERSION.SDK_INT >= 21) {
+            cookieManager.setAcceptThirdPartyCookies(webView, true);
+        }
+
+        webView.setWebViewClient(new JsAwareWebViewClient());
+
+        bridge = new RpcBridge(webView);
+        webView.addJavascriptInterface(bridge, RpcBridge.NAME);
+
+        final WebSettings config = webView.getSettings();
+
+        config.setJavaScriptEnabled(true);
+        config.setAllowFileAccess(false);
+        config.setLoadsImagesAutomatically(true);
+
+        // apparently setting this to true prevents data: and some other uri types from working
+        config.setBlockNetworkImage(false);
+
+        config.setAppCacheEnabled(false);
+        config.setSavePassword(false);
+        config.setSaveFormData(false);
+        config.setDomStorageEnabled(false);
+        config.setGeolocationEnabled(false);
+        config.setSupportMultipleWindows(false);
+        config.setJavaScriptCanOpenWindowsAutomatically(false);
+        config.setAllowContentAccess(true);
+
+        if (Build.VERSION.SDK_INT >= 16) {
+            config.setAllowUniversalAccessFromFileURLs(false);
+            config.setAllowFileAccessFromFileURLs(false);
+        }
+
+        if (Build.VERSION.SDK_INT >= 17) {
+            config.setMediaPlaybackRequiresUserGesture(true);
+
+            if (Build.VERSION.SDK_INT >= 21) {
+                config.setMixedContentMode(WebSettings.MIXED_CONTENT_NEVER_ALLOW);
+            }
+        }
+
+        if (BuildConfig.DEBUG) {
+            WebView.setWebContentsDebuggingEnabled(true);
+        }
+
+        webView.loadUrl(START_PAGE);
+    }
+
+    /**
+     * @return the asset, that corresponds to the url, or null, if the url is not of {@link #ORIGIN}
+     */
+    private WebResourceResponse openAsset(String url) {
+        if (!url.startsWith(ORIGIN)) {
+            return null;
+        }
+
+        String path = Uri.parse(url).getPath();
+
+        if (path == null || path.contains("..")) {
+            return notFound();
+        }
+
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+
+        final String extension = MimeTypeMap.getFileExtensionFromUrl(path).toLowerCase(Locale.US);
+
+        String type = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+        if (type == null) {
+            type = "js".equals(extension) ? "application/javascript" : "application/octet-stream";
+        }
+
+        try {
+            final InputStream asset = appContext.getAssets().open(WebUiExtractor.ASSET_DIR + '/' + path);
+
+            return new WebResourceResponse(type, type.startsWith("image/") ? null : "UTF-8", asset);
+        } catch (IOException e) {
+            return notFound();
+        }
+    }
+
+    private static WebResourceResponse notFound() {
+        final WebResourceResponse response = new WebResourceResponse("text/plain", "UTF-8",
+                new ByteArrayInputStream(new byte[0]));
+
+        if (Build.VERSION.SDK_INT >= 21) {
+            response.setStatusCodeAndReasonPhrase(404, "Not Found");
+        }
+
+        return response;
+    }
+
+    private final class JsAwareWebViewClient extends WebViewClient {
+        @Override
+        public void onReceivedClientCertRequest(WebView view, ClientCertRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+            return openAsset(url);
+        }
+
+        @Override
+        @TargetApi(21)
+        public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+            return openAsset(request.getUrl().toString());
+        }
+
+        @Override
+        public void onPageStarted(WebView view, String url, Bitmap favicon) {
+            if (bridge != null) {
+                bridge.setTrusted(url != null && url.startsWith(ORIGIN));
+            }
+        }
+
+        @Override
+        public void onPageFinished(WebView view, String url) {
+            // anything else may not see the secret
+            if (!url.startsWith(ORIGIN) || !url.endsWith("/index.html")) return;
+
+            final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(appContext);
+
+            final String authPref = prefs.getString("token", appContext.getString(R.string.rpc_secret));
+
+            final String config = "aria2authConfig.token = " + JSONObject.quote(authPref) + ";";
+
+            initializeConfig(view, config);
+
+            if (bridgeScript == null) {
+                bridgeScript = RpcBridge.getScript(appContext);
+            }
+
+            initializeConfig(view, bridgeScript);
+        }
+
+        private void initializeConfig(WebView view, String expression) {
+            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.KITKAT) {
+                view.evaluateJavascript(expression, null);
+            } else {
+                view.loadUrl("javascript:" + expression);
+            }
+        }
+
+        @Override
+        public boolean shouldOverrideUrlLoading(WebView view, String url)
+        {
+            if (url.startsWith(ORIGIN)) {
+                return false;
+            }
+
+            final Intent i = new Intent(Intent.ACTION_VIEW, Uri.parse(url));
+
+            if (!(context.getBaseContext() instanceof Activity)) {
+                i.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            }
+
+            final PackageManager packageManager = appContext.getPackageManager();
+            if (i.resolveActivity(packageManager) != null) {
+                context.startActivity(i);
+            } else if (url.startsWith("http:") || url.startsWith("https:")) {
+                Toast.makeText(appContext, "No web browsers found!", Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(appContext, "None of installed applications can handle the link", Toast.LENGTH_SHORT).show();
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package net.sf.aria2.http;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Head of HTTP/1.x request
+ */
+final class Request {
+    final String method;
+    final String target;
+    final String version;
+
+    // names are lower-cased
+    final Map<String, String> headers;
+
+    private Request(String method, String target, String version, Map<String, String> headers) {
+        this.method = method;
+        this.target = target;
+        this.version = version;
+        this.headers = headers;
+    }
+
+    /**
+     * @param head request line and headers, without the terminating empty line
+     * @return the request or null, if it is malformed
+     */
+    static Request parse(String head) {
+        final String[] lines = head.split("\r\n");
+
+        final String[] requestLine = lines[0].split(" ");
+
+        if (requestLine.length != 3 || !requestLine[1].startsWith("/") || !requestLine[2].startsWith("HTTP/1.")) {
+            return null;
+        }
+
+        final Map<String, String> headers = new LinkedHashMap<>();
+
+        for (int i = 1; i < lines.length; ++i) {
+            final int colon = lines[i].indexOf(':');
+
+            if (colon <= 0) {
+                return null;
+            }
+
+            headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US), lines[i].substring(colon + 1).trim());
+        }
+
+        return new Request(requestLine[0], requestLine[1], requestLine[2], headers);
+    }
+
+    String path() {
+        final int query = target.indexOf('?');
+
+        return query < 0 ? target : target.substring(0, query);
+    }
+
+    boolean keepAlive() {
+        final String connection = headers.get("connection");
+
+        if ("HTTP/1.0".equals(version)) {
+            return connection != null && connection.equalsIgnoreCase("keep-alive");
+        }
+
+        return connection == null || !connection.equalsIgnoreCase("close");
+    }
+
+    boolean isUpgrade() {
+        final String connection = headers.get("connection");
+
+        return headers.containsKey("upgrade") && connection != null
+                && connection.toLowerCase(Locale.US).contains("upgrade");
+    }
+
+    /**
+     * @return the head to send to another server: the connection is not reused, unless it is
+     * being upgraded (WebSocket)
+     */
+    String forward(String host) {
+        final StringBuilder builder = new StringBuilder(512)
+                .append(method).append(' ').append(target).append(' ').append(version).append("\r\n")
+                .append("Host: ").append(host).append("\r\n")
+                .append("Connection: ").append(isUpgrade() ? "Upgrade" : "close").append("\r\n");
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            switch (header.getKey()) {
+                case "host":
+                case "connection":
+                case "keep-alive":
+                    continue;
+            }
+
+            builder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+
+        return builder.append("\r\n").toString();
+    }
+}
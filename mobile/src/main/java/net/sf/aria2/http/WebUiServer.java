@@ -0,0 +1,855 @@
+package net.sf.aria2.http;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import net.sf.aria2.util.WebUiExtractor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Loopback HTTP/1.1 server, that makes the WebUI available to any browser on the device, without
+ * extracting it and without file:// access tricks. Assets are served straight from the APK, under
+ * a path, unique for the build, so they can be cached forever; compressible assets are gzipped
+ * once and kept in cache directory. {@code /jsonrpc} (including WebSocket upgrades) is tunneled
+ * to aria2, so that the UI talks to it via the same origin.
+ *
+ * The server listens on a port, picked by the system, and serves the start page only under a path,
+ * randomly chosen on each start (see {@link #getUrl}), so that the link can not be guessed by
+ * anyone, who did not get it from the app.
+ *
+ * A single thread does all socket IO; responses are prepared (and compressed) on a worker thread.
+ */
+public final class WebUiServer implements Closeable {
+    private static final String TAG = "WebUiServer";
+
+    public interface Upstream {
+        /**
+         * @return RPC port of aria2 to forward {@code /jsonrpc} to, or -1, if it is not running
+         */
+        int getRpcPort();
+    }
+
+    public interface MetricsSource {
+        /**
+         * Write metrics in Prometheus text format. Called on the worker thread.
+         */
+        void writeMetrics(Writer out) throws IOException;
+    }
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final String RPC_PATH = "/jsonrpc";
+    private static final String METRICS_PATH = "/metrics";
+
+    private static final int MAX_HEAD = 16 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long IDLE_TIMEOUT = 60000;
+
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+    // already compressed formats
+    private static final List<String> INCOMPRESSIBLE = Arrays.asList(
+            "png", "jpg", "jpeg", "gif", "ico", "woff", "woff2");
+
+    private static final Map<String, String> TYPES = new HashMap<>();
+
+    static {
+        TYPES.put("html", "text/html; charset=utf-8");
+        TYPES.put("js", "application/javascript; charset=utf-8");
+        TYPES.put("css", "text/css; charset=utf-8");
+        TYPES.put("json", "application/json; charset=utf-8");
+        TYPES.put("md", "text/plain; charset=utf-8");
+        TYPES.put("txt", "text/plain; charset=utf-8");
+        TYPES.put("svg", "image/svg+xml");
+        TYPES.put("png", "image/png");
+        TYPES.put("jpg", "image/jpeg");
+        TYPES.put("jpeg", "image/jpeg");
+        TYPES.put("gif", "image/gif");
+        TYPES.put("ico", "image/x-icon");
+        TYPES.put("woff", "font/woff");
+        TYPES.put("woff2", "font/woff2");
+        TYPES.put("ttf", "font/ttf");
+        TYPES.put("otf", "font/otf");
+    }
+
+    private static final int STATE_HEAD = 0;
+    private static final int STATE_PREPARING = 1;
+    private static final int STATE_RESPONDING = 2;
+    private static final int STATE_TUNNEL = 3;
+
+    private final AssetManager assets;
+    private final String assetDir;
+    private final File gzipDir;
+    private final Upstream upstream;
+
+    private final Map<String, WebUiExtractor.Entry> manifest;
+
+    // changes with every change of assets
+    private final String build;
+
+    // changes with every start
+    private final String nonce;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final int port;
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+
+    // tasks, that must be run on the IO thread
+    private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+    private final Thread thread;
+
+    private volatile MetricsSource metrics;
+
+    private volatile boolean closed;
+
+    private WebUiServer(AssetManager assets, String assetDir, File cacheDir, int port, Upstream upstream) throws IOException {
+        this.assets = assets;
+        this.assetDir = assetDir;
+        this.gzipDir = new File(cacheDir, "webui-gz");
+        this.upstream = upstream;
+
+        final byte[] manifestBytes;
+        try (InputStream in = assets.open(assetDir + WebUiExtractor.MANIFEST_SUFFIX, AssetManager.ACCESS_STREAMING)) {
+            manifestBytes = readFully(in);
+        }
+
+        this.manifest = WebUiExtractor.readManifest(new ByteArrayInputStream(manifestBytes));
+        this.build = toHex(sha1().digest(manifestBytes)).substring(0, 12);
+
+        final byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        this.nonce = toHex(random);
+
+        this.selector = Selector.open();
+
+        try {
+            server = ServerSocketChannel.open();
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            selector.close();
+            throw e;
+        }
+
+        this.port = server.socket().getLocalPort();
+
+        // the worker is shut down by the IO thread, so submit before starting it
+        worker.execute(this::removeStaleGzips);
+
+        thread = new Thread(this::loop, TAG);
+        thread.start();
+    }
+
+    /**
+     * @param port the port to listen on (loopback interface only), 0 to pick any free one
+     */
+    public static WebUiServer start(AssetManager assets, String assetDir, File cacheDir, int port, Upstream upstream) throws IOException {
+        return new WebUiServer(assets, assetDir, cacheDir, port, upstream);
+    }
+
+    /**
+     * Serve metrics at {@value #METRICS_PATH}, pass null to stop
+     */
+    public void setMetrics(MetricsSource metrics) {
+        this.metrics = metrics;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the address of start page, valid until the server is closed
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + port + '/' + nonce + '/';
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        // the worker is shut down by the IO thread, once it no longer submits to it
+        selector.wakeup();
+    }
+
+    private void loop() {
+        try {
+            while (!closed) {
+                selector.select(IDLE_TIMEOUT / 4);
+
+                Runnable task;
+                while ((task = pending.poll()) != null) {
+                    task.run();
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    final Exchange exchange = (Exchange) key.attachment();
+
+                    try {
+                        if (key == exchange.upstreamKey) {
+                            exchange.onUpstreamReady();
+                        } else {
+                            exchange.onClientReady();
+                        }
+                    } catch (IOException e) {
+                        exchange.close();
+                    }
+                }
+
+                selector.selectedKeys().clear();
+
+                expireIdle();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Server failed", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Exchange) {
+                    ((Exchange) key.attachment()).close();
+                }
+            }
+
+            closeQuietly(server);
+            closeQuietly(selector);
+
+            worker.shutdownNow();
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel client = server.accept();
+
+        if (client == null) return;
+
+        client.configureBlocking(false);
+        client.socket().setTcpNoDelay(true);
+
+        final Exchange exchange = new Exchange(client);
+        exchange.clientKey = client.register(selector, SelectionKey.OP_READ, exchange);
+    }
+
+    private void expireIdle() {
+        final long now = System.currentTimeMillis();
+
+        for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof Exchange)) continue;
+
+            final Exchange exchange = (Exchange) key.attachment();
+
+            // WebSockets may stay quiet for long
+            if (exchange.state != STATE_TUNNEL && now - exchange.lastActive > IDLE_TIMEOUT) {
+                exchange.close();
+            }
+        }
+    }
+
+    private void post(Runnable task) {
+        // the selector may be closed already
+        if (closed) return;
+
+        pending.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * One client connection. Used by the IO thread only.
+     */
+    private final class Exchange {
+        final SocketChannel client;
+        SelectionKey clientKey;
+
+        int state = STATE_HEAD;
+        long lastActive = System.currentTimeMillis();
+
+        // incoming bytes, not consumed yet
+        final ByteBuffer in = ByteBuffer.allocate(MAX_HEAD);
+
+        // response to static request
+        ByteBuffer head;
+        ByteBuffer body;
+        FileChannel file;
+        long filePosition;
+        long fileEnd;
+        boolean keepAlive;
+
+        // tunnel to aria2
+        SocketChannel upstreamChannel;
+        SelectionKey upstreamKey;
+        ByteBuffer toUpstream;
+        ByteBuffer toClient;
+        boolean clientEof;
+        boolean upstreamEof;
+
+        Exchange(SocketChannel client) {
+            this.client = client;
+        }
+
+        void onClientReady() throws IOException {
+            lastActive = System.currentTimeMillis();
+
+            switch (state) {
+                case STATE_HEAD:
+                    if (client.read(in) < 0) {
+                        close();
+                        return;
+                    }
+
+                    parseHead();
+                    break;
+                case STATE_RESPONDING:
+                    respond();
+                    break;
+                case STATE_TUNNEL:
+                    if (clientKey.isReadable() && !clientEof && toUpstream.hasRemaining()) {
+                        clientEof = client.read(toUpstream) < 0;
+                    }
+
+                    if (clientKey.isWritable()) {
+                        drain(toClient, client);
+                    }
+
+                    pump();
+                    break;
+            }
+        }
+
+        void onUpstreamReady() throws IOException {
+            lastActive = System.currentTimeMillis();
+
+            if (upstreamKey.isConnectable()) {
+                upstreamChannel.finishConnect();
+            }
+
+            if (upstreamKey.isReadable() && !upstreamEof && toClient.hasRemaining()) {
+                upstreamEof = upstreamChannel.read(toClient) < 0;
+            }
+
+            if (upstreamKey.isWritable()) {
+                drain(toUpstream, upstreamChannel);
+            }
+
+            pump();
+        }
+
+        private void parseHead() throws IOException {
+            final int end = findHeadEnd(in);
+
+            if (end < 0) {
+                if (!in.hasRemaining()) {
+                    startResponse(simple(431, "Request Header Fields Too Large"), false);
+                } else {
+                    clientKey.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+
+            final Request request = Request.parse(new String(in.array(), 0, end, ASCII));
+
+            // keep pipelined bytes (or the start of request body) for later
+            in.flip();
+            in.position(end + 4);
+            in.compact();
+
+            if (request == null) {
+                startResponse(simple(400, "Bad Request"), false);
+                return;
+            }
+
+            if (!isLocalHost(request.headers.get("host"))) {
+                // a page from elsewhere, pretending to be localhost (DNS rebinding)
+                startResponse(simple(403, "Forbidden"), false);
+                return;
+            }
+
+            if (request.path().equals(RPC_PATH)) {
+                startTunnel(request);
+                return;
+            }
+
+            // requests with body are not expected here, so don't bother skipping it
+            final boolean hasBody = request.headers.containsKey("transfer-encoding")
+                    || (request.headers.containsKey("content-length") && !"0".equals(request.headers.get("content-length")));
+
+            final boolean keepAlive = request.keepAlive() && !hasBody;
+
+            state = STATE_PREPARING;
+            clientKey.interestOps(0);
+
+            worker.execute(() -> {
+                final Response response = prepare(request);
+
+                post(() -> startResponse(response, keepAlive));
+            });
+        }
+
+        private void startResponse(Response response, boolean keepAlive) {
+            if (!client.isOpen()) return;
+
+            this.keepAlive = keepAlive;
+
+            final StringBuilder builder = new StringBuilder(256)
+                    .append("HTTP/1.1 ").append(response.status).append(' ').append(response.reason).append("\r\n");
+
+            for (Map.Entry<String, String> header : response.headers.entrySet()) {
+                builder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+
+            long length = 0;
+
+            try {
+                if (response.file != null) {
+                    file = new FileInputStream(response.file).getChannel();
+                    length = file.size();
+                    filePosition = 0;
+                    fileEnd = length;
+                } else if (response.body != null) {
+                    length = response.body.length;
+                    body = ByteBuffer.wrap(response.body);
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+
+            if (response.status != 304) {
+                builder.append("Content-Length: ").append(length).append("\r\n");
+            }
+
+            builder.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+
+            if (response.headOnly) {
+                closeQuietly(file);
+                file = null;
+                body = null;
+            }
+
+            head = ByteBuffer.wrap(builder.toString().getBytes(ASCII));
+
+            state = STATE_RESPONDING;
+
+            try {
+                respond();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void respond() throws IOException {
+            if (head.hasRemaining()) {
+                client.write(head);
+            }
+
+            if (!head.hasRemaining() && body != null && body.hasRemaining()) {
+                client.write(body);
+            }
+
+            if (!head.hasRemaining() && (body == null || !body.hasRemaining()) && file != null && filePosition < fileEnd) {
+                filePosition += file.transferTo(filePosition, fileEnd - filePosition, client);
+            }
+
+            final boolean done = !head.hasRemaining() && (body == null || !body.hasRemaining())
+                    && (file == null || filePosition >= fileEnd);
+
+            if (!done) {
+                clientKey.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+
+            closeQuietly(file);
+            file = null;
+            body = null;
+            head = null;
+
+            if (!keepAlive) {
+                close();
+                return;
+            }
+
+            state = STATE_HEAD;
+            clientKey.interestOps(SelectionKey.OP_READ);
+
+            if (in.position() != 0) {
+                parseHead();
+            }
+        }
+
+        private void startTunnel(Request request) throws IOException {
+            final int rpcPort = upstream.getRpcPort();
+
+            if (rpcPort < 0) {
+                startResponse(simple(503, "Service Unavailable"), false);
+                return;
+            }
+
+            final byte[] forwarded = request.forward("127.0.0.1:" + rpcPort).getBytes(ASCII);
+
+            in.flip();
+
+            toUpstream = ByteBuffer.allocate(Math.max(BUFFER_SIZE, forwarded.length + in.remaining()));
+            toUpstream.put(forwarded).put(in);
+            toClient = ByteBuffer.allocate(BUFFER_SIZE);
+
+            in.clear();
+
+            upstreamChannel = SocketChannel.open();
+            upstreamChannel.configureBlocking(false);
+            upstreamChannel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), rpcPort));
+
+            upstreamKey = upstreamChannel.register(selector, SelectionKey.OP_CONNECT, this);
+
+            state = STATE_TUNNEL;
+
+            pump();
+        }
+
+        /**
+         * Update interests of both ends of the tunnel, close it once nothing is left to forward
+         */
+        private void pump() throws IOException {
+            if (upstreamEof && toClient.position() == 0) {
+                close();
+                return;
+            }
+
+            if (clientEof && toUpstream.position() == 0 && upstreamChannel.isConnected()
+                    && !upstreamChannel.socket().isOutputShutdown()) {
+                upstreamChannel.socket().shutdownOutput();
+            }
+
+            int clientOps = 0;
+            if (!clientEof && toUpstream.hasRemaining()) clientOps |= SelectionKey.OP_READ;
+            if (toClient.position() != 0) clientOps |= SelectionKey.OP_WRITE;
+            clientKey.interestOps(clientOps);
+
+            int upstreamOps = 0;
+            if (upstreamChannel.isConnectionPending()) {
+                upstreamOps = SelectionKey.OP_CONNECT;
+            } else {
+                if (!upstreamEof && toClient.hasRemaining()) upstreamOps |= SelectionKey.OP_READ;
+                if (toUpstream.position() != 0) upstreamOps |= SelectionKey.OP_WRITE;
+            }
+            upstreamKey.interestOps(upstreamOps);
+        }
+
+        void close() {
+            closeQuietly(file);
+            closeQuietly(client);
+            closeQuietly(upstreamChannel);
+
+            if (clientKey != null) clientKey.cancel();
+            if (upstreamKey != null) upstreamKey.cancel();
+        }
+    }
+
+    private static void drain(ByteBuffer buffer, SocketChannel target) throws IOException {
+        buffer.flip();
+
+        try {
+            target.write(buffer);
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    private static int findHeadEnd(ByteBuffer buffer) {
+        final byte[] bytes = buffer.array();
+
+        for (int i = 0; i + 3 < buffer.position(); ++i) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean isLocalHost(String host) {
+        return ("127.0.0.1:" + port).equals(host) || ("localhost:" + port).equals(host);
+    }
+
+    /**
+     * Build the response to static request. Called on the worker thread.
+     */
+    private Response prepare(Request request) {
+        if (!"GET".equals(request.method) && !"HEAD".equals(request.method)) {
+            final Response response = simple(405, "Method Not Allowed");
+            response.headers.put("Allow", "GET, HEAD");
+            return response;
+        }
+
+        final String path;
+        try {
+            path = URLDecoder.decode(request.path(), "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return simple(400, "Bad Request");
+        }
+
+        if (METRICS_PATH.equals(path)) {
+            return prepareMetrics(request);
+        }
+
+        final String prefix = '/' + build + '/';
+
+        if (path.equals('/' + nonce + '/')) {
+            return redirect(prefix + "index.html");
+        }
+
+        if (!path.startsWith(prefix)) {
+            // a page of previous build, still open somewhere
+            if (path.matches("/[0-9a-f]{12}/.+")) {
+                return redirect(prefix + path.substring(prefix.length()));
+            }
+
+            return simple(404, "Not Found");
+        }
+
+        final String name = path.substring(prefix.length());
+        final WebUiExtractor.Entry entry = manifest.get(name);
+
+        if (entry == null) {
+            return simple(404, "Not Found");
+        }
+
+        final String etag = '"' + entry.hash + '"';
+        final String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.US);
+        final boolean compressible = !INCOMPRESSIBLE.contains(extension);
+
+        final Response response = new Response(200, "OK");
+        response.headOnly = "HEAD".equals(request.method);
+        response.headers.put("ETag", etag);
+        response.headers.put("Cache-Control", IMMUTABLE);
+
+        if (compressible) {
+            response.headers.put("Vary", "Accept-Encoding");
+        }
+
+        final String ifNoneMatch = request.headers.get("if-none-match");
+
+        if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || "*".equals(ifNoneMatch))) {
+            response.status = 304;
+            response.reason = "Not Modified";
+            return response;
+        }
+
+        final String type = TYPES.get(extension);
+        response.headers.put("Content-Type", type == null ? "application/octet-stream" : type);
+
+        final String acceptEncoding = request.headers.get("accept-encoding");
+
+        try {
+            if (compressible && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                response.file = getGzipped(name, entry);
+                response.headers.put("Content-Encoding", "gzip");
+            } else {
+                try (InputStream asset = assets.open(assetDir + '/' + name, AssetManager.ACCESS_STREAMING)) {
+                    response.body = readFully(asset);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + name, e);
+
+            return simple(500, "Internal Server Error");
+        }
+
+        return response;
+    }
+
+    private Response prepareMetrics(Request request) {
+        final MetricsSource source = metrics;
+
+        if (source == null) {
+            return simple(404, "Not Found");
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+
+        try (Writer out = new OutputStreamWriter(bytes, "UTF-8")) {
+            source.writeMetrics(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write metrics", e);
+
+            return simple(500, "Internal Server Error");
+        }
+
+        final Response response = new Response(200, "OK");
+        response.headOnly = "HEAD".equals(request.method);
+        response.headers.put("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        response.headers.put("Cache-Control", "no-store");
+        response.body = bytes.toByteArray();
+        return response;
+    }
+
+    /**
+     * Compressed assets are named after their hash, so that they can't get stale
+     */
+    private File getGzipped(String name, WebUiExtractor.Entry entry) throws IOException {
+        final File gzipped = new File(gzipDir, entry.hash + ".gz");
+
+        if (gzipped.exists()) {
+            return gzipped;
+        }
+
+        if (!gzipDir.exists() && !gzipDir.mkdirs() && !gzipDir.exists()) {
+            throw new IOException("Failed to create " + gzipDir);
+        }
+
+        final File tmpFile = new File(gzipDir, entry.hash + ".tmp");
+
+        try (InputStream asset = assets.open(assetDir + '/' + name, AssetManager.ACCESS_STREAMING);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE))
+        {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+
+            int read;
+            while ((read = asset.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+
+        if (!tmpFile.renameTo(gzipped)) {
+            throw new IOException("Failed to rename " + tmpFile);
+        }
+
+        return gzipped;
+    }
+
+    private void removeStaleGzips() {
+        final File[] files = gzipDir.listFiles();
+
+        if (files == null) return;
+
+        final Set<String> current = new HashSet<>();
+        for (WebUiExtractor.Entry entry : manifest.values()) {
+            current.add(entry.hash + ".gz");
+        }
+
+        for (File file : files) {
+            if (!current.contains(file.getName())) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private static Response redirect(String location) {
+        final Response response = new Response(302, "Found");
+        response.headers.put("Location", location);
+        response.headers.put("Cache-Control", "no-store");
+        return response;
+    }
+
+    private static Response simple(int status, String reason) {
+        final Response response = new Response(status, reason);
+        response.headers.put("Content-Type", "text/plain; charset=utf-8");
+        response.headers.put("Cache-Control", "no-store");
+        response.body = (status + " " + reason + '\n').getBytes(ASCII);
+        return response;
+    }
+
+    private static final class Response {
+        int status;
+        String reason;
+
+        final Map<String, String> headers = new LinkedHashMap<>();
+
+        byte[] body;
+        File file;
+        boolean headOnly;
+
+        Response(int status, String reason) {
+            this.status = status;
+            this.reason = reason;
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(in.available(), 1024));
+
+        final byte[] buffer = new byte[8192];
+
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; ++i) {
+            chars[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            chars[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+
+        return new String(chars);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
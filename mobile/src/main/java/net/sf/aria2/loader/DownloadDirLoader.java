@@ -16,6 +16,7 @@ import android.support.v4.content.ContextCompat;
 import android.support.v4.os.EnvironmentCompat;
 import android.text.TextUtils;
 import net.sf.aria2.R;
+import net.sf.aria2.preset.StorageProbe;
 
 import java.io.File;
 import java.io.IOException;
@@ -102,7 +103,13 @@ public class DownloadDirLoader extends AsyncTaskLoader<Long> implements SharedPr
         } else
             dir = new File(dDir);
 
-        return freeSpace = checkAccess(dir) ? getSpace(dir) : -1L;
+        if (!checkAccess(dir))
+            return freeSpace = -1L;
+
+        // a chance to measure the directory before aria2 is configured for it
+        StorageProbe.measure(ctx, dir);
+
+        return freeSpace = getSpace(dir);
     }
 
     @SuppressWarnings("deprecation")
@@ -13,16 +13,11 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.widget.Toast;
 
-import net.sf.aria2.BuildConfig;
 import net.sf.aria2.R;
 import net.sf.aria2.util.WebUiExtractor;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Writer;
-import java.nio.channels.Channels;
-import java.util.Scanner;
 import java.util.concurrent.atomic.AtomicReference;
 
 @TargetApi(Build.VERSION_CODES.HONEYCOMB)
@@ -134,32 +129,14 @@ public class FrontendSetupLoader extends AsyncTaskLoader<Bundle> {
             return result;
         }
 
-        final File verFile = new File(uiDir, WebUiExtractor.VER_FILE);
-
-        String version = null;
-        if (verFile.length() > 0 && verFile.length() < 1024) {
-            try {
-                try (Scanner scanner = new Scanner(verFile).useDelimiter("\\Z")) {
-                    if (scanner.hasNext()) {
-                        version = scanner.next();
-                    }
-                }
-            } catch (IOException ignored) {
-                Log.w(TAG, "Failed to read 'version' file");
-            }
-        }
-
-        if (version != null) {
-            final int versionCode;
-            try {
-                versionCode = Integer.parseInt(version);
+        final WebUiExtractor extractor = new WebUiExtractor(ctx.getAssets(), WebUiExtractor.ASSET_DIR, uiDir);
 
-                if (versionCode >= BuildConfig.webuiVer) {
-                    return null;
-                }
-            } catch (NumberFormatException nfe) {
-                Log.w(TAG, "Failed to parse 'version' file");
+        try {
+            if (extractor.isUpToDate()) {
+                return null;
             }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to check extracted files", e);
         }
 
         final Handler mainHandler = new Handler(Looper.getMainLooper());
@@ -172,11 +149,9 @@ public class FrontendSetupLoader extends AsyncTaskLoader<Bundle> {
         });
 
         try {
-            new WebUiExtractor(ctx.getAssets(), WebUiExtractor.ASSET_DIR, uiDir).copyToTarget();
+            final int copied = extractor.copyToTarget();
 
-            try (Writer ps = Channels.newWriter(new FileOutputStream(verFile, false).getChannel(), "UTF-8")) {
-                ps.append(String.valueOf(BuildConfig.webuiVer));
-            }
+            Log.i(TAG, "Extracted " + copied + " frontend files");
         } catch (IOException e) {
             final Bundle result = new Bundle(1);
             final String errMsg = TextUtils.isEmpty(e.getMessage()) ? e.getClass().getName() : e.getMessage();
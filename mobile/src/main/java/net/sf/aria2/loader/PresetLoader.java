@@ -0,0 +1,90 @@
+package net.sf.aria2.loader;
+
+import android.annotation.TargetApi;
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+
+import net.sf.aria2.R;
+import net.sf.aria2.preset.ConfFile;
+import net.sf.aria2.preset.DevicePreset;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Computes options, aria2 is going to use in the download directory: the device preset,
+ * overridden by user's configuration file. Delivers an empty map, when presets are disabled.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public class PresetLoader extends AsyncTaskLoader<Map<String, String>> implements SharedPreferences.OnSharedPreferenceChangeListener {
+    private final String dirPrefName;
+    private final String tunePrefName;
+
+    private Map<String, String> options;
+
+    public PresetLoader(Context context) {
+        super(context.getApplicationContext());
+
+        dirPrefName = context.getString(R.string.download_dir_pref);
+        tunePrefName = context.getString(R.string.tune_pref);
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (options != null)
+            deliverResult(options);
+
+        PreferenceManager.getDefaultSharedPreferences(getContext())
+                .registerOnSharedPreferenceChangeListener(this);
+
+        if (options == null || takeContentChanged())
+            forceLoad();
+    }
+
+    @Override
+    protected void onStopLoading() {
+        PreferenceManager.getDefaultSharedPreferences(getContext())
+                .unregisterOnSharedPreferenceChangeListener(this);
+
+        cancelLoad();
+    }
+
+    @Override
+    public void deliverResult(Map<String, String> data) {
+        if (isReset())
+            return;
+
+        options = data;
+
+        if (isStarted())
+            super.deliverResult(data);
+    }
+
+    @Override
+    public Map<String, String> loadInBackground() {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
+
+        final String dDir = prefs.getString(dirPrefName, "");
+
+        if (TextUtils.isEmpty(dDir) || !prefs.getBoolean(tunePrefName, true)) {
+            return Collections.emptyMap();
+        }
+
+        final File dir = new File(dDir);
+
+        final DevicePreset preset = DevicePreset.probe(getContext(), dir);
+
+        return ConfFile.effective(preset.toOptions(), new File(dir, ConfFile.USER_FILE_NAME));
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (dirPrefName.equals(key) || tunePrefName.equals(key))
+            onContentChanged();
+    }
+}
@@ -0,0 +1,93 @@
+package net.sf.aria2.loader;
+
+import android.annotation.TargetApi;
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.sf.aria2.R;
+import net.sf.aria2.session.SessionIndex;
+import net.sf.aria2.session.SessionReader;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reads the session file in the download directory, so that queued downloads can be shown
+ * without starting aria2.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public class SessionLoader extends AsyncTaskLoader<SessionIndex> implements SharedPreferences.OnSharedPreferenceChangeListener {
+    private static final String TAG = "SessionLoader";
+
+    private final String prefName;
+
+    private SessionIndex index;
+
+    public SessionLoader(Context context) {
+        super(context.getApplicationContext());
+
+        prefName = context.getString(R.string.download_dir_pref);
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (index != null)
+            deliverResult(index);
+
+        PreferenceManager.getDefaultSharedPreferences(getContext())
+                .registerOnSharedPreferenceChangeListener(this);
+
+        if (index == null || takeContentChanged())
+            forceLoad();
+    }
+
+    @Override
+    protected void onStopLoading() {
+        PreferenceManager.getDefaultSharedPreferences(getContext())
+                .unregisterOnSharedPreferenceChangeListener(this);
+
+        cancelLoad();
+    }
+
+    @Override
+    public void deliverResult(SessionIndex data) {
+        if (isReset())
+            return;
+
+        index = data;
+
+        if (isStarted())
+            super.deliverResult(data);
+    }
+
+    @Override
+    public SessionIndex loadInBackground() {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
+
+        final String dDir = prefs.getString(prefName, "");
+
+        if (TextUtils.isEmpty(dDir)) {
+            return SessionIndex.EMPTY;
+        }
+
+        try {
+            return SessionReader.read(new File(dDir, SessionReader.DEFAULT_FILE_NAME));
+        } catch (IOException e) {
+            // truncated or otherwise damaged file, aria2 won't load it either
+            Log.w(TAG, "Failed to read session: " + e.getMessage());
+
+            return SessionIndex.EMPTY;
+        }
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (prefName.equals(key))
+            onContentChanged();
+    }
+}
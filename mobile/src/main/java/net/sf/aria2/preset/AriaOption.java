@@ -0,0 +1,140 @@
+package net.sf.aria2.preset;
+
+import net.sf.aria2.schedule.ScheduleRule;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Typed aria2 option: knows it's name, how to validate a value and how to format it the way
+ * aria2 expects.
+ */
+public abstract class AriaOption<T> {
+    public static final AriaOption<Long> DISK_CACHE = new Size("disk-cache", 0, 256L << 20);
+    public static final AriaOption<String> FILE_ALLOCATION = new Choice("file-allocation",
+            "none", "prealloc", "trunc", "falloc");
+    public static final AriaOption<Boolean> ENABLE_MMAP = new Flag("enable-mmap");
+    public static final AriaOption<Integer> SPLIT = new Count("split", 1, 64);
+    public static final AriaOption<Integer> MAX_CONNECTION_PER_SERVER = new Count("max-connection-per-server", 1, 16);
+    public static final AriaOption<Long> MIN_SPLIT_SIZE = new Size("min-split-size", 1L << 20, 1L << 30);
+    public static final AriaOption<Boolean> ASYNC_DNS = new Flag("async-dns");
+
+    public final String name;
+
+    AriaOption(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the value is not acceptable for aria2
+     */
+    public abstract String format(T value);
+
+    public abstract T parse(String text);
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private static final class Size extends AriaOption<Long> {
+        private final long min;
+        private final long max;
+
+        Size(String name, long min, long max) {
+            super(name);
+
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        public String format(Long value) {
+            if (value < min || value > max) {
+                throw new IllegalArgumentException(name + " is out of range: " + value);
+            }
+
+            if (value != 0 && value % (1 << 20) == 0) {
+                return value / (1 << 20) + "M";
+            }
+
+            if (value != 0 && value % (1 << 10) == 0) {
+                return value / (1 << 10) + "K";
+            }
+
+            return String.valueOf(value);
+        }
+
+        @Override
+        public Long parse(String text) {
+            return ScheduleRule.parseRate(text);
+        }
+    }
+
+    private static final class Count extends AriaOption<Integer> {
+        private final int min;
+        private final int max;
+
+        Count(String name, int min, int max) {
+            super(name);
+
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        public String format(Integer value) {
+            if (value < min || value > max) {
+                throw new IllegalArgumentException(name + " is out of range: " + value);
+            }
+
+            return String.valueOf(value);
+        }
+
+        @Override
+        public Integer parse(String text) {
+            return Integer.parseInt(text.trim());
+        }
+    }
+
+    private static final class Flag extends AriaOption<Boolean> {
+        Flag(String name) {
+            super(name);
+        }
+
+        @Override
+        public String format(Boolean value) {
+            return value ? "true" : "false";
+        }
+
+        @Override
+        public Boolean parse(String text) {
+            return "true".equalsIgnoreCase(text.trim());
+        }
+    }
+
+    private static final class Choice extends AriaOption<String> {
+        private final List<String> choices;
+
+        Choice(String name, String... choices) {
+            super(name);
+
+            this.choices = Arrays.asList(choices);
+        }
+
+        @Override
+        public String format(String value) {
+            if (!choices.contains(value)) {
+                throw new IllegalArgumentException(name + " must be one of " + choices + ": " + value);
+            }
+
+            return value;
+        }
+
+        @Override
+        public String parse(String text) {
+            return text.trim().toLowerCase(Locale.US);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package net.sf.aria2.preset;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * aria2 configuration file, generated from a preset and the file, written by user. Options of
+ * user go last, so they override the preset.
+ */
+public final class ConfFile {
+    /**
+     * Name of the file in download directory, where user can put own options
+     */
+    public static final String USER_FILE_NAME = "aria2.txt";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ConfFile() {}
+
+    /**
+     * Read options from aria2 configuration file. Comments and malformed lines are skipped.
+     */
+    public static Map<String, String> read(File file) {
+        final Map<String, String> options = new LinkedHashMap<>();
+
+        if (!file.exists()) {
+            return options;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                final int equals = line.indexOf('=');
+
+                if (equals <= 0) continue;
+
+                options.put(line.substring(0, equals).trim(), line.substring(equals + 1).trim());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return options;
+    }
+
+    /**
+     * @return preset values, overridden by values from user configuration file
+     */
+    public static Map<String, String> effective(OptionSet preset, File userFile) {
+        final Map<String, String> user = read(userFile);
+
+        final Map<String, String> result = new LinkedHashMap<>(preset.toMap());
+
+        for (String name : result.keySet()) {
+            if (user.containsKey(name)) {
+                result.put(name, user.get(name));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Atomically replace the target with combination of preset and user configuration file.
+     * Nothing is written, if the target already has the same contents.
+     *
+     * @return true, if the target was (re)written
+     */
+    public static boolean write(File target, OptionSet preset, String description, File userFile) throws IOException {
+        final StringBuilder text = new StringBuilder();
+
+        text.append("# Generated by aria2 for Android, do not edit: changes will be lost\n");
+        text.append("# Preset for ").append(description).append('\n');
+
+        for (Map.Entry<String, String> option : preset.toMap().entrySet()) {
+            text.append(option.getKey()).append('=').append(option.getValue()).append('\n');
+        }
+
+        if (userFile.exists()) {
+            text.append("\n# ").append(userFile.getAbsolutePath()).append('\n');
+
+            final byte[] user = readFully(userFile);
+
+            text.append(new String(user, UTF_8));
+
+            if (user.length != 0 && user[user.length - 1] != '\n') {
+                text.append('\n');
+            }
+        }
+
+        final byte[] contents = text.toString().getBytes(UTF_8);
+
+        if (target.exists() && Arrays.equals(contents, readFully(target))) {
+            return false;
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        target.getParentFile().mkdirs();
+
+        final File temp = new File(target.getPath() + ".tmp");
+
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(contents);
+            out.getFD().sync();
+        }
+
+        if (!temp.renameTo(target)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+
+            throw new IOException("Failed to replace " + target);
+        }
+
+        return true;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(0, Math.min(file.length(), 1 << 20)));
+
+            final byte[] buffer = new byte[4096];
+
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package net.sf.aria2.preset;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Build;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Picks aria2 options for the device: the amount of RAM limits caches and connection counts,
+ * the number of cores limits useful parallelism and the filesystem of download directory
+ * decides, whether files can be cheaply preallocated. When the download directory has been
+ * measured by {@link StorageProbe}, the measurements take precedence over the filesystem
+ * (except for fallocate() support, which can't be measured before Lollipop).
+ */
+public final class DevicePreset {
+    private static final long MB = 1 << 20;
+
+    // no fallocate(), or an emulation of it, that is slower than not preallocating at all
+    private static final List<String> NO_FALLOC = Arrays.asList(
+            "vfat", "msdos", "exfat", "texfat", "sdfat", "fuse", "fuseblk", "sdcardfs", "esdfs", "ntfs");
+
+    // typical of SD cards: small writes are better merged in memory
+    private static final long SLOW_RANDOM_IOPS = 100;
+
+    // mmap turns writes into random page flushes, which only fast storage handles well
+    private static final long FAST_RANDOM_IOPS = 500;
+
+    public final long totalRam;
+    public final int cores;
+    public final String filesystem;
+    public final boolean is64Bit;
+    public final @Nullable StorageProbe storage;
+
+    public DevicePreset(long totalRam, int cores, String filesystem, boolean is64Bit, @Nullable StorageProbe storage) {
+        this.totalRam = totalRam;
+        this.cores = cores;
+        this.filesystem = filesystem;
+        this.is64Bit = is64Bit;
+        this.storage = storage;
+    }
+
+    public static DevicePreset probe(Context context, File downloadDir) {
+        final ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+
+        final ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        am.getMemoryInfo(memoryInfo);
+
+        // low-RAM devices are treated as having the least memory, no matter what they report
+        final long totalRam = am.isLowRamDevice() ? 0 : memoryInfo.totalMem;
+
+        final boolean is64Bit = Build.VERSION.SDK_INT >= 21 && Build.SUPPORTED_64_BIT_ABIS.length != 0;
+
+        return new DevicePreset(totalRam, Runtime.getRuntime().availableProcessors(),
+                findFilesystem(downloadDir, new File("/proc/mounts")), is64Bit,
+                StorageProbe.cached(context, downloadDir));
+    }
+
+    public OptionSet toOptions() {
+        final boolean lowRam = totalRam < 1536 * MB;
+        final boolean highRam = totalRam >= 3072 * MB;
+
+        // aria2 calls fallocate() itself, so without a measurement fall back to the filesystem
+        final boolean falloc = storage != null && StorageProbe.PROBES_FALLOCATE
+                ? storage.fallocate
+                : filesystem != null && !NO_FALLOC.contains(filesystem);
+
+        final boolean slowStorage = storage != null && storage.randomIops < SLOW_RANDOM_IOPS;
+        final boolean fastStorage = storage == null || storage.randomIops >= FAST_RANDOM_IOPS;
+
+        long diskCache = lowRam ? 4 * MB : highRam ? 32 * MB : 16 * MB;
+
+        if (slowStorage && !lowRam) {
+            diskCache *= 2;
+        }
+
+        // more connections than cores can serve just add overhead
+        final int connections = lowRam ? Math.min(4, cores * 2) : Math.max(2, Math.min(16, cores * 2));
+
+        return new OptionSet()
+                .set(AriaOption.DISK_CACHE, diskCache)
+                .set(AriaOption.FILE_ALLOCATION, falloc ? "falloc" : "none")
+                // mapping large files may exhaust 32-bit address space
+                .set(AriaOption.ENABLE_MMAP, falloc && highRam && is64Bit && fastStorage)
+                .set(AriaOption.SPLIT, connections)
+                .set(AriaOption.MAX_CONNECTION_PER_SERVER, connections)
+                .set(AriaOption.MIN_SPLIT_SIZE, lowRam ? 20 * MB : highRam ? 8 * MB : 10 * MB)
+                // there is no /etc/resolv.conf on Android, c-ares can't find DNS servers
+                .set(AriaOption.ASYNC_DNS, false);
+    }
+
+    /**
+     * @return the type of filesystem, the file resides on (as listed in mounts file), or null
+     */
+    static String findFilesystem(File file, File mounts) {
+        final String[] mount = findMount(file, mounts);
+
+        return mount == null ? null : mount[2];
+    }
+
+    /**
+     * @return fields of the mounts file entry for the mount point, the file resides on, or null
+     */
+    static String[] findMount(File file, File mounts) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            path = file.getAbsolutePath();
+        }
+
+        String[] best = null;
+        int bestLength = -1;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(mounts))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // device mountpoint type options dump pass
+                final String[] fields = line.split(" ");
+
+                if (fields.length < 3) continue;
+
+                final String mountPoint = fields[1].replace("\\040", " ");
+
+                if (isUnder(path, mountPoint) && mountPoint.length() > bestLength) {
+                    bestLength = mountPoint.length();
+                    best = fields;
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        return best;
+    }
+
+    private static boolean isUnder(String path, String mountPoint) {
+        if ("/".equals(mountPoint)) {
+            return true;
+        }
+
+        return path.startsWith(mountPoint)
+                && (path.length() == mountPoint.length() || path.charAt(mountPoint.length()) == '/');
+    }
+
+    @Override
+    public String toString() {
+        return "RAM " + totalRam / MB + "M, " + cores + " cores, " + filesystem + (is64Bit ? ", 64-bit" : "")
+                + (storage != null ? ", " + storage : "");
+    }
+}
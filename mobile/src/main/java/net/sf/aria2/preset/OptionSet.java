@@ -0,0 +1,49 @@
+package net.sf.aria2.preset;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Ordered set of typed aria2 options. Values are validated, when added.
+ */
+public final class OptionSet {
+    private final Map<String, String> values = new LinkedHashMap<>();
+
+    public <T> OptionSet set(AriaOption<T> option, T value) {
+        values.put(option.name, option.format(value));
+        return this;
+    }
+
+    public <T> T get(AriaOption<T> option) {
+        final String text = values.get(option.name);
+
+        return text == null ? null : option.parse(text);
+    }
+
+    public boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    /**
+     * @return option names and their formatted values, in order of addition
+     */
+    public Map<String, String> toMap() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (builder.length() != 0) {
+                builder.append(", ");
+            }
+
+            builder.append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,301 @@
+package net.sf.aria2.preset;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.storage.StorageManager;
+import android.os.storage.StorageVolume;
+import android.support.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Write performance of the volume, a directory resides on. SD cards and adoptable storage are
+ * often an order of magnitude slower than internal storage, especially at small random writes,
+ * which is what BitTorrent does.
+ *
+ * Measuring takes a second or two, so results are cached per volume in the files directory
+ * (where both the UI and aria2 process can see them).
+ */
+public final class StorageProbe {
+    private static final String TAG = "StorageProbe";
+
+    private static final long MB = 1 << 20;
+
+    private static final int SEQUENTIAL_SIZE = (int) (16 * MB);
+    private static final int SEQUENTIAL_CHUNK = (int) MB;
+    private static final int RANDOM_BLOCK = 16 * 1024;
+    private static final int RANDOM_WRITES = 128;
+    private static final int SYNC_BLOCK = 4096;
+    private static final int SYNC_WRITES = 8;
+
+    // do not probe nearly full volumes, the space is needed for downloads
+    private static final long MIN_FREE = 4 * SEQUENTIAL_SIZE;
+
+    // volumes do not change their nature, but may be reformatted
+    private static final long MAX_AGE = 30L * 24 * 60 * 60000;
+
+    /**
+     * Whether {@link #fallocate} is measured; before Lollipop there is no way to call it from Java
+     */
+    public static final boolean PROBES_FALLOCATE = Build.VERSION.SDK_INT >= 21;
+
+    private static final String CACHE_DIR = "storage";
+
+    /**
+     * Sequential write speed, bytes per second
+     */
+    public final long writeSpeed;
+
+    /**
+     * Median time of small write followed by fsync, microseconds
+     */
+    public final long syncLatency;
+
+    /**
+     * Random 16 KiB writes per second
+     */
+    public final long randomIops;
+
+    /**
+     * Whether space can be preallocated without writing it, always false unless
+     * {@link #PROBES_FALLOCATE}
+     */
+    public final boolean fallocate;
+
+    public final long measuredAt;
+
+    StorageProbe(long writeSpeed, long syncLatency, long randomIops, boolean fallocate, long measuredAt) {
+        this.writeSpeed = writeSpeed;
+        this.syncLatency = syncLatency;
+        this.randomIops = randomIops;
+        this.fallocate = fallocate;
+        this.measuredAt = measuredAt;
+    }
+
+    /**
+     * @return earlier results for the volume of directory, or null, if there are none
+     */
+    public static @Nullable StorageProbe cached(Context context, File dir) {
+        final File cacheFile = getCacheFile(context, dir);
+
+        if (!cacheFile.exists()) {
+            return null;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(cacheFile))) {
+            final StorageProbe probe = parse(reader.readLine());
+
+            if (probe != null && Math.abs(System.currentTimeMillis() - probe.measuredAt) < MAX_AGE) {
+                return probe;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * Measure the volume of directory, unless it was measured recently. Blocks for a while,
+     * must not be called on the main thread.
+     *
+     * @return results or null, if the directory is not writable or there is not enough space
+     */
+    public static @Nullable StorageProbe measure(Context context, File dir) {
+        final StorageProbe known = cached(context, dir);
+
+        if (known != null) {
+            return known;
+        }
+
+        if (dir.getUsableSpace() < MIN_FREE) {
+            return null;
+        }
+
+        final StorageProbe probe;
+        try {
+            probe = run(dir);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to measure " + dir + ": " + e.getMessage());
+            return null;
+        }
+
+        Log.i(TAG, "Measured " + dir + ": " + probe);
+
+        final File cacheFile = getCacheFile(context, dir);
+        final File tmpFile = new File(cacheFile.getPath() + ".tmp");
+
+        //noinspection ResultOfMethodCallIgnored
+        cacheFile.getParentFile().mkdirs();
+
+        try (Writer writer = new FileWriter(tmpFile)) {
+            writer.write(probe.format());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return probe;
+        }
+
+        if (!tmpFile.renameTo(cacheFile)) {
+            Log.w(TAG, "Failed to save results to " + cacheFile);
+        }
+
+        return probe;
+    }
+
+    private static StorageProbe run(File dir) throws IOException {
+        final File file = new File(dir, ".aria2-probe-" + UUID.randomUUID());
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            final Random random = new Random();
+
+            // random contents, in case the filesystem compresses
+            final byte[] noise = new byte[SEQUENTIAL_CHUNK];
+            random.nextBytes(noise);
+
+            final ByteBuffer chunk = ByteBuffer.allocateDirect(SEQUENTIAL_CHUNK);
+            chunk.put(noise);
+
+            long start = System.nanoTime();
+
+            for (long position = 0; position < SEQUENTIAL_SIZE; position += SEQUENTIAL_CHUNK) {
+                chunk.clear();
+                writeFully(channel, chunk, position);
+            }
+
+            channel.force(false);
+
+            final long writeSpeed = SEQUENTIAL_SIZE * 1000000000L / Math.max(1, System.nanoTime() - start);
+
+            final ByteBuffer block = ByteBuffer.allocateDirect(RANDOM_BLOCK);
+            block.put(noise, 0, RANDOM_BLOCK);
+
+            final int blockCount = SEQUENTIAL_SIZE / RANDOM_BLOCK;
+
+            start = System.nanoTime();
+
+            for (int i = 0; i < RANDOM_WRITES; ++i) {
+                block.clear();
+                writeFully(channel, block, (long) random.nextInt(blockCount) * RANDOM_BLOCK);
+            }
+
+            channel.force(false);
+
+            final long randomIops = RANDOM_WRITES * 1000000000L / Math.max(1, System.nanoTime() - start);
+
+            final long[] latencies = new long[SYNC_WRITES];
+
+            for (int i = 0; i < SYNC_WRITES; ++i) {
+                block.clear().limit(SYNC_BLOCK);
+
+                start = System.nanoTime();
+
+                writeFully(channel, block, (long) random.nextInt(blockCount) * RANDOM_BLOCK);
+                channel.force(false);
+
+                latencies[i] = (System.nanoTime() - start) / 1000;
+            }
+
+            Arrays.sort(latencies);
+
+            final boolean fallocate = tryFallocate(raf.getFD(), SEQUENTIAL_SIZE, SEQUENTIAL_SIZE);
+
+            return new StorageProbe(writeSpeed, latencies[SYNC_WRITES / 2], randomIops, fallocate,
+                    System.currentTimeMillis());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * FileChannel can't preallocate space, but bionic exposes {@code posix_fallocate} since
+     * Lollipop. It does not emulate it by writing zeros, so a failure means no support.
+     */
+    private static boolean tryFallocate(FileDescriptor fd, long offset, long length) {
+        if (Build.VERSION.SDK_INT < 21) {
+            return false;
+        }
+
+        try {
+            Os.posix_fallocate(fd, offset, length);
+            return true;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the file with cached results for the volume of directory
+     */
+    static File getCacheFile(Context context, File dir) {
+        return new File(new File(context.getFilesDir(), CACHE_DIR), getVolumeKey(context, dir).replaceAll("[^\\w.-]", "_"));
+    }
+
+    private static String getVolumeKey(Context context, File dir) {
+        if (Build.VERSION.SDK_INT >= 24) {
+            final StorageManager storageManager = (StorageManager) context.getSystemService(Context.STORAGE_SERVICE);
+
+            final StorageVolume volume = storageManager.getStorageVolume(dir);
+
+            if (volume != null) {
+                // the primary volume has no UUID
+                return volume.getUuid() == null ? "primary" : volume.getUuid();
+            }
+        }
+
+        // different volumes are backed by different block devices
+        final String[] mount = DevicePreset.findMount(dir, new File("/proc/mounts"));
+
+        return mount == null ? "unknown" : mount[0] + ' ' + mount[1];
+    }
+
+    String format() {
+        return writeSpeed + " " + syncLatency + " " + randomIops + " " + fallocate + " " + measuredAt + '\n';
+    }
+
+    static @Nullable StorageProbe parse(String line) {
+        if (line == null) {
+            return null;
+        }
+
+        final String[] fields = line.trim().split(" ");
+
+        if (fields.length != 5) {
+            return null;
+        }
+
+        try {
+            return new StorageProbe(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                    Boolean.parseBoolean(fields[3]), Long.parseLong(fields[4]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "write " + writeSpeed / MB + "M/s, fsync " + syncLatency / 1000 + "ms, " + randomIops + " IOPS"
+                + (fallocate ? ", fallocate" : "");
+    }
+}
@@ -0,0 +1,20 @@
+package net.sf.aria2.rpc;
+
+/**
+ * Receives notifications, pushed by aria2 over WebSocket RPC endpoint.
+ */
+public interface DownloadListener {
+    int EVENT_START = 1;
+    int EVENT_PAUSE = 2;
+    int EVENT_STOP = 3;
+    int EVENT_COMPLETE = 4;
+    int EVENT_ERROR = 5;
+    int EVENT_BT_COMPLETE = 6;
+
+    /**
+     * Called on event reader thread, must not block.
+     *
+     * @param event one of {@code EVENT_*} constants
+     */
+    void onDownloadEvent(int event, String gid);
+}
@@ -0,0 +1,364 @@
+package net.sf.aria2.rpc;
+
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * A single WebSocket subscription to aria2 notifications. The reader thread spends all of it's
+ * life blocked in socket read, so an idle daemon costs no wakeups. Lost connections are
+ * re-established with exponential backoff until the stream is closed.
+ */
+public final class EventStream implements Runnable, Closeable {
+    private static final String TAG = "aria2events";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String WS_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final int MAX_MESSAGE = 1024 * 1024;
+
+    private static final long MIN_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 5000;
+
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    private final InetSocketAddress address;
+    private final DownloadListener listener;
+    private final SecureRandom random = new SecureRandom();
+
+    private final byte[] header = new byte[14];
+    private byte[] message = new byte[4096];
+
+    private volatile boolean closed;
+    private volatile Socket socket;
+    private Thread thread;
+
+    public EventStream(int port, DownloadListener listener) {
+        this.address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+
+        thread = new Thread(this, "aria2 event reader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        final Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        synchronized (this) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long backoff = MIN_BACKOFF;
+
+        while (!closed) {
+            try (Socket s = new Socket()) {
+                socket = s;
+
+                if (closed) break;
+
+                s.setTcpNoDelay(true);
+                s.connect(address, 2000);
+
+                final InputStream in = new BufferedInputStream(s.getInputStream(), 4096);
+                final OutputStream out = s.getOutputStream();
+
+                handshake(in, out);
+
+                backoff = MIN_BACKOFF;
+
+                readMessages(in, out);
+            } catch (IOException e) {
+                if (closed) break;
+
+                Log.d(TAG, "Event stream interrupted: " + e.getMessage());
+            } finally {
+                socket = null;
+            }
+
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    private void handshake(InputStream in, OutputStream out) throws IOException {
+        final byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+
+        final String key = Base64.encodeToString(nonce, Base64.NO_WRAP);
+
+        final String request = "GET /jsonrpc HTTP/1.1\r\n" +
+                "Host: " + address.getAddress().getHostAddress() + ':' + address.getPort() + "\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Key: " + key + "\r\n" +
+                "Sec-WebSocket-Version: 13\r\n\r\n";
+
+        out.write(request.getBytes(UTF_8));
+        out.flush();
+
+        final StringBuilder line = new StringBuilder(64);
+
+        final String status = readLine(in, line);
+        if (!status.startsWith("HTTP/1.1 101")) {
+            throw new IOException("WebSocket upgrade refused: " + status);
+        }
+
+        String accept = null;
+
+        String h;
+        while (!(h = readLine(in, line)).isEmpty()) {
+            final int colon = h.indexOf(':');
+
+            if (colon != -1 && "Sec-WebSocket-Accept".equalsIgnoreCase(h.substring(0, colon).trim())) {
+                accept = h.substring(colon + 1).trim();
+            }
+        }
+
+        if (!expectedAccept(key).equals(accept)) {
+            throw new IOException("Bad Sec-WebSocket-Accept: " + accept);
+        }
+    }
+
+    private static String expectedAccept(String key) throws IOException {
+        try {
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+
+            return Base64.encodeToString(sha1.digest((key + WS_GUID).getBytes(UTF_8)), Base64.NO_WRAP);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String readLine(InputStream in, StringBuilder line) throws IOException {
+        line.setLength(0);
+
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) throw new EOFException();
+
+            if (c != '\r') line.append((char) c);
+        }
+
+        return line.toString();
+    }
+
+    private void readMessages(InputStream in, OutputStream out) throws IOException {
+        int messageLength = 0;
+
+        while (!closed) {
+            readFully(in, header, 0, 2);
+
+            final boolean fin = (header[0] & 0x80) != 0;
+            final int opcode = header[0] & 0x0f;
+            final boolean masked = (header[1] & 0x80) != 0;
+
+            long length = header[1] & 0x7f;
+
+            if (length == 126) {
+                readFully(in, header, 2, 2);
+                length = ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+            } else if (length == 127) {
+                readFully(in, header, 2, 8);
+                length = 0;
+                for (int i = 2; i < 10; ++i) {
+                    length = (length << 8) | (header[i] & 0xff);
+                }
+            }
+
+            final byte[] mask = masked ? new byte[4] : null;
+            if (masked) {
+                readFully(in, mask, 0, 4);
+            }
+
+            if (length < 0 || messageLength + length > MAX_MESSAGE) {
+                throw new IOException("WebSocket message is too large: " + length);
+            }
+
+            final int payloadLength = (int) length;
+
+            switch (opcode) {
+                case OP_CLOSE:
+                    sendFrame(out, OP_CLOSE, new byte[0], 0);
+                    throw new EOFException();
+                case OP_PING:
+                    final byte[] ping = new byte[payloadLength];
+                    readFully(in, ping, 0, payloadLength);
+                    unmask(ping, 0, payloadLength, mask);
+                    sendFrame(out, OP_PONG, ping, payloadLength);
+                    continue;
+                case OP_TEXT:
+                    messageLength = 0;
+                    // fall through
+                case OP_CONTINUATION:
+                    ensureCapacity(messageLength + payloadLength);
+                    readFully(in, message, messageLength, payloadLength);
+                    unmask(message, messageLength, payloadLength, mask);
+                    messageLength += payloadLength;
+
+                    if (fin) {
+                        dispatch(new String(message, 0, messageLength, UTF_8));
+                        messageLength = 0;
+                    }
+                    continue;
+                default:
+                    // binary frames and pongs are of no interest to us
+                    skip(in, length);
+            }
+        }
+    }
+
+    private void dispatch(String text) {
+        try {
+            final JSONObject notification = new JSONObject(text);
+
+            final String method = notification.optString("method", null);
+            if (method == null) {
+                return;
+            }
+
+            final int event = toEvent(method);
+            if (event == 0) {
+                return;
+            }
+
+            final JSONArray params = notification.optJSONArray("params");
+            if (params == null) {
+                return;
+            }
+
+            for (int i = 0; i < params.length(); ++i) {
+                final JSONObject param = params.optJSONObject(i);
+
+                if (param != null) {
+                    listener.onDownloadEvent(event, param.optString("gid"));
+                }
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Malformed notification: " + text);
+        }
+    }
+
+    static int toEvent(String method) {
+        switch (method) {
+            case "aria2.onDownloadStart":
+                return DownloadListener.EVENT_START;
+            case "aria2.onDownloadPause":
+                return DownloadListener.EVENT_PAUSE;
+            case "aria2.onDownloadStop":
+                return DownloadListener.EVENT_STOP;
+            case "aria2.onDownloadComplete":
+                return DownloadListener.EVENT_COMPLETE;
+            case "aria2.onDownloadError":
+                return DownloadListener.EVENT_ERROR;
+            case "aria2.onBtDownloadComplete":
+                return DownloadListener.EVENT_BT_COMPLETE;
+            default:
+                return 0;
+        }
+    }
+
+    private void ensureCapacity(int required) {
+        if (message.length < required) {
+            message = Arrays.copyOf(message, Math.max(required, message.length * 2));
+        }
+    }
+
+    private void sendFrame(OutputStream out, int opcode, byte[] payload, int length) throws IOException {
+        // client frames must be masked (RFC 6455, section 5.3)
+        final byte[] mask = new byte[4];
+        random.nextBytes(mask);
+
+        final byte[] frame = new byte[2 + 4 + length];
+        frame[0] = (byte) (0x80 | opcode);
+        frame[1] = (byte) (0x80 | length); // control frames never exceed 125 bytes
+        System.arraycopy(mask, 0, frame, 2, 4);
+
+        for (int i = 0; i < length; ++i) {
+            frame[6 + i] = (byte) (payload[i] ^ mask[i & 3]);
+        }
+
+        synchronized (out) {
+            out.write(frame);
+            out.flush();
+        }
+    }
+
+    private static void unmask(byte[] data, int offset, int length, byte[] mask) {
+        if (mask == null) return;
+
+        for (int i = 0; i < length; ++i) {
+            data[offset + i] ^= mask[i & 3];
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int offset, int count) throws IOException {
+        while (count > 0) {
+            final int read = in.read(buffer, offset, count);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            offset += read;
+            count -= read;
+        }
+    }
+
+    private static void skip(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            final long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException();
+                }
+                --count;
+            } else {
+                count -= skipped;
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package net.sf.aria2.rpc;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Aggregate state of aria2 instance, as reported by {@code aria2.getGlobalStat}, complemented
+ * with remaining length of active downloads (used to estimate the time of completion).
+ */
+public final class GlobalStat {
+    public static final GlobalStat EMPTY = new GlobalStat(0, 0, 0, 0, 0, 0);
+
+    /**
+     * Keys, requested from {@code aria2.tellActive} to compute {@link #remainingLength}
+     */
+    public static final String[] ACTIVE_KEYS = { "totalLength", "completedLength" };
+
+    public final long downloadSpeed;
+    public final long uploadSpeed;
+    public final int numActive;
+    public final int numWaiting;
+    public final int numStopped;
+    public final long remainingLength;
+
+    public GlobalStat(long downloadSpeed, long uploadSpeed,
+                      int numActive, int numWaiting, int numStopped,
+                      long remainingLength) {
+        this.downloadSpeed = downloadSpeed;
+        this.uploadSpeed = uploadSpeed;
+        this.numActive = numActive;
+        this.numWaiting = numWaiting;
+        this.numStopped = numStopped;
+        this.remainingLength = remainingLength;
+    }
+
+    /**
+     * @param stat result of {@code aria2.getGlobalStat}
+     * @param active result of {@code aria2.tellActive} with {@link #ACTIVE_KEYS}, may be null
+     */
+    public static GlobalStat parse(JSONObject stat, JSONArray active) {
+        long remaining = 0;
+
+        if (active != null) {
+            for (int i = 0; i < active.length(); ++i) {
+                final JSONObject download = active.optJSONObject(i);
+                if (download == null) continue;
+
+                final long total = parseLong(download.optString("totalLength"));
+                final long completed = parseLong(download.optString("completedLength"));
+
+                if (total > completed) {
+                    remaining += total - completed;
+                }
+            }
+        }
+
+        // aria2 reports all numbers as strings
+        return new GlobalStat(
+                parseLong(stat.optString("downloadSpeed")),
+                parseLong(stat.optString("uploadSpeed")),
+                (int) parseLong(stat.optString("numActive")),
+                (int) parseLong(stat.optString("numWaiting")),
+                (int) parseLong(stat.optString("numStopped")),
+                remaining);
+    }
+
+    public boolean isTransferring() {
+        return numActive != 0 && (downloadSpeed != 0 || uploadSpeed != 0);
+    }
+
+    /**
+     * @return estimated seconds until active downloads complete or -1, if unknown
+     */
+    public long getEta() {
+        if (downloadSpeed <= 0 || remainingLength <= 0) {
+            return -1;
+        }
+
+        return remainingLength / downloadSpeed;
+    }
+
+    public GlobalStat plus(GlobalStat other) {
+        return new GlobalStat(
+                downloadSpeed + other.downloadSpeed,
+                uploadSpeed + other.uploadSpeed,
+                numActive + other.numActive,
+                numWaiting + other.numWaiting,
+                numStopped + other.numStopped,
+                remainingLength + other.remainingLength);
+    }
+
+    public static long parseLong(String value) {
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof GlobalStat)) return false;
+
+        final GlobalStat that = (GlobalStat) o;
+
+        return downloadSpeed == that.downloadSpeed
+                && uploadSpeed == that.uploadSpeed
+                && numActive == that.numActive
+                && numWaiting == that.numWaiting
+                && numStopped == that.numStopped
+                && remainingLength == that.remainingLength;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (downloadSpeed ^ (downloadSpeed >>> 32));
+        result = 31 * result + (int) (uploadSpeed ^ (uploadSpeed >>> 32));
+        result = 31 * result + numActive;
+        result = 31 * result + numWaiting;
+        result = 31 * result + numStopped;
+        result = 31 * result + (int) (remainingLength ^ (remainingLength >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "DL:" + downloadSpeed + " UL:" + uploadSpeed
+                + " active:" + numActive + " waiting:" + numWaiting + " stopped:" + numStopped;
+    }
+}
@@ -0,0 +1,175 @@
+package net.sf.aria2.rpc;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single pending invocation of aria2 method. Created by {@link RpcClient#call}, completed
+ * by connection reader thread (or by whoever notices the connection failure first).
+ */
+public final class RpcCall {
+    public interface Listener {
+        /**
+         * Called on one of {@link RpcClient} threads, must not block.
+         */
+        void onComplete(RpcCall call);
+    }
+
+    final String method;
+    final Object[] params;
+    final long deadline;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile Listener listener;
+
+    private boolean finished;
+    private Object result;
+    private RpcException error;
+
+    RpcCall(String method, Object[] params, long timeout) {
+        this.method = method;
+        this.params = params;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Register a listener, which will be invoked once the call completes. If the call is already
+     * complete, the listener is invoked right away on current thread.
+     */
+    public RpcCall then(Listener listener) {
+        this.listener = listener;
+
+        if (isDone() && takeListener() != null) {
+            listener.onComplete(this);
+        }
+
+        return this;
+    }
+
+    public Object get() throws RpcException {
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new RpcException(RpcException.TIMEOUT, "Interrupted while waiting for " + method);
+        }
+
+        return unwrap();
+    }
+
+    public Object get(long timeoutMillis) throws RpcException {
+        try {
+            if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new RpcException(RpcException.TIMEOUT, method + " timed out");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new RpcException(RpcException.TIMEOUT, "Interrupted while waiting for " + method);
+        }
+
+        return unwrap();
+    }
+
+    public JSONObject getObject(long timeoutMillis) throws RpcException {
+        return cast(get(timeoutMillis), JSONObject.class);
+    }
+
+    public JSONArray getArray(long timeoutMillis) throws RpcException {
+        return cast(get(timeoutMillis), JSONArray.class);
+    }
+
+    /**
+     * @return the result of completed call or {@code null} if the call have failed
+     */
+    public Object peek() {
+        return isDone() && error == null ? result : null;
+    }
+
+    /**
+     * @return the failure of completed call or {@code null} if the call have succeeded
+     */
+    public RpcException getError() {
+        return isDone() ? error : null;
+    }
+
+    private Object unwrap() throws RpcException {
+        if (error != null) {
+            throw error;
+        }
+
+        return result;
+    }
+
+    private <T> T cast(Object value, Class<T> type) throws RpcException {
+        if (!type.isInstance(value)) {
+            throw new RpcException(RpcException.TRANSPORT, method + " returned unexpected " + value);
+        }
+
+        return type.cast(value);
+    }
+
+    boolean isExpired(long now) {
+        return now - deadline > 0;
+    }
+
+    void complete(Object result) {
+        synchronized (this) {
+            if (finished) return;
+
+            finished = true;
+            this.result = result;
+        }
+
+        finish();
+    }
+
+    /**
+     * @return false, if the call has already been completed
+     */
+    boolean fail(RpcException error) {
+        synchronized (this) {
+            if (finished) return false;
+
+            finished = true;
+            this.error = error;
+        }
+
+        finish();
+
+        return true;
+    }
+
+    private synchronized Listener takeListener() {
+        final Listener l = listener;
+        listener = null;
+        return l;
+    }
+
+    private void finish() {
+        done.countDown();
+
+        final Listener l = takeListener();
+        if (l != null) {
+            l.onComplete(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return method;
+    }
+}
@@ -0,0 +1,794 @@
+package net.sf.aria2.rpc;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JSON-RPC client for aria2, that keeps a single HTTP/1.1 connection to the daemon.
+ *
+ * Calls, made within a few milliseconds of each other, are folded into single
+ * {@code system.multicall} request. Requests are pipelined: the writer does not wait for
+ * the response to previous request before sending next one, as long as there are no more
+ * than {@link #MAX_IN_FLIGHT} of them. If the oldest request stays unanswered past it's deadline,
+ * the connection is considered wedged, dropped and all outstanding calls fail. Next call
+ * will reconnect.
+ */
+public final class RpcClient implements Closeable {
+    private static final String TAG = "aria2rpc";
+
+    public static final long DEFAULT_TIMEOUT = 5000;
+
+    /**
+     * Receives transport statistics. Called on IO threads of the client, must not block.
+     */
+    public interface Monitor {
+        /**
+         * @param calls the number of calls in request (more than one for multicall)
+         */
+        void onRequest(int calls, int bytes);
+
+        void onResponse(long latencyNanos, int bytes);
+
+        /**
+         * Called, when calls fail due to transport errors or timeouts (but not aria2 errors)
+         */
+        void onFailure(int calls);
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAX_BATCH = 32;
+    private static final long BATCH_WINDOW_MS = 4;
+    private static final int MAX_IN_FLIGHT = 4;
+
+    private static final int CONNECT_TIMEOUT = 2000;
+    private static final int READ_TICK = 500;
+    private static final int IDLE_TICK = 30000;
+
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private final ArrayDeque<RpcCall> queue = new ArrayDeque<>();
+    private Connection connection;
+    private Thread writer;
+    private boolean closed;
+    private int lastId;
+
+    private final InetSocketAddress address;
+    private final String token;
+    private final byte[] requestHead;
+
+    private volatile Monitor monitor;
+
+    public RpcClient(int port, String secret) {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), secret);
+    }
+
+    public RpcClient(InetSocketAddress address, String secret) {
+        this.address = address;
+        this.token = TextUtils.isEmpty(secret) ? null : "token:" + secret;
+
+        final String hostHeader = address.getAddress().getHostAddress() + ':' + address.getPort();
+
+        this.requestHead = ("POST /jsonrpc HTTP/1.1\r\n" +
+                "Host: " + hostHeader + "\r\n" +
+                "Content-Type: application/json\r\n" +
+                "Connection: keep-alive\r\n" +
+                "Content-Length: ").getBytes(UTF_8);
+    }
+
+    public int getPort() {
+        return address.getPort();
+    }
+
+    public void setMonitor(Monitor monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * Enqueue a call with default timeout. The call will be sent together with others, issued
+     * during the same batching window.
+     *
+     * @param params method parameters, excluding the secret token (it is added automatically)
+     */
+    public RpcCall call(String method, Object... params) {
+        return call(DEFAULT_TIMEOUT, method, params);
+    }
+
+    public RpcCall call(long timeout, String method, Object... params) {
+        final RpcCall call = new RpcCall(method, params, timeout);
+
+        final ArrayList<RpcCall> single = new ArrayList<>(1);
+        single.add(call);
+
+        callAll(single);
+
+        return call;
+    }
+
+    /**
+     * Enqueue several calls at once, guaranteeing, that they won't be interleaved with calls from
+     * other threads. As long as there are no more than {@link #MAX_BATCH} of them, they are going
+     * to be sent in a single {@code system.multicall}.
+     */
+    public List<RpcCall> callAll(List<RpcCall> calls) {
+        synchronized (lock) {
+            if (!closed) {
+                queue.addAll(calls);
+
+                ensureWriter();
+
+                lock.notifyAll();
+
+                return calls;
+            }
+        }
+
+        final RpcException e = new RpcException(RpcException.TRANSPORT, "Client is closed");
+
+        for (RpcCall call : calls) {
+            call.fail(e);
+        }
+
+        return calls;
+    }
+
+    /**
+     * Create a call for use with {@link #callAll}.
+     */
+    public RpcCall prepare(String method, Object... params) {
+        return new RpcCall(method, params, DEFAULT_TIMEOUT);
+    }
+
+    @Override
+    public void close() {
+        final Connection current;
+        final List<RpcCall> abandoned;
+
+        synchronized (lock) {
+            if (closed) return;
+
+            closed = true;
+
+            current = connection;
+            connection = null;
+
+            abandoned = new ArrayList<>(queue);
+            queue.clear();
+
+            lock.notifyAll();
+        }
+
+        final RpcException e = new RpcException(RpcException.TRANSPORT, "Client is closed");
+
+        for (RpcCall call : abandoned) {
+            call.fail(e);
+        }
+
+        if (current != null) {
+            current.abort(e);
+        }
+    }
+
+    private void ensureWriter() {
+        if (writer == null) {
+            writer = new Thread(this::writeLoop, "aria2 rpc writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    private void writeLoop() {
+        final ArrayList<RpcCall> batch = new ArrayList<>(MAX_BATCH);
+
+        try {
+            while (takeBatch(batch)) {
+                Connection c = null;
+                try {
+                    c = obtainConnection();
+
+                    c.send(nextId(), batch);
+                } catch (IOException e) {
+                    final RpcException failure = e instanceof RpcException
+                            ? (RpcException) e
+                            : new RpcException("Failed to send " + batch, e);
+
+                    // fails and counts the batch, if it made it into the connection's in-flight list
+                    if (c != null) {
+                        c.abort(failure);
+                    }
+
+                    final int count = failAll(batch, failure);
+
+                    final Monitor monitor = RpcClient.this.monitor;
+                    if (monitor != null && count != 0) {
+                        monitor.onFailure(count);
+                    }
+                }
+
+                batch.clear();
+            }
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "RPC writer interrupted");
+        }
+    }
+
+    private int nextId() {
+        synchronized (lock) {
+            return ++lastId;
+        }
+    }
+
+    /**
+     * @return the number of calls, that were failed by this invocation (rather than completed earlier)
+     */
+    private static int failAll(List<RpcCall> calls, RpcException reason) {
+        int count = 0;
+
+        for (RpcCall call : calls) {
+            if (call.fail(reason)) {
+                ++count;
+            }
+        }
+
+        return count;
+    }
+
+    private boolean takeBatch(List<RpcCall> batch) throws InterruptedException {
+        while (true) {
+            final Connection wedged;
+            final Batch expired;
+
+            synchronized (lock) {
+                if (!awaitQueue()) {
+                    return takeQueued(batch);
+                }
+
+                wedged = connection;
+                expired = wedged.findExpired(System.nanoTime());
+            }
+
+            // the reader might not notice before it's idle tick ends
+            wedged.abort(new RpcException(RpcException.TIMEOUT, "aria2 did not respond to " + expired));
+        }
+    }
+
+    /**
+     * Wait for calls to send. While there are requests in flight, the deadline of the oldest one
+     * is checked every {@link #READ_TICK}: the reader blocks for up to {@link #IDLE_TICK} when
+     * nothing was in flight at the start of a read, and would notice it late.
+     *
+     * Called with lock held.
+     *
+     * @return true, if the current connection has an expired request
+     */
+    private boolean awaitQueue() throws InterruptedException {
+        while (queue.isEmpty() && !closed) {
+            final Connection c = connection;
+
+            if (c == null || !c.isWaiting()) {
+                lock.wait();
+                continue;
+            }
+
+            lock.wait(READ_TICK);
+
+            if (connection == c && c.findExpired(System.nanoTime()) != null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // called with lock held
+    private boolean takeQueued(List<RpcCall> batch) throws InterruptedException {
+        if (closed) {
+            return false;
+        }
+
+        // give other callers a chance to join
+        final long windowEnd = System.nanoTime() + BATCH_WINDOW_MS * 1000_000L;
+        long remaining;
+        while (queue.size() < MAX_BATCH && !closed
+                && (remaining = windowEnd - System.nanoTime()) > 0) {
+            lock.wait(remaining / 1000_000L, (int) (remaining % 1000_000L));
+        }
+
+        while (!queue.isEmpty() && batch.size() < MAX_BATCH) {
+            batch.add(queue.poll());
+        }
+
+        return !closed;
+    }
+
+    private Connection obtainConnection() throws IOException, InterruptedException {
+        Connection c;
+        Batch expired = null;
+
+        synchronized (lock) {
+            c = connection;
+
+            if (c != null && c.isAlive()) {
+                expired = c.awaitSlot();
+
+                if (expired == null) {
+                    return c;
+                }
+            }
+        }
+
+        if (expired != null) {
+            // drop the wedged connection and send over a new one
+            c.abort(new RpcException(RpcException.TIMEOUT, "aria2 did not respond to " + expired));
+        }
+
+        final Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.setSoTimeout(READ_TICK);
+            socket.connect(address, CONNECT_TIMEOUT);
+        } catch (IOException ioe) {
+            socket.close();
+            throw ioe;
+        }
+
+        c = new Connection(socket);
+
+        synchronized (lock) {
+            if (closed) {
+                c.abort(new RpcException(RpcException.TRANSPORT, "Client is closed"));
+
+                throw new RpcException(RpcException.TRANSPORT, "Client is closed");
+            }
+
+            connection = c;
+        }
+
+        c.start();
+
+        return c;
+    }
+
+    private final class Connection implements Runnable {
+        private final ArrayDeque<Batch> inFlight = new ArrayDeque<>(MAX_IN_FLIGHT);
+
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        private final StringBuilder lineBuilder = new StringBuilder(64);
+
+        // body length of the last response, accessed from the reader thread
+        private int responseLength;
+
+        // guarded by lock
+        private boolean draining; // no new requests may be written, but responses may still come
+        private boolean aborted;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 8192);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+        }
+
+        void start() {
+            final Thread reader = new Thread(this, "aria2 rpc reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // called with lock held
+        boolean isAlive() {
+            return !draining;
+        }
+
+        // called with lock held
+        boolean isWaiting() {
+            return !inFlight.isEmpty();
+        }
+
+        // called with lock held
+        Batch findExpired(long now) {
+            final Batch oldest = inFlight.peek();
+
+            return oldest != null && oldest.isExpired(now) ? oldest : null;
+        }
+
+        /**
+         * Called with lock held.
+         *
+         * @return the expired request, that makes this connection unusable, or null, if there is
+         * room for one more request
+         */
+        Batch awaitSlot() throws InterruptedException, RpcException {
+            while (inFlight.size() >= MAX_IN_FLIGHT && !draining) {
+                // the reader might be sleeping through an idle tick, watch the deadlines here too
+                lock.wait(READ_TICK);
+
+                final Batch expired = findExpired(System.nanoTime());
+                if (expired != null) {
+                    return expired;
+                }
+            }
+
+            if (draining) {
+                throw new RpcException(RpcException.TRANSPORT, "Connection is lost");
+            }
+
+            return null;
+        }
+
+        void send(int id, List<RpcCall> calls) throws IOException {
+            final byte[] body;
+            try {
+                body = encode(id, calls).getBytes(UTF_8);
+            } catch (JSONException e) {
+                throw new RpcException("Failed to encode " + calls, e);
+            }
+
+            synchronized (lock) {
+                if (draining) {
+                    throw new RpcException(RpcException.TRANSPORT, "Connection is lost");
+                }
+
+                inFlight.add(new Batch(calls));
+            }
+
+            final byte[] length = Integer.toString(body.length).getBytes(UTF_8);
+
+            out.write(requestHead);
+            out.write(length);
+            out.write('\r'); out.write('\n');
+            out.write('\r'); out.write('\n');
+            out.write(body);
+            out.flush();
+
+            final Monitor monitor = RpcClient.this.monitor;
+            if (monitor != null) {
+                monitor.onRequest(calls.size(), requestHead.length + length.length + 4 + body.length);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final String response = readResponse();
+
+                    final Batch batch;
+
+                    synchronized (lock) {
+                        batch = inFlight.poll();
+
+                        lock.notifyAll();
+                    }
+
+                    if (batch == null) {
+                        throw new IOException("Unsolicited response from aria2");
+                    }
+
+                    final Monitor monitor = RpcClient.this.monitor;
+                    if (monitor != null) {
+                        monitor.onResponse(System.nanoTime() - batch.sentAt, responseLength);
+                    }
+
+                    batch.dispatch(response);
+                }
+            } catch (EOFException eof) {
+                abort(new RpcException(RpcException.TRANSPORT, "Connection closed by aria2"));
+            } catch (IOException e) {
+                abort(e instanceof RpcException ? (RpcException) e : new RpcException("Connection failed", e));
+            }
+        }
+
+        void abort(RpcException reason) {
+            final List<Batch> failed;
+
+            synchronized (lock) {
+                if (aborted) return;
+
+                aborted = true;
+                draining = true;
+
+                if (connection == this) {
+                    connection = null;
+                }
+
+                failed = new ArrayList<>(inFlight);
+                inFlight.clear();
+
+                lock.notifyAll();
+            }
+
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+
+            int count = 0;
+            for (Batch batch : failed) {
+                count += failAll(batch.calls, reason);
+            }
+
+            final Monitor monitor = RpcClient.this.monitor;
+            if (monitor != null && count != 0) {
+                monitor.onFailure(count);
+            }
+        }
+
+        private String readResponse() throws IOException {
+            String statusLine;
+            do {
+                statusLine = readLine(true);
+            } while (statusLine.isEmpty());
+
+            if (!statusLine.startsWith("HTTP/1.")) {
+                throw new IOException("Malformed status line: " + statusLine);
+            }
+
+            int contentLength = -1;
+            boolean closing = false;
+
+            String header;
+            while (!(header = readLine(false)).isEmpty()) {
+                final int colon = header.indexOf(':');
+                if (colon == -1) continue;
+
+                final String name = header.substring(0, colon).trim();
+                final String value = header.substring(colon + 1).trim();
+
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    contentLength = Integer.parseInt(value);
+                } else if ("Connection".equalsIgnoreCase(name)) {
+                    closing = "close".equalsIgnoreCase(value);
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name) && !"identity".equalsIgnoreCase(value)) {
+                    throw new IOException("Unsupported transfer encoding: " + value);
+                }
+            }
+
+            if (contentLength < 0) {
+                throw new IOException("Response without Content-Length");
+            }
+
+            final byte[] body = new byte[contentLength];
+
+            responseLength = contentLength;
+
+            int offset = 0;
+            while (offset < contentLength) {
+                final int read = readSome(body, offset, contentLength - offset);
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                offset += read;
+            }
+
+            if (closing) {
+                synchronized (lock) {
+                    // let the writer know, that no more requests should be sent over this connection,
+                    // the requests, already sent, are failed once aria2 closes it
+                    draining = true;
+
+                    if (connection == this) {
+                        connection = null;
+                    }
+                }
+            }
+
+            return new String(body, UTF_8);
+        }
+
+        private String readLine(boolean idle) throws IOException {
+            lineBuilder.setLength(0);
+
+            int c;
+            while ((c = readByte(idle && lineBuilder.length() == 0)) != '\n') {
+                if (c == -1) {
+                    throw new EOFException();
+                }
+
+                if (c != '\r') {
+                    lineBuilder.append((char) c);
+                }
+            }
+
+            return lineBuilder.toString();
+        }
+
+        private int readByte(boolean idle) throws IOException {
+            while (true) {
+                try {
+                    final int b = in.read();
+
+                    if (idle) {
+                        // something is coming, switch to short ticks to watch for deadlines
+                        socket.setSoTimeout(READ_TICK);
+                    }
+
+                    return b;
+                } catch (SocketTimeoutException ste) {
+                    final boolean waiting = checkDeadlines();
+
+                    if (idle) {
+                        // avoid waking up twice per second when there is nothing to wait for
+                        socket.setSoTimeout(waiting ? READ_TICK : IDLE_TICK);
+                    }
+                }
+            }
+        }
+
+        private int readSome(byte[] buffer, int offset, int count) throws IOException {
+            while (true) {
+                try {
+                    return in.read(buffer, offset, count);
+                } catch (SocketTimeoutException ste) {
+                    checkDeadlines();
+                }
+            }
+        }
+
+        /**
+         * @return whether there are requests, waiting for response
+         */
+        private boolean checkDeadlines() throws IOException {
+            final Batch oldest;
+
+            synchronized (lock) {
+                if (draining && inFlight.isEmpty()) {
+                    throw new EOFException();
+                }
+
+                oldest = inFlight.peek();
+            }
+
+            if (oldest != null && oldest.isExpired(System.nanoTime())) {
+                throw new RpcException(RpcException.TIMEOUT, "aria2 did not respond to " + oldest);
+            }
+
+            return oldest != null;
+        }
+    }
+
+    private String encode(int id, List<RpcCall> calls) throws JSONException {
+        final JSONObject request = new JSONObject()
+                .put("jsonrpc", "2.0")
+                .put("id", id);
+
+        if (calls.size() == 1) {
+            final RpcCall call = calls.get(0);
+
+            request.put("method", call.method)
+                    .put("params", encodeParams(call));
+        } else {
+            final JSONArray invocations = new JSONArray();
+
+            for (RpcCall call : calls) {
+                invocations.put(new JSONObject()
+                        .put("methodName", call.method)
+                        .put("params", encodeParams(call)));
+            }
+
+            request.put("method", "system.multicall")
+                    .put("params", new JSONArray().put(invocations));
+        }
+
+        return request.toString();
+    }
+
+    private JSONArray encodeParams(RpcCall call) {
+        final JSONArray params = new JSONArray();
+
+        // methods of "system" namespace do not accept the token
+        if (token != null && !call.method.startsWith("system.")) {
+            params.put(token);
+        }
+
+        if (call.params != null) {
+            for (Object param : call.params) {
+                params.put(JSONObject.wrap(param));
+            }
+        }
+
+        return params;
+    }
+
+    private static final class Batch {
+        final List<RpcCall> calls;
+
+        final long sentAt = System.nanoTime();
+
+        Batch(List<RpcCall> calls) {
+            this.calls = new ArrayList<>(calls);
+        }
+
+        boolean isExpired(long now) {
+            for (RpcCall call : calls) {
+                if (!call.isDone() && call.isExpired(now)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        void dispatch(String response) {
+            final JSONObject parsed;
+            try {
+                parsed = new JSONObject(response);
+            } catch (JSONException e) {
+                failAll(new RpcException("Malformed response", e));
+                return;
+            }
+
+            final JSONObject error = parsed.optJSONObject("error");
+            if (error != null) {
+                failAll(toException(error));
+                return;
+            }
+
+            final Object result = parsed.opt("result");
+
+            if (calls.size() == 1) {
+                calls.get(0).complete(result);
+                return;
+            }
+
+            if (!(result instanceof JSONArray) || ((JSONArray) result).length() != calls.size()) {
+                failAll(new RpcException(RpcException.TRANSPORT, "Unexpected multicall response"));
+                return;
+            }
+
+            final JSONArray results = (JSONArray) result;
+
+            for (int i = 0; i < calls.size(); ++i) {
+                final Object item = results.opt(i);
+
+                if (item instanceof JSONArray) {
+                    // successful results are wrapped in single-element arrays
+                    calls.get(i).complete(((JSONArray) item).opt(0));
+                } else if (item instanceof JSONObject) {
+                    calls.get(i).fail(toException((JSONObject) item));
+                } else {
+                    calls.get(i).fail(new RpcException(RpcException.TRANSPORT, "Unexpected multicall item"));
+                }
+            }
+        }
+
+        private void failAll(RpcException e) {
+            for (RpcCall call : calls) {
+                call.fail(e);
+            }
+        }
+
+        private static RpcException toException(JSONObject error) {
+            return new RpcException(error.optInt("code", 1), error.optString("message", "unknown error"));
+        }
+
+        @Override
+        public String toString() {
+            return calls.toString();
+        }
+    }
+}
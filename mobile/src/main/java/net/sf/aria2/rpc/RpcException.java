@@ -0,0 +1,34 @@
+package net.sf.aria2.rpc;
+
+import java.io.IOException;
+
+/**
+ * Either a transport failure or a fault, reported back by aria2 itself. The later have
+ * non-negative {@link #getCode() code}, as described in "EXIT STATUS" section of aria2 manual.
+ */
+public final class RpcException extends IOException {
+    public static final int TRANSPORT = -1;
+    public static final int TIMEOUT = -2;
+
+    private final int code;
+
+    public RpcException(int code, String message) {
+        super(message);
+
+        this.code = code;
+    }
+
+    public RpcException(String message, Throwable cause) {
+        super(message, cause);
+
+        this.code = TRANSPORT;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public boolean isFault() {
+        return code >= 0;
+    }
+}
@@ -0,0 +1,323 @@
+package net.sf.aria2.schedule;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Single line of user-defined schedule: a set of conditions and an action to take, when all
+ * of them hold. For example:
+ *
+ * <pre>
+ * unmetered charging 01:00-07:00: run
+ * metered: limit 200K 50K
+ * roaming: pause
+ * </pre>
+ *
+ * Known conditions are {@code metered}, {@code unmetered}, {@code roaming}, {@code charging},
+ * {@code battery} and time windows (which may span midnight); {@code *} matches anything.
+ * Actions are {@code run} (no limits), {@code limit <download> [<upload>]} and {@code pause}.
+ * Rules are checked in order, the first matching one wins; if none matches, aria2 runs
+ * without limits.
+ */
+public final class ScheduleRule {
+    public static final int ACTION_RUN = 0;
+    public static final int ACTION_LIMIT = 1;
+    public static final int ACTION_PAUSE = 2;
+
+    private static final int METERED = 1;
+    private static final int UNMETERED = 1 << 1;
+    private static final int ROAMING = 1 << 2;
+    private static final int CHARGING = 1 << 3;
+    private static final int ON_BATTERY = 1 << 4;
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    public static final ScheduleRule DEFAULT = new ScheduleRule(0, -1, -1, ACTION_RUN, 0, 0, "*: run");
+
+    /**
+     * Snapshot of device state, rules are matched against
+     */
+    public static final class State {
+        public final boolean metered;
+        public final boolean roaming;
+        public final boolean charging;
+        public final int minuteOfDay;
+
+        public State(boolean metered, boolean roaming, boolean charging, int minuteOfDay) {
+            this.metered = metered;
+            this.roaming = roaming;
+            this.charging = charging;
+            this.minuteOfDay = minuteOfDay;
+        }
+
+        @Override
+        public String toString() {
+            return (metered ? "metered" : "unmetered") + (roaming ? " roaming" : "")
+                    + (charging ? " charging" : " battery")
+                    + String.format(Locale.US, " %02d:%02d", minuteOfDay / 60, minuteOfDay % 60);
+        }
+    }
+
+    private final int required;
+    private final int windowStart;
+    private final int windowEnd;
+
+    public final int action;
+
+    /**
+     * Limits in bytes per second, 0 means unlimited
+     */
+    public final long downloadLimit;
+    public final long uploadLimit;
+
+    private final String source;
+
+    private ScheduleRule(int required, int windowStart, int windowEnd,
+                         int action, long downloadLimit, long uploadLimit, String source) {
+        this.required = required;
+        this.windowStart = windowStart;
+        this.windowEnd = windowEnd;
+        this.action = action;
+        this.downloadLimit = downloadLimit;
+        this.uploadLimit = uploadLimit;
+        this.source = source;
+    }
+
+    public boolean matches(State state) {
+        if ((required & METERED) != 0 && !state.metered) return false;
+        if ((required & UNMETERED) != 0 && state.metered) return false;
+        if ((required & ROAMING) != 0 && !state.roaming) return false;
+        if ((required & CHARGING) != 0 && !state.charging) return false;
+        if ((required & ON_BATTERY) != 0 && state.charging) return false;
+
+        if (windowStart == -1) return true;
+
+        final int minute = state.minuteOfDay;
+
+        return windowStart <= windowEnd
+                ? minute >= windowStart && minute < windowEnd
+                : minute >= windowStart || minute < windowEnd;
+    }
+
+    /**
+     * @return the first rule, matching the state, or {@link #DEFAULT}
+     */
+    public static ScheduleRule select(List<ScheduleRule> rules, State state) {
+        for (ScheduleRule rule : rules) {
+            if (rule.matches(state)) {
+                return rule;
+            }
+        }
+
+        return DEFAULT;
+    }
+
+    /**
+     * @return milliseconds from given time until the next start or end of any time window, or -1
+     */
+    public static long untilNextBoundary(List<ScheduleRule> rules, Calendar now) {
+        final int minute = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+
+        int closest = Integer.MAX_VALUE;
+
+        for (ScheduleRule rule : rules) {
+            if (rule.windowStart == -1) continue;
+
+            closest = Math.min(closest, minutesUntil(minute, rule.windowStart));
+            closest = Math.min(closest, minutesUntil(minute, rule.windowEnd));
+        }
+
+        if (closest == Integer.MAX_VALUE) {
+            return -1;
+        }
+
+        final long intoMinute = now.get(Calendar.SECOND) * 1000L + now.get(Calendar.MILLISECOND);
+
+        return closest * 60000L - intoMinute;
+    }
+
+    /**
+     * @return true, if this rule has a time window, within which aria2 should be running
+     */
+    public boolean isRunWindow() {
+        return windowStart != -1 && action != ACTION_PAUSE;
+    }
+
+    /**
+     * @return milliseconds from given time until the next run window opens, or -1
+     */
+    public static long untilNextRunWindow(List<ScheduleRule> rules, Calendar now) {
+        final int minute = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+
+        int closest = Integer.MAX_VALUE;
+
+        for (ScheduleRule rule : rules) {
+            if (rule.isRunWindow()) {
+                closest = Math.min(closest, minutesUntil(minute, rule.windowStart));
+            }
+        }
+
+        if (closest == Integer.MAX_VALUE) {
+            return -1;
+        }
+
+        return closest * 60000L - (now.get(Calendar.SECOND) * 1000L + now.get(Calendar.MILLISECOND));
+    }
+
+    private static int minutesUntil(int from, int to) {
+        final int delta = (to - from + MINUTES_PER_DAY) % MINUTES_PER_DAY;
+
+        return delta == 0 ? MINUTES_PER_DAY : delta;
+    }
+
+    /**
+     * Parse the schedule, one rule per line. Empty lines and lines, starting with '#', are ignored.
+     *
+     * @throws IllegalArgumentException if some of lines can not be parsed
+     */
+    public static List<ScheduleRule> parseAll(String text) {
+        if (text == null) {
+            return Collections.emptyList();
+        }
+
+        final List<ScheduleRule> rules = new ArrayList<>();
+
+        for (String line : text.split("\n")) {
+            line = line.trim();
+
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            rules.add(parse(line));
+        }
+
+        return rules;
+    }
+
+    public static ScheduleRule parse(String line) {
+        // time windows contain colons too, the action follows the last ':', not followed by a digit
+        int split = -1;
+        for (int i = line.length() - 1; i >= 0; --i) {
+            if (line.charAt(i) == ':' && (i + 1 == line.length() || !Character.isDigit(line.charAt(i + 1)))) {
+                split = i;
+                break;
+            }
+        }
+
+        if (split == -1) {
+            throw new IllegalArgumentException("Missing ':' in \"" + line + '"');
+        }
+
+        int required = 0, windowStart = -1, windowEnd = -1;
+
+        for (String token : line.substring(0, split).trim().toLowerCase(Locale.US).split("\\s+")) {
+            switch (token) {
+                case "":
+                case "*":
+                    break;
+                case "metered":
+                    required |= METERED;
+                    break;
+                case "unmetered":
+                    required |= UNMETERED;
+                    break;
+                case "roaming":
+                    required |= ROAMING;
+                    break;
+                case "charging":
+                    required |= CHARGING;
+                    break;
+                case "battery":
+                    required |= ON_BATTERY;
+                    break;
+                default:
+                    final int dash = token.indexOf('-');
+
+                    if (dash == -1 || windowStart != -1) {
+                        throw new IllegalArgumentException("Unknown condition \"" + token + '"');
+                    }
+
+                    windowStart = parseTime(token.substring(0, dash));
+                    windowEnd = parseTime(token.substring(dash + 1));
+            }
+        }
+
+        final String[] action = line.substring(split + 1).trim().toLowerCase(Locale.US).split("\\s+");
+
+        switch (action[0]) {
+            case "run":
+                return new ScheduleRule(required, windowStart, windowEnd, ACTION_RUN, 0, 0, line);
+            case "pause":
+                return new ScheduleRule(required, windowStart, windowEnd, ACTION_PAUSE, 0, 0, line);
+            case "limit":
+                if (action.length < 2 || action.length > 3) {
+                    throw new IllegalArgumentException("Expected 'limit <download> [<upload>]' in \"" + line + '"');
+                }
+
+                final long download = parseRate(action[1]);
+                final long upload = action.length == 3 ? parseRate(action[2]) : 0;
+
+                return new ScheduleRule(required, windowStart, windowEnd, ACTION_LIMIT, download, upload, line);
+            default:
+                throw new IllegalArgumentException("Unknown action \"" + action[0] + '"');
+        }
+    }
+
+    // "7:30", "07:30"
+    private static int parseTime(String text) {
+        final int colon = text.indexOf(':');
+
+        try {
+            final int hours = Integer.parseInt(colon == -1 ? text : text.substring(0, colon));
+            final int minutes = colon == -1 ? 0 : Integer.parseInt(text.substring(colon + 1));
+
+            if (hours < 0 || hours > 24 || minutes < 0 || minutes > 59) {
+                throw new IllegalArgumentException("Invalid time \"" + text + '"');
+            }
+
+            return (hours * 60 + minutes) % MINUTES_PER_DAY;
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Invalid time \"" + text + '"');
+        }
+    }
+
+    /**
+     * Parse rate in aria2 format: "200K", "1.5M", "0"; "KiB" and "/s" suffixes are also accepted.
+     */
+    public static long parseRate(String text) {
+        String value = text.toUpperCase(Locale.US);
+
+        if (value.endsWith("/S")) value = value.substring(0, value.length() - 2);
+        if (value.endsWith("B")) value = value.substring(0, value.length() - 1);
+        if (value.endsWith("I")) value = value.substring(0, value.length() - 1);
+
+        long unit = 1;
+
+        if (value.endsWith("K")) {
+            unit = 1024;
+        } else if (value.endsWith("M")) {
+            unit = 1024 * 1024;
+        } else if (value.endsWith("G")) {
+            unit = 1024 * 1024 * 1024;
+        }
+
+        if (unit != 1) value = value.substring(0, value.length() - 1);
+
+        try {
+            final double number = Double.parseDouble(value);
+
+            if (number < 0) throw new NumberFormatException();
+
+            return (long) (number * unit);
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Invalid rate \"" + text + '"');
+        }
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
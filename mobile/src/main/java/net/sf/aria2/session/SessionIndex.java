@@ -0,0 +1,89 @@
+package net.sf.aria2.session;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact summary of aria2 session file: one entry per queued download.
+ */
+public final class SessionIndex {
+    public static final SessionIndex EMPTY = new SessionIndex(Collections.<Entry>emptyList());
+
+    public static final class Entry {
+        /**
+         * 64-bit GID or 0, if the session does not specify one
+         */
+        public final long gid;
+
+        public final String[] uris;
+
+        /**
+         * Values of "dir" and "out" options, may be null
+         */
+        public final String dir;
+        public final String out;
+
+        public final boolean paused;
+
+        Entry(long gid, String[] uris, String dir, String out, boolean paused) {
+            this.gid = gid;
+            this.uris = uris;
+            this.dir = dir;
+            this.out = out;
+            this.paused = paused;
+        }
+
+        /**
+         * @return GID in the form, used by aria2 RPC or null
+         */
+        public String getGidString() {
+            if (gid == 0) return null;
+
+            final String hex = Long.toHexString(gid);
+
+            return "0000000000000000".substring(hex.length()) + hex;
+        }
+
+        @Override
+        public String toString() {
+            return getGidString() + ' ' + (uris.length == 0 ? "" : uris[0]) + (paused ? " (paused)" : "");
+        }
+    }
+
+    private final List<Entry> entries;
+    private final int pausedCount;
+
+    SessionIndex(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+
+        int paused = 0;
+        for (Entry entry : entries) {
+            if (entry.paused) paused++;
+        }
+
+        this.pausedCount = paused;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getPausedCount() {
+        return pausedCount;
+    }
+
+    /**
+     * @return the number of entries, aria2 would start downloading right away
+     */
+    public int getPendingCount() {
+        return entries.size() - pausedCount;
+    }
+
+    public boolean hasPending() {
+        return getPendingCount() != 0;
+    }
+}
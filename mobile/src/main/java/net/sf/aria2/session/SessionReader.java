@@ -0,0 +1,238 @@
+package net.sf.aria2.session;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming reader of aria2 session files (the ones, written by {@code --save-session}):
+ *
+ * <pre>
+ * http://example.com/file.iso	http://mirror.example.com/file.iso
+ *  gid=2089b05ecca3d829
+ *  dir=/sdcard/Download
+ *  pause=true
+ * </pre>
+ *
+ * Each entry starts with tab-separated URI list, followed by options, indented by a space.
+ * Both plain and gzipped files are supported. Only the options, relevant for
+ * {@link SessionIndex}, are decoded, the rest is skipped without creating Strings.
+ */
+public final class SessionReader {
+    /**
+     * Name of the session file, that is kept in the download directory
+     */
+    public static final String DEFAULT_FILE_NAME = ".aria2.session.gz";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // lines can't be that long, unless the file is garbage
+    private static final int MAX_LINE = 64 * 1024;
+
+    private final InputStream stream;
+
+    private final byte[] buffer = new byte[8192];
+    private int bufferPos;
+    private int bufferEnd;
+
+    private byte[] line = new byte[256];
+    private int lineLength;
+
+    // pending entry
+    private String[] uris;
+    private long gid;
+    private String dir;
+    private String out;
+    private boolean paused;
+
+    private SessionReader(InputStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * @return index of the file or {@link SessionIndex#EMPTY}, if the file does not exist
+     */
+    public static SessionIndex read(File sessionFile) throws IOException {
+        try (InputStream fileStream = new FileInputStream(sessionFile)) {
+            return read(fileStream);
+        } catch (FileNotFoundException noFile) {
+            if (!sessionFile.exists()) {
+                return SessionIndex.EMPTY;
+            }
+
+            throw noFile;
+        }
+    }
+
+    public static SessionIndex read(InputStream input) throws IOException {
+        InputStream stream = new BufferedInputStream(input, 2);
+
+        stream.mark(2);
+        final int magic = stream.read() | stream.read() << 8;
+        stream.reset();
+
+        if (magic == GZIPInputStream.GZIP_MAGIC) {
+            stream = new GZIPInputStream(stream, 8192);
+        }
+
+        return new SessionReader(stream).parse();
+    }
+
+    private SessionIndex parse() throws IOException {
+        final List<SessionIndex.Entry> entries = new ArrayList<>();
+
+        while (readLine()) {
+            if (lineLength == 0 || line[0] == '#') {
+                continue;
+            }
+
+            if (line[0] == ' ' || line[0] == '\t') {
+                if (uris != null) {
+                    parseOption();
+                }
+            } else {
+                finishEntry(entries);
+
+                parseUris();
+            }
+        }
+
+        finishEntry(entries);
+
+        return new SessionIndex(entries);
+    }
+
+    private void finishEntry(List<SessionIndex.Entry> entries) {
+        if (uris != null) {
+            entries.add(new SessionIndex.Entry(gid, uris, dir, out, paused));
+        }
+
+        uris = null;
+        gid = 0;
+        dir = null;
+        out = null;
+        paused = false;
+    }
+
+    private void parseUris() {
+        int count = 1;
+        for (int i = 0; i < lineLength; ++i) {
+            if (line[i] == '\t') count++;
+        }
+
+        final String[] result = new String[count];
+
+        int start = 0, n = 0;
+        for (int i = 0; i <= lineLength; ++i) {
+            if (i == lineLength || line[i] == '\t') {
+                result[n++] = new String(line, start, i - start, UTF_8);
+                start = i + 1;
+            }
+        }
+
+        uris = result;
+    }
+
+    private void parseOption() {
+        int start = 0;
+        while (start < lineLength && (line[start] == ' ' || line[start] == '\t')) {
+            start++;
+        }
+
+        if (matches(start, "gid=")) {
+            gid = parseHex(start + 4);
+        } else if (matches(start, "dir=")) {
+            dir = value(start + 4);
+        } else if (matches(start, "out=")) {
+            out = value(start + 4);
+        } else if (matches(start, "pause=")) {
+            paused = matches(start + 6, "true");
+        }
+    }
+
+    private boolean matches(int offset, String text) {
+        if (lineLength - offset < text.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < text.length(); ++i) {
+            if (line[offset + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private String value(int offset) {
+        return new String(line, offset, lineLength - offset, UTF_8);
+    }
+
+    private long parseHex(int offset) {
+        long value = 0;
+
+        for (int i = offset; i < lineLength && i < offset + 16; ++i) {
+            final int digit = Character.digit(line[i], 16);
+
+            if (digit == -1) return 0;
+
+            value = value << 4 | digit;
+        }
+
+        return value;
+    }
+
+    /**
+     * Read next line (without terminator) into {@link #line}.
+     *
+     * @return false on end of input
+     */
+    private boolean readLine() throws IOException {
+        lineLength = 0;
+
+        boolean any = false;
+
+        while (true) {
+            if (bufferPos == bufferEnd) {
+                bufferEnd = stream.read(buffer);
+                bufferPos = 0;
+
+                if (bufferEnd <= 0) {
+                    bufferEnd = 0;
+                    return any;
+                }
+            }
+
+            any = true;
+
+            final byte b = buffer[bufferPos++];
+
+            if (b == '\n') {
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+
+                return true;
+            }
+
+            if (lineLength == line.length) {
+                if (line.length >= MAX_LINE) {
+                    continue;
+                }
+
+                final byte[] larger = new byte[line.length * 2];
+                System.arraycopy(line, 0, larger, 0, lineLength);
+                line = larger;
+            }
+
+            line[lineLength++] = b;
+        }
+    }
+}
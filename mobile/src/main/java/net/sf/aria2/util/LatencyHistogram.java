@@ -0,0 +1,100 @@
+package net.sf.aria2.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Histogram of durations with power-of-two buckets: bucket 0 counts zero durations, bucket
+ * {@code i} counts durations in range [2<sup>i-1</sup>, 2<sup>i</sup>) milliseconds, the last
+ * bucket also counts everything above it. Recording does not allocate.
+ */
+public final class LatencyHistogram {
+    public static final int BUCKETS = 20;
+
+    private final int[] counts = new int[BUCKETS];
+
+    private long total;
+
+    public static int bucketOf(long millis) {
+        if (millis <= 0) return 0;
+
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+    }
+
+    /**
+     * @return exclusive upper bound of the bucket in milliseconds
+     */
+    public static long upperBound(int bucket) {
+        return 1L << bucket;
+    }
+
+    public void record(long millis) {
+        counts[bucketOf(millis)]++;
+        total++;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @param fraction value between 0 and 1, e.g. 0.5 for median
+     *
+     * @return upper bound of the bucket, containing given percentile or -1 if the histogram is empty
+     */
+    public long percentile(double fraction) {
+        if (total == 0) return -1;
+
+        final long threshold = (long) Math.ceil(total * fraction);
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+
+            if (seen >= threshold && seen != 0) {
+                return upperBound(i);
+            }
+        }
+
+        return upperBound(BUCKETS - 1);
+    }
+
+    public int[] toArray() {
+        return counts.clone();
+    }
+
+    public void copyFrom(LatencyHistogram other) {
+        System.arraycopy(other.counts, 0, counts, 0, BUCKETS);
+        total = other.total;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = 0;
+        }
+
+        total = 0;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(BUCKETS);
+
+        for (int count : counts) {
+            out.writeInt(count);
+        }
+    }
+
+    public void readFrom(DataInput in) throws IOException {
+        final int buckets = in.readUnsignedByte();
+
+        reset();
+
+        for (int i = 0; i < buckets; ++i) {
+            final int count = in.readInt();
+
+            counts[Math.min(i, BUCKETS - 1)] += count;
+            total += count;
+        }
+    }
+}
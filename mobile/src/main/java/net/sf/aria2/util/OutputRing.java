@@ -0,0 +1,118 @@
+package net.sf.aria2.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Fixed-size ring of most recent process output. There must be a single writer, but there may be
+ * any number of concurrent readers; neither side takes locks or allocates memory.
+ *
+ * Positions are absolute: a position is the number of bytes, written before given byte. The writer
+ * never fills more than {@link #CHUNK} bytes at once, so readers can tell, which part of the ring
+ * may be concurrently overwritten, and skip it.
+ */
+public final class OutputRing {
+    public static final int CHUNK = 2048;
+
+    private final byte[] buffer;
+    private final int mask;
+
+    // writer-only view of the buffer, reused for every read
+    private final ByteBuffer slice;
+
+    private volatile long written;
+
+    /**
+     * @param capacity ring size, must be a power of two and larger than {@link #CHUNK}
+     */
+    public OutputRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1 || capacity <= CHUNK) {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+        }
+
+        buffer = new byte[capacity];
+        mask = capacity - 1;
+        slice = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Read from the channel straight into the ring. Must be called from the writer thread.
+     *
+     * @return the number of bytes read or -1 on end of stream
+     */
+    public int fill(ReadableByteChannel channel) throws IOException {
+        final long end = written;
+        final int pos = (int) (end & mask);
+
+        slice.clear();
+        slice.position(pos);
+        slice.limit(Math.min(pos + CHUNK, buffer.length));
+
+        final int read = channel.read(slice);
+
+        if (read > 0) {
+            written = end + read;
+        }
+
+        return read;
+    }
+
+    /**
+     * @return total number of bytes, ever written to the ring
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @return the position of oldest byte, that can be reliably read
+     */
+    public long getOldest() {
+        return Math.max(0, written - buffer.length + CHUNK);
+    }
+
+    /**
+     * Copy bytes, starting from given absolute position. If some of requested bytes were
+     * already overwritten, the copy starts from the oldest available byte.
+     *
+     * @param from absolute position of first requested byte
+     * @param dst destination array, up to it's length bytes will be copied
+     * @param positions receives absolute position of first copied byte (index 0)
+     *
+     * @return the number of copied bytes
+     */
+    public int read(long from, byte[] dst, long[] positions) {
+        final long end = written;
+
+        long start = Math.max(from, Math.max(0, end - buffer.length + CHUNK));
+
+        if (start >= end) {
+            positions[0] = end;
+            return 0;
+        }
+
+        final int count = (int) Math.min(end - start, dst.length);
+
+        final int ringPos = (int) (start & mask);
+        final int firstPart = Math.min(count, buffer.length - ringPos);
+
+        System.arraycopy(buffer, ringPos, dst, 0, firstPart);
+        System.arraycopy(buffer, 0, dst, firstPart, count - firstPart);
+
+        // the writer may have lapped us while copying; discard whatever it might have touched
+        final long unstable = written - buffer.length + CHUNK;
+
+        if (unstable > start) {
+            final int lost = (int) Math.min(count, unstable - start);
+
+            System.arraycopy(dst, lost, dst, 0, count - lost);
+
+            positions[0] = start + lost;
+            return count - lost;
+        }
+
+        positions[0] = start;
+        return count;
+    }
+}
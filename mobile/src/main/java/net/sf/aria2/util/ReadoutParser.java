@@ -0,0 +1,462 @@
+package net.sf.aria2.util;
+
+import net.sf.aria2.rpc.GlobalStat;
+
+/**
+ * Incremental parser of aria2 console readout, e.g.
+ *
+ * <pre>
+ * [#2089b0 400KiB/33MiB(1%) CN:1 DL:115KiB ETA:4m51s]
+ * [DL:1.2MiB UL:0B][#2089b0 400KiB/33MiB(1%)][#7a3c01 SEED(1.5)](+2)
+ * </pre>
+ *
+ * Bytes can be fed in arbitrary pieces; colors and other escape sequences are skipped. The
+ * parser does not allocate memory after construction: progress of each download is kept in
+ * a fixed pool of records, keyed by (abbreviated) GID. Records of downloads, that disappear from
+ * the readout, eventually become stale and are reused.
+ *
+ * {@link #feed} must be called from single thread, other methods can be called from any thread.
+ */
+public final class ReadoutParser {
+    /**
+     * Progress of single download. Sizes are approximate, because aria2 rounds them for display.
+     */
+    public static final class Progress {
+        /**
+         * GID prefix, shown by aria2 (usually first 6 hex digits)
+         */
+        public long gid;
+
+        public long completedLength;
+        public long totalLength;
+        public int percent;
+        public int connections;
+        public int seeders;
+        public long downloadSpeed;
+        public long uploadSpeed;
+
+        /**
+         * Estimated seconds until completion or -1, if unknown
+         */
+        public long eta;
+
+        public boolean seeding;
+
+        long updated;
+
+        void clear() {
+            gid = 0;
+            completedLength = totalLength = 0;
+            percent = connections = seeders = 0;
+            downloadSpeed = uploadSpeed = 0;
+            eta = -1;
+            seeding = false;
+        }
+
+        void copyFrom(Progress other) {
+            gid = other.gid;
+            completedLength = other.completedLength;
+            totalLength = other.totalLength;
+            percent = other.percent;
+            connections = other.connections;
+            seeders = other.seeders;
+            downloadSpeed = other.downloadSpeed;
+            uploadSpeed = other.uploadSpeed;
+            eta = other.eta;
+            seeding = other.seeding;
+            updated = other.updated;
+        }
+    }
+
+    // aria2 redraws the readout every second, give it some slack
+    private static final long STALE_NS = 10_000_000_000L;
+
+    private static final int POOL_SIZE = 32;
+
+    // longer brackets are not a readout
+    private static final int MAX_BRACKET = 256;
+
+    private static final int STATE_TEXT = 0;
+    private static final int STATE_BRACKET = 1;
+    private static final int STATE_ESCAPE = 2;
+    private static final int STATE_CSI = 3;
+
+    private final Progress[] pool = new Progress[POOL_SIZE];
+
+    // parser state, accessed from feeding thread only
+    private final byte[] bracket = new byte[MAX_BRACKET];
+    private final Progress current = new Progress();
+    private int length;
+    private int state;
+    private int stateBeforeEscape;
+    private int pos;
+
+    // protected by pool
+    private long globalDownloadSpeed;
+    private long globalUploadSpeed;
+    private long globalUpdated;
+
+    public ReadoutParser() {
+        for (int i = 0; i < pool.length; ++i) {
+            pool[i] = new Progress();
+            pool[i].updated = Long.MIN_VALUE;
+        }
+    }
+
+    public void feed(byte[] data, int offset, int count) {
+        for (int i = offset; i < offset + count; ++i) {
+            final byte b = data[i];
+
+            switch (state) {
+                case STATE_ESCAPE:
+                    // two-character sequences are simply dropped
+                    state = b == '[' ? STATE_CSI : stateBeforeEscape;
+                    continue;
+                case STATE_CSI:
+                    if (b >= 0x40 && b <= 0x7e) {
+                        state = stateBeforeEscape;
+                    }
+                    continue;
+            }
+
+            if (b == 0x1b) {
+                stateBeforeEscape = state;
+                state = STATE_ESCAPE;
+                continue;
+            }
+
+            if (state == STATE_BRACKET) {
+                switch (b) {
+                    case ']':
+                        state = STATE_TEXT;
+                        onBracket();
+                        break;
+                    case '[':
+                        length = 0;
+                        break;
+                    case '\r':
+                    case '\n':
+                        state = STATE_TEXT;
+                        break;
+                    default:
+                        if (length == bracket.length) {
+                            state = STATE_TEXT;
+                        } else {
+                            bracket[length++] = b;
+                        }
+                }
+            } else if (b == '[') {
+                state = STATE_BRACKET;
+                length = 0;
+            }
+        }
+    }
+
+    /**
+     * Forget partially parsed input, e.g. because some of it was lost.
+     */
+    public void reset() {
+        state = STATE_TEXT;
+        length = 0;
+    }
+
+    /**
+     * Copy progress of downloads, that were recently seen in the readout.
+     *
+     * @return the number of copied records
+     */
+    public int getProgress(Progress[] dst) {
+        final long now = System.nanoTime();
+
+        int count = 0;
+
+        synchronized (pool) {
+            for (Progress progress : pool) {
+                if (count == dst.length) break;
+
+                if (isFresh(progress.updated, now)) {
+                    dst[count++].copyFrom(progress);
+                }
+            }
+        }
+
+        return count;
+    }
+
+    public boolean hasFreshData() {
+        final long now = System.nanoTime();
+
+        synchronized (pool) {
+            if (isFresh(globalUpdated, now)) {
+                return true;
+            }
+
+            for (Progress progress : pool) {
+                if (isFresh(progress.updated, now)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return aggregate of recent readout, comparable to {@code aria2.getGlobalStat}
+     */
+    public GlobalStat toGlobalStat() {
+        final long now = System.nanoTime();
+
+        long down = 0, up = 0, remaining = 0;
+        int active = 0;
+
+        synchronized (pool) {
+            for (Progress progress : pool) {
+                if (!isFresh(progress.updated, now)) continue;
+
+                active++;
+
+                down += progress.downloadSpeed;
+                up += progress.uploadSpeed;
+
+                if (progress.totalLength > progress.completedLength) {
+                    remaining += progress.totalLength - progress.completedLength;
+                }
+            }
+
+            // compact readout has exact totals, but may omit some downloads
+            if (isFresh(globalUpdated, now)) {
+                down = globalDownloadSpeed;
+                up = globalUploadSpeed;
+            }
+        }
+
+        return new GlobalStat(down, up, active, 0, 0, remaining);
+    }
+
+    private static boolean isFresh(long updated, long now) {
+        return updated != Long.MIN_VALUE && now - updated < STALE_NS;
+    }
+
+    private void onBracket() {
+        if (length > 1 && bracket[0] == '#') {
+            parseDownload();
+        } else if (startsWith(0, "DL:")) {
+            parseGlobal();
+        }
+    }
+
+    private void parseGlobal() {
+        long down = 0, up = 0;
+
+        pos = 0;
+
+        while (nextToken()) {
+            if (startsWith(pos, "DL:")) {
+                pos += 3;
+                down = parseSize();
+            } else if (startsWith(pos, "UL:")) {
+                pos += 3;
+                up = parseSize();
+            }
+
+            skipToken();
+        }
+
+        synchronized (pool) {
+            globalDownloadSpeed = down;
+            globalUploadSpeed = up;
+            globalUpdated = System.nanoTime();
+        }
+    }
+
+    private void parseDownload() {
+        final Progress p = current;
+
+        p.clear();
+
+        pos = 1;
+
+        int digits = 0;
+
+        while (pos < length && bracket[pos] != ' ') {
+            final int digit = Character.digit(bracket[pos++], 16);
+
+            if (digit == -1 || ++digits > 15) {
+                return;
+            }
+
+            p.gid = p.gid << 4 | digit;
+        }
+
+        if (digits == 0) return;
+
+        while (nextToken()) {
+            final byte first = bracket[pos];
+
+            if (first >= '0' && first <= '9') {
+                p.completedLength = parseSize();
+
+                if (pos < length && bracket[pos] == '/') {
+                    pos++;
+                    p.totalLength = parseSize();
+                }
+
+                if (pos < length && bracket[pos] == '(') {
+                    pos++;
+                    p.percent = (int) parseInt();
+                }
+            } else if (startsWith(pos, "CN:")) {
+                pos += 3;
+                p.connections = (int) parseInt();
+            } else if (startsWith(pos, "SD:")) {
+                pos += 3;
+                p.seeders = (int) parseInt();
+            } else if (startsWith(pos, "DL:")) {
+                pos += 3;
+                p.downloadSpeed = parseSize();
+            } else if (startsWith(pos, "UL:")) {
+                pos += 3;
+                p.uploadSpeed = parseSize();
+            } else if (startsWith(pos, "ETA:")) {
+                pos += 4;
+                p.eta = parseDuration();
+            } else if (startsWith(pos, "SEED(")) {
+                p.seeding = true;
+            }
+
+            skipToken();
+        }
+
+        commit(p);
+    }
+
+    private void commit(Progress parsed) {
+        final long now = System.nanoTime();
+
+        synchronized (pool) {
+            Progress target = null;
+
+            for (Progress candidate : pool) {
+                if (candidate.updated != Long.MIN_VALUE && candidate.gid == parsed.gid) {
+                    target = candidate;
+                    break;
+                }
+
+                // prefer empty slots, then the least recently updated one
+                if (target == null || target.updated != Long.MIN_VALUE
+                        && (candidate.updated == Long.MIN_VALUE || candidate.updated - target.updated < 0)) {
+                    target = candidate;
+                }
+            }
+
+            //noinspection ConstantConditions
+            target.copyFrom(parsed);
+            target.updated = now;
+        }
+    }
+
+    private boolean nextToken() {
+        while (pos < length && bracket[pos] == ' ') {
+            pos++;
+        }
+
+        return pos < length;
+    }
+
+    private void skipToken() {
+        while (pos < length && bracket[pos] != ' ') {
+            pos++;
+        }
+    }
+
+    private boolean startsWith(int from, String prefix) {
+        if (length - from < prefix.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length(); ++i) {
+            if (bracket[from + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private long parseInt() {
+        long value = 0;
+
+        while (pos < length) {
+            final byte b = bracket[pos];
+
+            if (b < '0' || b > '9') break;
+
+            value = value * 10 + (b - '0');
+            pos++;
+        }
+
+        return value;
+    }
+
+    // "400KiB", "1.2MiB", "0B"
+    private long parseSize() {
+        long tenths = parseInt() * 10;
+
+        if (pos < length && bracket[pos] == '.') {
+            pos++;
+
+            final int start = pos;
+
+            final long fraction = parseInt();
+
+            if (pos > start) {
+                // only the first digit matters at this precision
+                long divisor = 1;
+                for (int i = start + 1; i < pos; ++i) {
+                    divisor *= 10;
+                }
+                tenths += fraction / divisor;
+            }
+        }
+
+        long unit = 1;
+
+        if (pos < length) {
+            switch (bracket[pos]) {
+                case 'K': unit = 1L << 10; pos++; break;
+                case 'M': unit = 1L << 20; pos++; break;
+                case 'G': unit = 1L << 30; pos++; break;
+                case 'T': unit = 1L << 40; pos++; break;
+            }
+        }
+
+        if (pos < length && bracket[pos] == 'i') pos++;
+        if (pos < length && bracket[pos] == 'B') pos++;
+
+        return tenths * unit / 10;
+    }
+
+    // "1h2m3s", "4m51s", "5s"
+    private long parseDuration() {
+        long seconds = 0;
+
+        while (pos < length) {
+            final int start = pos;
+
+            final long value = parseInt();
+
+            if (pos == start || pos == length) break;
+
+            switch (bracket[pos++]) {
+                case 'd': seconds += value * 86400; break;
+                case 'h': seconds += value * 3600; break;
+                case 'm': seconds += value * 60; break;
+                case 's': seconds += value; break;
+                default: return seconds;
+            }
+        }
+
+        return seconds;
+    }
+}
@@ -1,234 +1,387 @@
 package net.sf.aria2.util;
 
-import android.annotation.TargetApi;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
-import android.os.Build;
-import android.system.ErrnoException;
-import android.system.Os;
-import android.system.OsConstants;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
- * A simple asset extraction routine with versions for pre- and post-Lollipop IO APIs.
+ * Incremental asset extraction routine. The build lists every asset with it's size and SHA-1
+ * hash in a manifest (see webui-manifest.gradle); a copy of the manifest is kept alongside the
+ * extracted files, so that only the files, that changed since previous extraction, are copied
+ * and the ones, that are no longer shipped, are removed.
+ *
+ * Files are written to temporary files and renamed, so an interrupted extraction leaves nothing
+ * half-written behind.
  */
 public final class WebUiExtractor {
     public static final String ASSET_DIR = "webui-aria2";
     public static final String DIR_NAME = ".aria2-webui";
-    public static final String VER_FILE = "version";
+
+    // a copy of manifest, describing extracted files
+    static final String INSTALLED_MANIFEST = ".manifest";
+
+    public static final String MANIFEST_SUFFIX = ".manifest";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final Thread theThread = Thread.currentThread();
+
+    private final byte[] buffer = new byte[64 * 1024];
 
     private final AssetManager assetManager;
     private final String assetDir;
     private final File baseTargetDir;
 
+    private Map<String, Entry> manifest;
+
     public WebUiExtractor(AssetManager assetManager, String assetDir, File baseTargetDir) {
         this.assetManager = assetManager;
         this.assetDir = assetDir;
         this.baseTargetDir = baseTargetDir;
     }
 
-    public void copyToTarget() throws IOException {
-        if (Build.VERSION.SDK_INT >= 21) {
-            new LollipopExtractor(assetManager, assetDir, baseTargetDir)
-                    .copyDir();
-        } else {
-            new CompatExtractor(assetManager, assetDir, baseTargetDir)
-                    .copyDir();
+    /**
+     * Quick check, that does not read any extracted file: the manifests match and every file
+     * is in place and has the right size
+     */
+    public boolean isUpToDate() throws IOException {
+        final Map<String, Entry> installed = readInstalled();
+
+        if (!getManifest().equals(installed)) {
+            return false;
         }
+
+        for (Map.Entry<String, Entry> asset : installed.entrySet()) {
+            if (new File(baseTargetDir, asset.getKey()).length() != asset.getValue().size) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    private static class CompatExtractor {
-        private final AppendableStringBuilder assetNameBuilder = new AppendableStringBuilder(50);
+    /**
+     * @return the number of copied files
+     */
+    public int copyToTarget() throws IOException {
+        final Map<String, Entry> assets = getManifest();
+        final Map<String, Entry> installed = readInstalled();
 
-        private final Thread theThread = Thread.currentThread();
+        if (!baseTargetDir.exists() && !baseTargetDir.mkdirs() && !baseTargetDir.exists()) {
+            throw new IOException("Failed to create directory " + baseTargetDir);
+        }
 
-        private final byte[] buffer = new byte[8192];
+        // forget the old state first: it won't be true after the partial extraction
+        final File installedFile = new File(baseTargetDir, INSTALLED_MANIFEST);
+        if (installedFile.exists() && !installedFile.delete()) {
+            throw new IOException("Failed to remove " + installedFile);
+        }
+
+        int copied = 0;
 
-        private final AppendableStringBuilder targetFileNameBuilder;
+        for (Map.Entry<String, Entry> asset : assets.entrySet()) {
+            checkInterrupted();
 
-        private final AssetManager assetManager;
+            final String path = asset.getKey();
+            final Entry entry = asset.getValue();
+            final File target = new File(baseTargetDir, path);
 
-        public CompatExtractor(AssetManager assetManager, String assetDir, File baseTargetDir) throws IOException {
-            if (baseTargetDir.exists()) {
-                deleteRecursive(baseTargetDir.listFiles());
-                baseTargetDir.delete();
+            if (target.length() == entry.size) {
+                // trust the previous extraction, otherwise check the contents (e.g. the
+                // files, extracted by old versions without manifest)
+                if (entry.equals(installed.get(path)) || entry.hash.equals(hash(target))) {
+                    continue;
+                }
             }
 
-            this.assetManager = assetManager;
+            copyFile(path, entry, target);
 
-            assetNameBuilder.append(assetDir);
+            ++copied;
+        }
 
-            targetFileNameBuilder = new AppendableStringBuilder(assetNameBuilder.capacity()
-                    + baseTargetDir.getPath().length());
+        removeStale(baseTargetDir, "", assets.keySet());
 
-            targetFileNameBuilder.append(baseTargetDir.getPath());
-        }
+        writeInstalled(installedFile, assets);
 
-        private void deleteRecursive(File... files) throws IOException {
-            for (File child : files) {
-                if (child.isDirectory())
-                    deleteRecursive(child.listFiles());
+        return copied;
+    }
 
-                if (!child.delete()) {
-                    throw new IOException("Failed to remove " + child);
-                }
+    private void checkInterrupted() throws IOException {
+        if (theThread.isInterrupted()) {
+            throw new IOException("Extraction cancelled");
+        }
+    }
+
+    private Map<String, Entry> getManifest() throws IOException {
+        if (manifest == null) {
+            try (InputStream in = assetManager.open(assetDir + MANIFEST_SUFFIX, AssetManager.ACCESS_STREAMING)) {
+                manifest = readManifest(in);
             }
         }
 
-        private void copyDir() throws IOException {
-            targetFileNameBuilder.append('/');
-            
-            copyDir(assetManager.list(assetNameBuilder.toString()));
+        return manifest;
+    }
+
+    private Map<String, Entry> readInstalled() {
+        try (InputStream in = new FileInputStream(new File(baseTargetDir, INSTALLED_MANIFEST))) {
+            return readManifest(in);
+        } catch (IOException e) {
+            return new LinkedHashMap<>();
         }
+    }
+
+    /**
+     * Lines of manifest: {@code <sha1 hex> <size> <path relative to asset dir>}
+     */
+    public static Map<String, Entry> readManifest(InputStream in) throws IOException {
+        final Map<String, Entry> entries = new LinkedHashMap<>();
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
 
-        private void copyDir(String[] assetList) throws IOException {
-            final String dirNameStr = targetFileNameBuilder.toString();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) continue;
 
-            final File dir = new File(dirNameStr);
-            if (!dir.exists() && !dir.mkdir() && !dir.exists()) {
-                throw new IOException("Failed to create directory " + dir);
+            final String[] fields = line.split(" ", 3);
+
+            if (fields.length != 3 || fields[2].contains("..")) {
+                throw new IOException("Malformed manifest line: " + line);
             }
 
-            final int assetBaseNameLength = assetNameBuilder.length();
+            try {
+                entries.put(fields[2], new Entry(fields[0], Long.parseLong(fields[1])));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed manifest line: " + line);
+            }
+        }
 
-            for (String asset : assetList) {
-                if (theThread.isInterrupted()) {
-                    throw new IOException("Extraction cancelled");
-                }
+        return entries;
+    }
+
+    private static void writeInstalled(File file, Map<String, Entry> entries) throws IOException {
+        final File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8")) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writer.append(entry.getValue().hash).append(' ')
+                        .append(String.valueOf(entry.getValue().size)).append(' ')
+                        .append(entry.getKey()).append('\n');
+            }
+        }
 
-                assetNameBuilder.setLength(assetBaseNameLength);
-                assetNameBuilder.append('/');
-                assetNameBuilder.append(asset);
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Failed to rename " + tmpFile);
+        }
+    }
 
-                targetFileNameBuilder.setLength(dirNameStr.length());
-                targetFileNameBuilder.append(asset);
+    private void copyFile(String path, Entry entry, File target) throws IOException {
+        final File dir = target.getParentFile();
 
-                String assets[] = assetManager.list(assetNameBuilder.toString());
-                if (assets.length == 0) {
-                    copyFile();
-                } else {
-                    targetFileNameBuilder.append('/');
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            throw new IOException("Failed to create directory " + dir);
+        }
 
-                    copyDir(assets);
-                }
+        final File tmpFile = new File(target.getPath() + TMP_SUFFIX);
+
+        final String assetName = assetDir + '/' + path;
+
+        try {
+            if (!transferFile(assetName, entry, tmpFile)) {
+                streamFile(assetName, entry, tmpFile);
             }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            throw e;
+        }
+
+        if (!tmpFile.renameTo(target)) {
+            throw new IOException("Failed to rename " + tmpFile);
+        }
+    }
+
+    /**
+     * Uncompressed assets (images, fonts) can be copied from the APK in kernel, without
+     * passing the contents through Java heap. The APK signature already guarantees their
+     * integrity, so only the size is checked.
+     *
+     * @return false, if the asset is compressed
+     */
+    private boolean transferFile(String assetName, Entry entry, File target) throws IOException {
+        final AssetFileDescriptor afd;
+        try {
+            afd = assetManager.openFd(assetName);
+        } catch (FileNotFoundException e) {
+            return false;
         }
 
-        private void copyFile() throws IOException {
-            try (InputStream in = assetManager.open(assetNameBuilder.toString(), AssetManager.ACCESS_BUFFER);
-                 OutputStream out = new FileOutputStream(targetFileNameBuilder.toString()))
-            {
-                int read;
-                while ((read = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, read);
+        try (FileInputStream in = afd.createInputStream();
+             FileChannel out = new FileOutputStream(target).getChannel())
+        {
+            final FileChannel inChannel = in.getChannel();
+
+            final long length = afd.getLength();
+            final long start = afd.getStartOffset();
+
+            long position = 0;
+            while (position < length) {
+                checkInterrupted();
+
+                final long transferred = inChannel.transferTo(start + position, length - position, out);
+
+                if (transferred <= 0) {
+                    break;
                 }
+
+                position += transferred;
             }
+
+            if (position != entry.size) {
+                throw new IOException("Size mismatch of " + assetName + ": " + position + " instead of " + entry.size);
+            }
+        } finally {
+            afd.close();
         }
-    }
 
-    @TargetApi(21)
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    private static class LollipopExtractor {
-        private final AppendableStringBuilder assetNameBuilder = new AppendableStringBuilder(50);
+        return true;
+    }
 
-        private final Thread theThread = Thread.currentThread();
+    private void streamFile(String assetName, Entry entry, File target) throws IOException {
+        final MessageDigest digest = newDigest();
 
-        private final byte[] buffer = new byte[8192];
+        long size = 0;
 
-        private final AppendableStringBuilder directoryNameBuilder;
+        try (InputStream in = assetManager.open(assetName, AssetManager.ACCESS_STREAMING);
+             OutputStream out = new FileOutputStream(target))
+        {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                checkInterrupted();
 
-        private final AssetManager assetManager;
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
 
-        public LollipopExtractor(AssetManager assetManager, String assetDir, File baseTargetDir) throws IOException {
-            if (baseTargetDir.exists()) {
-                deleteRecursive(baseTargetDir.listFiles());
-                baseTargetDir.delete();
+                size += read;
             }
+        }
 
-            this.assetManager = assetManager;
+        final String hash = toHex(digest.digest());
 
-            assetNameBuilder.append(assetDir);
+        if (size != entry.size || !hash.equals(entry.hash)) {
+            throw new IOException("Corrupted asset " + assetName);
+        }
+    }
 
-            directoryNameBuilder = new AppendableStringBuilder(assetNameBuilder.capacity()
-                    + baseTargetDir.getPath().length());
+    private String hash(File file) throws IOException {
+        final MessageDigest digest = newDigest();
 
-            directoryNameBuilder.append(baseTargetDir.getPath());
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
         }
 
-        private void deleteRecursive(File... files) throws IOException {
-            for (File child : files) {
-                if (child.isDirectory())
-                    deleteRecursive(child.listFiles());
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Remove files and directories, that are not listed in manifest
+     *
+     * @return true, if the directory is empty
+     */
+    private boolean removeStale(File dir, String prefix, Set<String> keep) throws IOException {
+        final File[] children = dir.listFiles();
 
-                if (!child.delete()) {
-                    throw new IOException("Failed to remove " + child);
+        if (children == null) {
+            return true;
+        }
+
+        boolean empty = true;
+
+        for (File child : children) {
+            final String path = prefix + child.getName();
+
+            if (prefix.isEmpty() && INSTALLED_MANIFEST.equals(path)) {
+                empty = false;
+                continue;
+            }
+
+            if (child.isDirectory()) {
+                if (!removeStale(child, path + '/', keep)) {
+                    empty = false;
+                    continue;
                 }
+            } else if (keep.contains(path)) {
+                empty = false;
+                continue;
+            }
+
+            if (!child.delete()) {
+                throw new IOException("Failed to remove " + child);
             }
         }
 
-        private void copyDir() throws IOException {
-            try {
-                directoryNameBuilder.append('/');
+        return empty;
+    }
 
-                copyDir(assetManager.list(assetNameBuilder.toString()));
-            } catch (ErrnoException e) {
-                throw new IOException(e);
-            }
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
         }
+    }
 
-        private void copyDir(String[] assetList) throws IOException, ErrnoException {
-            final int dirNameLength = directoryNameBuilder.length();
+    private static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
 
-            Os.mkdir(directoryNameBuilder.toString(), OsConstants.S_IRWXU);
+        for (int i = 0; i < bytes.length; ++i) {
+            chars[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            chars[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
 
-            final int assetBaseNameLength = assetNameBuilder.length();
+        return new String(chars);
+    }
 
-            for (String asset : assetList) {
-                if (theThread.isInterrupted()) {
-                    throw new IOException("Extraction cancelled");
-                }
+    public static final class Entry {
+        public final String hash;
+        public final long size;
 
-                assetNameBuilder.setLength(assetBaseNameLength);
-                assetNameBuilder.append('/');
-                assetNameBuilder.append(asset);
+        Entry(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
 
-                directoryNameBuilder.setLength(dirNameLength);
-                directoryNameBuilder.append(asset);
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Entry)) return false;
 
-                String assets[] = assetManager.list(assetNameBuilder.toString());
-                if (assets.length == 0) {
-                    copyFile();
-                } else {
-                    directoryNameBuilder.append('/');
+            final Entry other = (Entry) o;
 
-                    copyDir(assets);
-                }
-            }
+            return size == other.size && hash.equals(other.hash);
         }
 
-        private void copyFile() throws IOException, ErrnoException {
-            try (InputStream in = assetManager.open(assetNameBuilder.toString(), AssetManager.ACCESS_BUFFER))
-            {
-                final FileDescriptor fd = Os.open(
-                        directoryNameBuilder.toString(),
-                        OsConstants.O_CREAT | OsConstants.O_TRUNC | OsConstants.O_WRONLY,
-                        OsConstants.S_IROTH | OsConstants.S_IWUSR);
-
-                try (OutputStream out = new FileOutputStream(fd)) {
-                    int read;
-                    while ((read = in.read(buffer)) != -1) {
-                        out.write(buffer, 0, read);
-                    }
-                } finally {
-                    Os.close(fd);
-                }
-            }
+        @Override
+        public int hashCode() {
+            return hash.hashCode();
         }
     }
 }
@@ -0,0 +1,59 @@
+// Injected by WebViewHolder: sends the calls of WebUI through RpcBridge instead of XHR/WebSocket
+(function() {
+  if (window.aria2bridge || !window.aria2native || !window.angular) return;
+
+  var injector = angular.element(document.body).injector();
+  if (!injector) return;
+
+  var syscall = injector.get('$syscall');
+  var init = syscall.init, invoke = syscall.invoke;
+
+  var pending = {}, lastId = 0, port = -1;
+
+  window.aria2bridge = {
+    done: function(id, response) {
+      var opts = pending[id];
+      delete pending[id];
+
+      if (!opts) return;
+
+      if (response) {
+        opts.success(response);
+      } else {
+        opts.error();
+      }
+    }
+  };
+
+  syscall.init = function(conf) {
+    port = -1;
+
+    if (conf && !conf.encrypt && (conf.path || '/jsonrpc') == '/jsonrpc'
+        && /^(localhost|127\.0\.0\.1)$/.test(conf.host)) {
+      port = +conf.port;
+      this.state = 'ready';
+      return;
+    }
+
+    return init.apply(this, arguments);
+  };
+
+  syscall.invoke = function(opts) {
+    if (port < 0) return invoke.apply(this, arguments);
+
+    var id = ++lastId;
+
+    pending[id] = {
+      success: opts.success || angular.noop,
+      error: opts.error || angular.noop
+    };
+
+    aria2native.call(id, port, opts.name, JSON.stringify(opts.params || []));
+  };
+
+  // the page may have connected already
+  var conf = injector.get('$jsoncall').serverConf;
+  if (conf) {
+    syscall.init(conf);
+  }
+})();
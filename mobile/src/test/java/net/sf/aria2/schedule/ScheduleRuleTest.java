@@ -0,0 +1,167 @@
+package net.sf.aria2.schedule;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScheduleRuleTest {
+    @Test
+    public void parsesConditionsAndActions() {
+        final ScheduleRule rule = ScheduleRule.parse("Unmetered CHARGING: limit 200K 1.5MiB/s");
+
+        assertEquals(ScheduleRule.ACTION_LIMIT, rule.action);
+        assertEquals(200 * 1024, rule.downloadLimit);
+        assertEquals(3 * 512 * 1024, rule.uploadLimit);
+
+        assertTrue(rule.matches(state(false, false, true, 0)));
+        assertFalse(rule.matches(state(true, false, true, 0)));
+        assertFalse(rule.matches(state(false, false, false, 0)));
+
+        assertEquals(ScheduleRule.ACTION_PAUSE, ScheduleRule.parse("roaming: pause").action);
+        assertEquals(ScheduleRule.ACTION_RUN, ScheduleRule.parse("*: run").action);
+        assertEquals(0, ScheduleRule.parse("metered: limit 1M").uploadLimit);
+    }
+
+    @Test
+    public void matchesTimeWindow() {
+        final ScheduleRule rule = ScheduleRule.parse("7:30-09:00: run");
+
+        assertFalse(rule.matches(state(false, false, false, 7 * 60 + 29)));
+        assertTrue(rule.matches(state(false, false, false, 7 * 60 + 30)));
+        assertTrue(rule.matches(state(false, false, false, 8 * 60 + 59)));
+        assertFalse(rule.matches(state(false, false, false, 9 * 60)));
+    }
+
+    @Test
+    public void matchesWindowSpanningMidnight() {
+        final ScheduleRule rule = ScheduleRule.parse("battery 23:00-2:00: pause");
+
+        assertTrue(rule.matches(state(false, false, false, 23 * 60)));
+        assertTrue(rule.matches(state(false, false, false, 0)));
+        assertTrue(rule.matches(state(false, false, false, 60 + 59)));
+        assertFalse(rule.matches(state(false, false, false, 2 * 60)));
+        assertFalse(rule.matches(state(false, false, false, 12 * 60)));
+        assertFalse(rule.matches(state(false, false, true, 23 * 60 + 30)));
+    }
+
+    @Test
+    public void windowEndingAt24MeansMidnight() {
+        final ScheduleRule rule = ScheduleRule.parse("22:00-24:00: run");
+
+        assertTrue(rule.matches(state(false, false, false, 23 * 60 + 59)));
+        assertFalse(rule.matches(state(false, false, false, 0)));
+    }
+
+    @Test
+    public void firstMatchingRuleWins() {
+        final List<ScheduleRule> rules = ScheduleRule.parseAll(
+                "# comment\n" +
+                "\n" +
+                "roaming: pause\n" +
+                "  metered: limit 100K  \n" +
+                "*: run\n");
+
+        assertEquals(3, rules.size());
+        assertSame(rules.get(0), ScheduleRule.select(rules, state(true, true, false, 0)));
+        assertSame(rules.get(1), ScheduleRule.select(rules, state(true, false, false, 0)));
+        assertSame(rules.get(2), ScheduleRule.select(rules, state(false, false, false, 0)));
+    }
+
+    @Test
+    public void defaultsToRunning() {
+        assertSame(ScheduleRule.DEFAULT, ScheduleRule.select(Collections.<ScheduleRule>emptyList(), state(true, true, false, 0)));
+        assertSame(ScheduleRule.DEFAULT, ScheduleRule.select(ScheduleRule.parseAll("roaming: pause"), state(true, false, false, 0)));
+
+        assertTrue(ScheduleRule.parseAll(null).isEmpty());
+        assertTrue(ScheduleRule.parseAll("  \n# nothing\n").isEmpty());
+    }
+
+    @Test
+    public void rejectsMalformedRules() {
+        assertRejected("metered pause");
+        assertRejected("sometimes: run");
+        assertRejected("metered: stop");
+        assertRejected("metered: limit");
+        assertRejected("metered: limit 1K 2K 3K");
+        assertRejected("metered: limit fast");
+        assertRejected("metered: limit -1K");
+        assertRejected("25:00-26:00: run");
+        assertRejected("7:60-8:00: run");
+        assertRejected("1:00-2:00 3:00-4:00: run");
+        assertRejected("a-b: run");
+    }
+
+    @Test
+    public void parsesRates() {
+        assertEquals(0, ScheduleRule.parseRate("0"));
+        assertEquals(500, ScheduleRule.parseRate("500"));
+        assertEquals(200 * 1024, ScheduleRule.parseRate("200k"));
+        assertEquals(200 * 1024, ScheduleRule.parseRate("200KiB"));
+        assertEquals(3 * 512 * 1024, ScheduleRule.parseRate("1.5M"));
+        assertEquals(1024L * 1024 * 1024, ScheduleRule.parseRate("1GB/s"));
+    }
+
+    @Test
+    public void findsNextBoundaryAcrossMidnight() {
+        final List<ScheduleRule> rules = Arrays.asList(
+                ScheduleRule.parse("23:00-01:30: run"),
+                ScheduleRule.parse("metered: pause"));
+
+        // 22:59:30 -> 23:00
+        assertEquals(30000, ScheduleRule.untilNextBoundary(rules, time(22, 59, 30)));
+
+        // 23:10:00 -> 01:30
+        assertEquals((2 * 60 + 20) * 60000L, ScheduleRule.untilNextBoundary(rules, time(23, 10, 0)));
+
+        // exactly at the boundary, the next one is a day away
+        assertEquals((21 * 60 + 30) * 60000L, ScheduleRule.untilNextBoundary(rules, time(1, 30, 0)));
+
+        assertEquals(-1, ScheduleRule.untilNextBoundary(ScheduleRule.parseAll("metered: pause"), time(12, 0, 0)));
+    }
+
+    @Test
+    public void findsNextRunWindow() {
+        final List<ScheduleRule> rules = ScheduleRule.parseAll(
+                "8:00-18:00: pause\n" +
+                "1:00-6:00: limit 1M\n");
+
+        assertFalse(rules.get(0).isRunWindow());
+        assertTrue(rules.get(1).isRunWindow());
+
+        // 23:00 -> 01:00, the pause window is not a reason to start
+        assertEquals(2 * 60 * 60000L, ScheduleRule.untilNextRunWindow(rules, time(23, 0, 0)));
+
+        assertEquals(-1, ScheduleRule.untilNextRunWindow(rules.subList(0, 1), time(23, 0, 0)));
+    }
+
+    private static void assertRejected(String line) {
+        try {
+            ScheduleRule.parse(line);
+
+            fail("Accepted \"" + line + '"');
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static ScheduleRule.State state(boolean metered, boolean roaming, boolean charging, int minuteOfDay) {
+        return new ScheduleRule.State(metered, roaming, charging, minuteOfDay);
+    }
+
+    private static Calendar time(int hour, int minute, int second) {
+        final Calendar calendar = Calendar.getInstance();
+
+        calendar.set(2020, Calendar.JANUARY, 15, hour, minute, second);
+        calendar.set(Calendar.MILLISECOND, 0);
+
+        return calendar;
+    }
+}
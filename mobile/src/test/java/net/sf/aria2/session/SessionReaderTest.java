@@ -0,0 +1,148 @@
+package net.sf.aria2.session;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SessionReaderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String SESSION =
+            "http://example.com/file.iso\thttp://mirror.example.com/file.iso\n" +
+            " gid=2089b05ecca3d829\n" +
+            " dir=/sdcard/Download\n" +
+            " out=renamed.iso\n" +
+            "magnet:?xt=urn:btih:0123456789abcdef\n" +
+            " gid=00000000000000ff\n" +
+            " pause=true\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsPlainSession() throws IOException {
+        checkSession(SessionReader.read(write("plain", SESSION.getBytes(UTF_8))));
+    }
+
+    @Test
+    public void readsGzippedSession() throws IOException {
+        checkSession(SessionReader.read(write(SessionReader.DEFAULT_FILE_NAME, gzip(SESSION))));
+    }
+
+    @Test
+    public void missingFileIsEmpty() throws IOException {
+        final SessionIndex index = SessionReader.read(new File(folder.getRoot(), "missing"));
+
+        assertSame(SessionIndex.EMPTY, index);
+        assertFalse(index.hasPending());
+    }
+
+    @Test
+    public void emptyFileIsEmpty() throws IOException {
+        assertEquals(0, SessionReader.read(write("empty", new byte[0])).size());
+    }
+
+    @Test
+    public void handlesCrLfCommentsAndMissingTrailingNewline() throws IOException {
+        final SessionIndex index = read("# saved by aria2\r\n" +
+                "\r\n" +
+                "http://example.com/a\r\n" +
+                "\tpause=true\r\n" +
+                "http://example.com/b");
+
+        assertEquals(2, index.size());
+        assertEquals("http://example.com/a", index.getEntries().get(0).uris[0]);
+        assertTrue(index.getEntries().get(0).paused);
+        assertEquals("http://example.com/b", index.getEntries().get(1).uris[0]);
+        assertEquals(1, index.getPendingCount());
+    }
+
+    @Test
+    public void ignoresOptionsBeforeFirstEntry() throws IOException {
+        final SessionIndex index = read(" pause=true\nhttp://example.com/a\n");
+
+        assertEquals(1, index.size());
+        assertFalse(index.getEntries().get(0).paused);
+    }
+
+    @Test
+    public void malformedGidIsZero() throws IOException {
+        final SessionIndex.Entry entry = read("http://example.com/a\n gid=not-a-gid\n").getEntries().get(0);
+
+        assertEquals(0, entry.gid);
+        assertNull(entry.getGidString());
+    }
+
+    @Test
+    public void truncatesOverlongLines() throws IOException {
+        final StringBuilder uri = new StringBuilder("http://example.com/");
+        while (uri.length() < 100 * 1024) {
+            uri.append('x');
+        }
+
+        final SessionIndex index = read(uri + "\n pause=true\n");
+
+        assertEquals(1, index.size());
+        assertEquals(64 * 1024, index.getEntries().get(0).uris[0].length());
+        assertTrue(index.getEntries().get(0).paused);
+    }
+
+    private static void checkSession(SessionIndex index) {
+        assertEquals(2, index.size());
+        assertEquals(1, index.getPausedCount());
+        assertEquals(1, index.getPendingCount());
+
+        final SessionIndex.Entry first = index.getEntries().get(0);
+        assertArrayEquals(new String[] { "http://example.com/file.iso", "http://mirror.example.com/file.iso" }, first.uris);
+        assertEquals(0x2089b05ecca3d829L, first.gid);
+        assertEquals("2089b05ecca3d829", first.getGidString());
+        assertEquals("/sdcard/Download", first.dir);
+        assertEquals("renamed.iso", first.out);
+        assertFalse(first.paused);
+
+        final SessionIndex.Entry second = index.getEntries().get(1);
+        assertEquals("00000000000000ff", second.getGidString());
+        assertNull(second.dir);
+        assertTrue(second.paused);
+    }
+
+    private static SessionIndex read(String text) throws IOException {
+        return SessionReader.read(new ByteArrayInputStream(text.getBytes(UTF_8)));
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        final File file = folder.newFile(name);
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+
+        return file;
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(text.getBytes(UTF_8));
+        }
+
+        return bytes.toByteArray();
+    }
+}
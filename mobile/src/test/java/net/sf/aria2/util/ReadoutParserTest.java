@@ -0,0 +1,166 @@
+package net.sf.aria2.util;
+
+import net.sf.aria2.rpc.GlobalStat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReadoutParserTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ReadoutParser parser;
+    private ReadoutParser.Progress[] progress;
+
+    @Before
+    public void setUp() {
+        parser = new ReadoutParser();
+
+        progress = new ReadoutParser.Progress[4];
+        for (int i = 0; i < progress.length; ++i) {
+            progress[i] = new ReadoutParser.Progress();
+        }
+    }
+
+    @Test
+    public void parsesFullReadout() {
+        feed("[#2089b0 400KiB/33MiB(1%) CN:1 DL:115KiB ETA:4m51s]\n");
+
+        assertEquals(1, parser.getProgress(progress));
+
+        final ReadoutParser.Progress p = progress[0];
+        assertEquals(0x2089b0, p.gid);
+        assertEquals(400 * 1024, p.completedLength);
+        assertEquals(33 * 1024 * 1024, p.totalLength);
+        assertEquals(1, p.percent);
+        assertEquals(1, p.connections);
+        assertEquals(115 * 1024, p.downloadSpeed);
+        assertEquals(4 * 60 + 51, p.eta);
+        assertFalse(p.seeding);
+    }
+
+    @Test
+    public void parsesInputFedByteByByte() {
+        final byte[] data = "[#2089b0 1.5MiB/2GiB(0%) CN:4 SD:2 DL:1.2MiB UL:3KiB ETA:1h2m3s]\n".getBytes(UTF_8);
+
+        for (int i = 0; i < data.length; ++i) {
+            parser.feed(data, i, 1);
+        }
+
+        assertEquals(1, parser.getProgress(progress));
+
+        final ReadoutParser.Progress p = progress[0];
+        assertEquals(15 * 1024 * 1024 / 10, p.completedLength);
+        assertEquals(2L * 1024 * 1024 * 1024, p.totalLength);
+        assertEquals(4, p.connections);
+        assertEquals(2, p.seeders);
+        assertEquals(12 * 1024 * 1024 / 10, p.downloadSpeed);
+        assertEquals(3 * 1024, p.uploadSpeed);
+        assertEquals(3600 + 2 * 60 + 3, p.eta);
+    }
+
+    @Test
+    public void waitsForTheRestOfPartialLine() {
+        feed("[#2089b0 400KiB/33MiB(1%) CN:1");
+
+        assertEquals(0, parser.getProgress(progress));
+        assertFalse(parser.hasFreshData());
+
+        feed(" DL:115KiB]");
+
+        assertEquals(1, parser.getProgress(progress));
+        assertEquals(115 * 1024, progress[0].downloadSpeed);
+    }
+
+    @Test
+    public void dropsBracketInterruptedByNewline() {
+        feed("[#2089b0 400KiB/33MiB(1%)\n CN:1]\n");
+
+        assertEquals(0, parser.getProgress(progress));
+    }
+
+    @Test
+    public void resetDropsPartialInput() {
+        feed("[#2089b0 400KiB/33MiB(1%)");
+
+        parser.reset();
+
+        feed(" CN:1]\n");
+
+        assertEquals(0, parser.getProgress(progress));
+    }
+
+    @Test
+    public void skipsEscapeSequences() {
+        feed("\u001b[1;32m[#2089b0 \u001b[0m400KiB/33MiB(1%) \u001b[1mDL:\u001b[0m2KiB]\u001b[0K\r");
+
+        assertEquals(1, parser.getProgress(progress));
+        assertEquals(400 * 1024, progress[0].completedLength);
+        assertEquals(2 * 1024, progress[0].downloadSpeed);
+    }
+
+    @Test
+    public void ignoresTextOutsideReadout() {
+        feed("[NOTICE] Downloading 1 item(s)\n[#zz] [#] [DL]\n");
+
+        assertEquals(0, parser.getProgress(progress));
+        assertFalse(parser.hasFreshData());
+    }
+
+    @Test
+    public void parsesCompactReadout() {
+        feed("[DL:1.2MiB UL:10KiB][#2089b0 400KiB/33MiB(1%)][#7a3c01 SEED(1.5)](+2)\r");
+
+        assertEquals(2, parser.getProgress(progress));
+
+        final ReadoutParser.Progress seeding = progress[0].gid == 0x7a3c01 ? progress[0] : progress[1];
+        assertTrue(seeding.seeding);
+
+        // compact readout has exact totals, though it omits per-download speeds
+        final GlobalStat stat = parser.toGlobalStat();
+        assertEquals(12 * 1024 * 1024 / 10, stat.downloadSpeed);
+        assertEquals(10 * 1024, stat.uploadSpeed);
+        assertEquals(2, stat.numActive);
+        assertEquals(33 * 1024 * 1024 - 400 * 1024, stat.remainingLength);
+    }
+
+    @Test
+    public void updatesRecordOfSameDownload() {
+        feed("[#2089b0 400KiB/33MiB(1%) DL:1KiB]\n");
+        feed("[#2089b0 800KiB/33MiB(2%) DL:2KiB]\n");
+
+        assertEquals(1, parser.getProgress(progress));
+        assertEquals(800 * 1024, progress[0].completedLength);
+        assertEquals(2, progress[0].percent);
+    }
+
+    @Test
+    public void reusesOldestRecordWhenPoolIsFull() {
+        for (int i = 1; i <= 40; ++i) {
+            feed("[#" + Integer.toHexString(i) + " 1KiB/2KiB(50%)]\n");
+        }
+
+        final ReadoutParser.Progress[] all = new ReadoutParser.Progress[64];
+        for (int i = 0; i < all.length; ++i) {
+            all[i] = new ReadoutParser.Progress();
+        }
+
+        final int count = parser.getProgress(all);
+        assertEquals(32, count);
+
+        for (int i = 0; i < count; ++i) {
+            assertTrue("gid " + all[i].gid, all[i].gid > 8);
+        }
+    }
+
+    private void feed(String text) {
+        final byte[] data = text.getBytes(UTF_8);
+
+        parser.feed(data, 0, data.length);
+    }
+}